@@ -5,6 +5,16 @@ import {
   CompassReading,
   CompassCallback,
   CompassErrorCallback,
+  CompassBatchCallback,
+  SensorRateStats,
+  MotionGateStats,
+  HeadingStats,
+  HistorySample,
+  SensorTraceStats,
+  HeadingFilterStage,
+  DutyCycleStats,
+  PipelineMetrics,
+  MagneticCalibrationState,
 } from "./nativescript-compass.common";
 
 declare const org: any;
@@ -13,6 +23,9 @@ export class Compass extends CompassBase {
   private static compassHelper: any = null;
   private static currentCallback: CompassCallback | null = null;
   private static currentErrorCallback: CompassErrorCallback | null = null;
+  private static currentBatchCallback: CompassBatchCallback | null = null;
+  private static usesTrueHeading = false;
+  private static located = false;
 
   static isAvailable(): boolean {
     try {
@@ -33,6 +46,24 @@ export class Compass extends CompassBase {
     options: CompassOptions,
     onReading: CompassCallback,
     onError?: CompassErrorCallback,
+  ): Promise<boolean> {
+    return this.start(options, onReading, null, onError);
+  }
+
+  // Every reading, delivered in packed batches with one bridge call each
+  static async startUpdatingBatch(
+    options: CompassOptions,
+    onReadings: CompassBatchCallback,
+    onError?: CompassErrorCallback,
+  ): Promise<boolean> {
+    return this.start(options, null, onReadings, onError);
+  }
+
+  private static start(
+    options: CompassOptions,
+    onReading: CompassCallback | null,
+    onReadings: CompassBatchCallback | null,
+    onError?: CompassErrorCallback,
   ): Promise<boolean> {
     return new Promise<boolean>((resolve, reject) => {
       try {
@@ -55,6 +86,7 @@ export class Compass extends CompassBase {
 
         // Store callbacks
         this.currentCallback = onReading;
+        this.currentBatchCallback = onReadings;
         this.currentErrorCallback = onError;
 
         // Apply default options
@@ -65,6 +97,24 @@ export class Compass extends CompassBase {
           android: {
             useSensorFusion: options.android?.useSensorFusion ?? true,
             sensorDelay: options.android?.sensorDelay ?? "ui",
+            source: options.android?.source ?? "auto",
+            fusionEngine: options.android?.fusionEngine ?? "quaternion",
+            fusionDecimation: options.android?.fusionDecimation ?? 0,
+            batchLatency: options.android?.batchLatency ?? 0,
+            batchLatestOnly: options.android?.batchLatestOnly ?? false,
+            adaptiveRate: options.android?.adaptiveRate ?? false,
+            motionGate: options.android?.motionGate ?? false,
+            magDutyInterval: options.android?.magDutyInterval ?? 0,
+            magDutyBurst: options.android?.magDutyBurst ?? 1000,
+            batchSize: options.android?.batchSize ?? 16,
+            batchMaxDelay: options.android?.batchMaxDelay ?? 100,
+            historySize: options.android?.historySize ?? 0,
+            historyWindow: options.android?.historyWindow ?? 1000,
+            rateWindow: options.android?.rateWindow ?? 500,
+            usesTrueHeading: options.android?.usesTrueHeading ?? false,
+            magneticCalibration: options.android?.magneticCalibration ?? false,
+            directChannel: options.android?.directChannel ?? false,
+            filters: options.android?.filters ?? [],
           },
         };
 
@@ -87,6 +137,65 @@ export class Compass extends CompassBase {
           reject("filter must be between 0.0 and 1.0");
           return;
         }
+        if (
+          finalOptions.android.fusionDecimation < 0 ||
+          finalOptions.android.fusionDecimation > 100
+        ) {
+          reject("fusionDecimation must be between 0 and 100 samples");
+          return;
+        }
+        if (
+          finalOptions.android.batchLatency < 0 ||
+          finalOptions.android.batchLatency > 600000
+        ) {
+          reject("batchLatency must be between 0 and 600000 ms");
+          return;
+        }
+        if (
+          finalOptions.android.magDutyInterval < 0 ||
+          finalOptions.android.magDutyInterval > 600000
+        ) {
+          reject("magDutyInterval must be between 0 and 600000 ms");
+          return;
+        }
+        if (
+          finalOptions.android.magDutyBurst < 100 ||
+          finalOptions.android.magDutyBurst > 60000
+        ) {
+          reject("magDutyBurst must be between 100 and 60000 ms");
+          return;
+        }
+        if (
+          finalOptions.android.batchSize < 1 ||
+          finalOptions.android.batchSize > 1000
+        ) {
+          reject("batchSize must be between 1 and 1000 readings");
+          return;
+        }
+        if (
+          finalOptions.android.batchMaxDelay < 0 ||
+          finalOptions.android.batchMaxDelay > 60000
+        ) {
+          reject("batchMaxDelay must be between 0 and 60000 ms");
+          return;
+        }
+        if (
+          finalOptions.android.historySize < 0 ||
+          finalOptions.android.historySize > 100000
+        ) {
+          reject("historySize must be between 0 and 100000 readings");
+          return;
+        }
+
+        const filters = [];
+        for (const stage of finalOptions.android.filters) {
+          const filter = this.createFilter(stage, finalOptions.filter);
+          if (!filter) {
+            reject(`Unknown filter stage type: ${(stage as any).type}`);
+            return;
+          }
+          filters.push(filter);
+        }
 
         // Create native callback
         const callback = new org.nativescript.compass.CompassCallback({
@@ -103,6 +212,10 @@ export class Compass extends CompassBase {
                 timestamp: timestamp,
                 magneticHeading:
                   magneticHeading !== heading ? magneticHeading : undefined,
+                trueHeading:
+                  Compass.usesTrueHeading && Compass.located
+                    ? heading
+                    : undefined,
               };
               Compass.currentCallback(reading);
             }
@@ -124,6 +237,53 @@ export class Compass extends CompassBase {
           finalOptions.android.sensorDelay,
           callback,
         );
+        this.compassHelper.setSource(finalOptions.android.source);
+        this.compassHelper.setFusionEngine(finalOptions.android.fusionEngine);
+        this.compassHelper.setFusionDecimation(
+          finalOptions.android.fusionDecimation,
+        );
+        this.compassHelper.setBatching(
+          finalOptions.android.batchLatency,
+          finalOptions.android.batchLatestOnly,
+        );
+        this.compassHelper.setAdaptiveRate(finalOptions.android.adaptiveRate);
+        this.compassHelper.setMotionGate(finalOptions.android.motionGate);
+        this.compassHelper.setTrueHeading(finalOptions.android.usesTrueHeading);
+        this.usesTrueHeading = finalOptions.android.usesTrueHeading;
+        this.compassHelper.setMagneticCalibration(
+          finalOptions.android.magneticCalibration,
+        );
+        this.compassHelper.setDirectChannel(finalOptions.android.directChannel);
+        this.compassHelper.setMagDutyCycle(
+          finalOptions.android.magDutyInterval,
+          finalOptions.android.magDutyBurst,
+        );
+        for (const filter of filters) {
+          this.compassHelper.addFilter(filter);
+        }
+        this.compassHelper.setHistory(
+          finalOptions.android.historySize,
+          finalOptions.android.historyWindow,
+          finalOptions.android.rateWindow,
+        );
+        if (onReadings) {
+          this.compassHelper.setBatchDelivery(
+            finalOptions.android.batchSize,
+            finalOptions.android.batchMaxDelay,
+            new org.nativescript.compass.CompassBatchCallback({
+              onReadings(readings: any, count: number) {
+                if (Compass.currentBatchCallback) {
+                  Compass.currentBatchCallback(readings, count);
+                }
+              },
+              onError(error: string) {
+                if (Compass.currentErrorCallback) {
+                  Compass.currentErrorCallback(error);
+                }
+              },
+            }),
+          );
+        }
 
         const started = this.compassHelper.startUpdating();
         resolve(started);
@@ -133,12 +293,39 @@ export class Compass extends CompassBase {
     });
   }
 
+  private static createFilter(
+    stage: HeadingFilterStage,
+    defaultFilter: number,
+  ): any {
+    const filters = org.nativescript.compass;
+    switch (stage.type) {
+      case "ema":
+        return new filters.EmaHeadingFilter(stage.filter ?? defaultFilter);
+      case "oneEuro":
+        return new filters.OneEuroHeadingFilter(
+          stage.minCutoff ?? 1.0,
+          stage.beta ?? 0.05,
+          stage.derivativeCutoff ?? 1.0,
+        );
+      case "median":
+        return new filters.MedianHeadingFilter(stage.window ?? 5);
+      case "outlier":
+        return new filters.OutlierHeadingFilter(
+          stage.maxJump ?? 45,
+          stage.maxRejects ?? 3,
+        );
+      default:
+        return null;
+    }
+  }
+
   static stopUpdating(): boolean {
     try {
       if (this.compassHelper) {
         const stopped = this.compassHelper.stopUpdating();
         this.compassHelper = null;
         this.currentCallback = null;
+        this.currentBatchCallback = null;
         this.currentErrorCallback = null;
         return stopped;
       }
@@ -148,6 +335,195 @@ export class Compass extends CompassBase {
     }
   }
 
+  static getSensorRateStats(): SensorRateStats | null {
+    try {
+      const stats = this.compassHelper?.getSensorRateStats();
+      if (!stats) return null;
+      return {
+        samplingPeriodUs: Number(stats[0]),
+        slow: Number(stats[1]) === 1,
+        fastTierMs: Number(stats[2]),
+        slowTierMs: Number(stats[3]),
+        tierSwitches: Number(stats[4]),
+      };
+    } catch (error) {
+      return null;
+    }
+  }
+
+  static getMotionGateStats(): MotionGateStats | null {
+    try {
+      const stats = this.compassHelper?.getMotionGateStats();
+      if (!stats) return null;
+      return {
+        suspended: Number(stats[0]) === 1,
+        suspendCount: Number(stats[1]),
+        suspendedMs: Number(stats[2]),
+      };
+    } catch (error) {
+      return null;
+    }
+  }
+
+  static getDutyCycleStats(): DutyCycleStats | null {
+    try {
+      const stats = this.compassHelper?.getDutyCycleStats();
+      if (!stats) return null;
+      return {
+        deadReckoning: stats[0] === 1,
+        lastDrift: stats[1],
+        lastDriftInterval: stats[2],
+        gyroBias: [stats[3], stats[4], stats[5]],
+        biasUpdates: stats[6],
+        corrections: stats[7],
+      };
+    } catch (error) {
+      return null;
+    }
+  }
+
+  static getMetrics(): PipelineMetrics | null {
+    try {
+      if (!this.compassHelper) return null;
+      const snapshot = this.compassHelper.getMetrics();
+      const layout = org.nativescript.compass.PipelineMetrics;
+      const counter = (index: number) => Number(snapshot[index]);
+      const histogram = (stage: number) => {
+        const buckets: number[] = [];
+        const start = layout.SNAPSHOT_HISTOGRAMS + stage * layout.BUCKETS;
+        for (let i = 0; i < layout.BUCKETS; i++) {
+          buckets.push(Number(snapshot[start + i]));
+        }
+        return buckets;
+      };
+      const bucketBoundsUs: number[] = [];
+      for (let i = 0; i < layout.BUCKET_BOUNDS_US.length; i++) {
+        bucketBoundsUs.push(Number(layout.BUCKET_BOUNDS_US[i]));
+      }
+      return {
+        received: {
+          accelerometer: counter(layout.RECEIVED_ACCELEROMETER),
+          magnetometer: counter(layout.RECEIVED_MAGNETOMETER),
+          gyroscope: counter(layout.RECEIVED_GYROSCOPE),
+          other: counter(layout.RECEIVED_OTHER),
+        },
+        fused: counter(layout.FUSED),
+        dropped: {
+          filter: counter(layout.DROPPED_FILTER),
+          stale: counter(layout.DROPPED_STALE),
+          threshold: counter(layout.DROPPED_THRESHOLD),
+        },
+        delivered: counter(layout.DELIVERED),
+        accuracyChanges: counter(layout.ACCURACY_CHANGES),
+        bucketBoundsUs,
+        latency: {
+          ingest: histogram(layout.STAGE_INGEST),
+          fusion: histogram(layout.STAGE_FUSION),
+          filter: histogram(layout.STAGE_FILTER),
+          delivery: histogram(layout.STAGE_DELIVERY),
+        },
+      };
+    } catch (error) {
+      return null;
+    }
+  }
+
+  static getMagneticCalibration(): MagneticCalibrationState | null {
+    try {
+      const state = this.compassHelper?.getMagneticCalibration();
+      if (!state) return null;
+      return {
+        fitted: state[0] === 1,
+        offset: [state[1], state[2], state[3]],
+        scale: [state[4], state[5], state[6]],
+        fieldStrength: state[7],
+        residual: state[8],
+        fits: state[9],
+      };
+    } catch (error) {
+      return null;
+    }
+  }
+
+  static resetMagneticCalibration(): void {
+    const activity =
+      Application.android.foregroundActivity ||
+      Application.android.startActivity;
+    if (!activity) return;
+    org.nativescript.compass.CompassHelper.resetMagneticCalibration(activity);
+  }
+
+  static setLocation(
+    latitude: number,
+    longitude: number,
+    altitude: number = 0,
+  ): void {
+    org.nativescript.compass.CompassHelper.setLocation(
+      latitude,
+      longitude,
+      altitude,
+      0,
+    );
+    this.located = true;
+  }
+
+  static getDeclination(): number | null {
+    const declination =
+      org.nativescript.compass.CompassHelper.getDeclination();
+    return isNaN(declination) ? null : declination;
+  }
+
+  static getHeadingStats(): HeadingStats | null {
+    try {
+      const stats = this.compassHelper?.getHeadingStats();
+      if (!stats) return null;
+      return {
+        mean: stats[0],
+        variance: stats[1],
+        rateOfTurn: stats[2],
+        samples: stats[3],
+      };
+    } catch (error) {
+      return null;
+    }
+  }
+
+  static getHistorySample(ago: number): HistorySample | null {
+    try {
+      const sample = this.compassHelper?.getHistorySample(ago);
+      if (!sample) return null;
+      return {
+        timestamp: sample[0],
+        heading: sample[1],
+        pitch: sample[2],
+        roll: sample[3],
+      };
+    } catch (error) {
+      return null;
+    }
+  }
+
+  static startSensorTrace(path: string): boolean {
+    try {
+      return org.nativescript.compass.CompassHelper.startSensorTrace(path);
+    } catch (error) {
+      return false;
+    }
+  }
+
+  static stopSensorTrace(): SensorTraceStats | null {
+    try {
+      const stats = org.nativescript.compass.CompassHelper.stopSensorTrace();
+      if (!stats) return null;
+      return {
+        records: Number(stats[0]),
+        dropped: Number(stats[1]),
+      };
+    } catch (error) {
+      return null;
+    }
+  }
+
   static async getCurrentReading(
     options?: CompassOptions,
   ): Promise<CompassReading> {
@@ -172,6 +548,8 @@ export class Compass extends CompassBase {
           android: {
             useSensorFusion: options?.android?.useSensorFusion ?? true,
             sensorDelay: options?.android?.sensorDelay ?? "ui",
+            source: options?.android?.source ?? "auto",
+            maxAge: options?.android?.maxAge ?? 0,
           },
         };
 
@@ -202,6 +580,8 @@ export class Compass extends CompassBase {
           activity,
           finalOptions.android.useSensorFusion,
           finalOptions.android.sensorDelay,
+          finalOptions.android.source,
+          finalOptions.android.maxAge,
           callback,
         );
       } catch (error) {
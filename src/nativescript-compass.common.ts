@@ -1,3 +1,15 @@
+// One stage of the Android heading filter chain, applied in order
+export type HeadingFilterStage =
+  | { type: "ema"; filter?: number } // Exponential smoothing (default: top-level filter)
+  | {
+      type: "oneEuro"; // Adaptive: smooth at rest, low lag while turning
+      minCutoff?: number; // Hz (default: 1.0)
+      beta?: number; // Cutoff increase per degree/s (default: 0.05)
+      derivativeCutoff?: number; // Hz (default: 1.0)
+    }
+  | { type: "median"; window?: number } // Sliding circular median (default window: 5)
+  | { type: "outlier"; maxJump?: number; maxRejects?: number }; // Drop jumps over maxJump degrees (defaults: 45, 3)
+
 export interface CompassOptions {
   // Minimum change in degrees to trigger callback (after filtering)
   minChangeThreshold?: number; // default: 3
@@ -10,7 +22,26 @@ export interface CompassOptions {
 
   android?: {
     useSensorFusion?: boolean; // Use gyroscope + accelerometer/magnetometer (default: true)
-    sensorDelay?: "fastest" | "game" | "ui" | "normal"; // Sensor polling rate (default: 'ui')
+    sensorDelay?: "auto" | "fastest" | "game" | "ui" | "normal"; // Sensor polling rate, 'auto' follows updateThrottle and the filters (default: 'ui')
+    source?: "auto" | "hardware" | "hardware_low_power" | "software" | "raw"; // Heading source, 'auto' follows useSensorFusion (default: 'auto')
+    fusionEngine?: "quaternion" | "euler"; // Sensor fusion algorithm (default: 'quaternion')
+    fusionDecimation?: number; // Fuse on every Nth gyro sample, 0 = fixed 30ms timer (default: 0)
+    batchLatency?: number; // Let sensors batch events in their FIFO for up to this many ms, 0 = off (default: 0)
+    batchLatestOnly?: boolean; // With batching, only process the newest reading of each burst (default: false)
+    adaptiveRate?: boolean; // Drop to the 'normal' rate while the device is still (default: false)
+    motionGate?: boolean; // Suspend magnetometer and fusion while the device is still, 'software' source only (default: false)
+    magDutyInterval?: number; // Gyro-only dead reckoning between magnetometer bursts in ms, 'software' source only, 0 = off (default: 0)
+    magDutyBurst?: number; // Magnetometer burst length in ms (default: 1000)
+    batchSize?: number; // startUpdatingBatch only: readings per batch (default: 16)
+    batchMaxDelay?: number; // startUpdatingBatch only: flush a partial batch after this many ms, 0 = only when full (default: 100)
+    filters?: HeadingFilterStage[]; // Heading filter chain, replaces the top-level filter (default: [{ type: 'ema' }])
+    historySize?: number; // Readings kept for getHeadingStats/getHistorySample, 0 = off (default: 0)
+    historyWindow?: number; // Window of the circular mean and variance in ms (default: 1000)
+    rateWindow?: number; // Window of the rate of turn in ms (default: 500)
+    usesTrueHeading?: boolean; // Report true heading once Compass.setLocation() was called (default: false)
+    magneticCalibration?: boolean; // Calibrate the raw magnetometer in the plugin, 'software'/'raw' sources (default: false)
+    directChannel?: boolean; // Read sensors from a shared memory direct channel where supported, not with batchLatency (default: false)
+    maxAge?: number; // getCurrentReading only: accept a cached reading up to this many ms old (default: 0)
   };
 
   ios?: {
@@ -26,10 +57,101 @@ export interface CompassReading {
 
   // Optional fields (only if available)
   magneticHeading?: number; // If different from heading
-  trueHeading?: number; // Only on iOS if usesTrueHeading=true
+  trueHeading?: number; // If usesTrueHeading=true (Android: after setLocation)
+}
+
+// Android adaptiveRate statistics for the running compass
+export interface SensorRateStats {
+  samplingPeriodUs: number; // Current sensor sampling period
+  slow: boolean; // true while in the slow (stationary) tier
+  fastTierMs: number; // Time spent at the configured sensorDelay
+  slowTierMs: number; // Time spent at the slow rate
+  tierSwitches: number; // Number of rate changes
+}
+
+// Android motionGate statistics for the running compass
+export interface MotionGateStats {
+  suspended: boolean; // true while the magnetometer and fusion are paused
+  suspendCount: number; // Number of times the gate closed
+  suspendedMs: number; // Total time spent suspended
+}
+
+// Android heading history statistics, see the historySize option
+export interface HeadingStats {
+  mean: number; // Circular mean heading over historyWindow, 0-360 degrees
+  variance: number; // Circular variance over historyWindow, 0 (steady) - 1 (spread)
+  rateOfTurn: number; // Degrees per second over rateWindow, positive clockwise
+  samples: number; // Readings inside historyWindow
+}
+
+export interface HistorySample {
+  timestamp: number;
+  heading: number;
+  pitch: number;
+  roll: number;
+}
+
+export interface SensorTraceStats {
+  records: number; // Events written to the trace
+  dropped: number; // Events lost while the writer fell behind
+}
+
+// Android magnetometer duty cycle statistics, see magDutyInterval
+export interface DutyCycleStats {
+  deadReckoning: boolean; // true while the heading comes from the gyro alone
+  lastDrift: number; // Heading error found by the last magnetometer burst, degrees
+  lastDriftInterval: number; // Dead-reckoning time before that burst, ms
+  gyroBias: number[]; // Estimated gyro bias x, y, z in rad/s
+  biasUpdates: number; // Still periods the bias was learned from
+  corrections: number; // Magnetometer bursts that corrected the heading
+}
+
+// Android magnetometer calibration, see the magneticCalibration option
+export interface MagneticCalibrationState {
+  fitted: boolean; // false until the device was turned through all axes
+  offset: number[]; // Hard-iron offset x, y, z in uT
+  scale: number[]; // Soft-iron scale x, y, z
+  fieldStrength: number; // Fitted field radius in uT
+  residual: number; // Spread of the corrected field strength in uT, lower is better
+  fits: number; // Fits accepted this session
+}
+
+// Android pipeline metrics, counters since the compass started
+export interface PipelineMetrics {
+  received: {
+    accelerometer: number;
+    magnetometer: number;
+    gyroscope: number;
+    other: number; // Rotation vectors
+  };
+  fused: number; // Orientations published by the native compasses
+  dropped: {
+    filter: number; // Rejected by a filter stage
+    stale: number; // Older than 500ms when checked
+    threshold: number; // Below minChangeThreshold
+  };
+  delivered: number;
+  accuracyChanges: number;
+  // Latency histograms, counts per bucket; bucket i holds latencies up to
+  // bucketBoundsUs[i] microseconds, the last bucket everything above
+  bucketBoundsUs: number[];
+  latency: {
+    ingest: number[]; // Sensor timestamp -> native listener
+    fusion: number[]; // Native listener -> orientation published
+    filter: number[]; // Filter chain
+    delivery: number[]; // Sensor timestamp -> callback, end to end
+  };
 }
 
 export type CompassCallback = (reading: CompassReading) => void;
+// Row i of a packed batch starts at readings[i * READING_STRIDE]:
+// heading, accuracy, magneticHeading, timestamp, pitch, roll
+export const READING_STRIDE = 6;
+// The readings array is reused, copy what you need before returning
+export type CompassBatchCallback = (
+  readings: ArrayLike<number>,
+  count: number,
+) => void;
 export type CompassErrorCallback = (error: string) => void;
 
 export abstract class CompassBase {
@@ -49,12 +171,91 @@ export abstract class CompassBase {
     );
   }
 
+  // Platforms without native batching deliver one row per reading
+  static startUpdatingBatch(
+    options: CompassOptions,
+    onReadings: CompassBatchCallback,
+    onError?: CompassErrorCallback,
+  ): Promise<boolean> {
+    const row = new Array<number>(READING_STRIDE).fill(0);
+    return this.startUpdating(
+      options,
+      (reading) => {
+        row[0] = reading.heading;
+        row[1] = reading.accuracy;
+        row[2] = reading.magneticHeading ?? reading.heading;
+        row[3] = reading.timestamp;
+        onReadings(row, 1);
+      },
+      onError,
+    );
+  }
+
   static stopUpdating(): boolean {
     throw new Error(
       "Compass.stopUpdating() must be implemented in platform-specific code",
     );
   }
 
+  // Only available on Android, other platforms have no adaptive sensor rate
+  static getSensorRateStats(): SensorRateStats | null {
+    return null;
+  }
+
+  // Only available on Android with the 'software' source
+  static getMotionGateStats(): MotionGateStats | null {
+    return null;
+  }
+
+  // Only available on Android with the historySize option
+  static getHeadingStats(): HeadingStats | null {
+    return null;
+  }
+
+  // Reading `ago` samples before the newest one, Android with historySize only
+  static getHistorySample(ago: number): HistorySample | null {
+    return null;
+  }
+
+  // Only available on Android: records raw sensor events to a binary trace
+  static startSensorTrace(path: string): boolean {
+    return false;
+  }
+
+  static stopSensorTrace(): SensorTraceStats | null {
+    return null;
+  }
+
+  // Only available on Android with the magDutyInterval option
+  static getDutyCycleStats(): DutyCycleStats | null {
+    return null;
+  }
+
+  // Only available on Android while updating
+  static getMetrics(): PipelineMetrics | null {
+    return null;
+  }
+
+  // Only available on Android with the magneticCalibration option
+  static getMagneticCalibration(): MagneticCalibrationState | null {
+    return null;
+  }
+
+  // Forgets the stored calibration, Android only
+  static resetMagneticCalibration(): void {}
+
+  // Android only, iOS gets the location from CoreLocation itself
+  static setLocation(
+    latitude: number,
+    longitude: number,
+    altitude?: number,
+  ): void {}
+
+  // Degrees east of true north at the last setLocation, Android only
+  static getDeclination(): number | null {
+    return null;
+  }
+
   static getCurrentReading(options?: CompassOptions): Promise<CompassReading> {
     throw new Error(
       "Compass.getCurrentReading() must be implemented in platform-specific code",
@@ -5,20 +5,33 @@ import android.hardware.Sensor;
 import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
+import android.os.SystemClock;
 
 public class AccMagCompass extends Compass {
 
-    private static final long SENSOR_THROTTLE_NS = 100 * 1000000L; // 100ms in nanoseconds
+    private static final String PREFERENCES = "org.nativescript.compass";
+    private static final String KEY_CALIBRATION = "magneticCalibration";
+    private static final long CALIBRATION_SAVE_INTERVAL_MS = 60000;
 
     private final Context mContext;
-    private long mLastUpdate = 0;
     private final SensorListener mListener = new SensorListener();
+    private final SensorBatch mBatch = new SensorBatch(
+        mListener,
+        SensorThread.getHandler()
+    );
+    private final DirectSensorSource mDirect;
     private final float[] mOrientation = new float[3];
     private final float[] mRotationMatrix = new float[9];
-    private final Sensor mSensorAcc, mSensorMag;
+    private final Sensor mSensorAcc, mSensorMag, mSensorMagUncalibrated;
     private final SensorManager mSensorManager;
-    private float[] mValuesAcc = null,
-        mValuesMag = null;
+    private final float[] mValuesAcc = new float[3],
+        mValuesMag = new float[3];
+    private boolean mHasAcc = false,
+        mHasMag = false;
+    private boolean mCalibrate = false;
+    private MagneticCalibration mCalibration = null;
+    private boolean mSaveCalibration = false; // Not for replayed traces
+    private long mLastCalibrationSaveMs = 0;
 
     public AccMagCompass(final Context context) {
         mContext = context;
@@ -29,80 +42,260 @@ public class AccMagCompass extends Compass {
         mSensorMag = mSensorManager.getDefaultSensor(
             Sensor.TYPE_MAGNETIC_FIELD
         );
+        mSensorMagUncalibrated = mSensorManager.getDefaultSensor(
+            Sensor.TYPE_MAGNETIC_FIELD_UNCALIBRATED
+        );
+        mDirect = new DirectSensorSource(this, mSensorManager, mListener);
+    }
+
+    // Calibrates the raw magnetometer here instead of trusting the OS
+    // calibration, see MagneticCalibration. The fit is kept between sessions.
+    // Needs TYPE_MAGNETIC_FIELD_UNCALIBRATED, must be called before the
+    // compass is started.
+    public void setCalibration(final boolean calibrate) {
+        mCalibrate = calibrate;
+    }
+
+    // See MagneticCalibration.getState(), null when not calibrating
+    public double[] getCalibrationState() {
+        final MagneticCalibration calibration = mCalibration;
+        return calibration != null ? calibration.getState() : null;
+    }
+
+    // Forgets the stored fit, running compasses keep theirs until restarted
+    public static void clearStoredCalibration(final Context context) {
+        context
+            .getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE)
+            .edit()
+            .remove(KEY_CALIBRATION)
+            .apply();
+    }
+
+    private float[] loadCalibration() {
+        final String stored = mContext
+            .getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE)
+            .getString(KEY_CALIBRATION, null);
+        if (stored == null) return null;
+        final String[] parts = stored.split(",");
+        if (parts.length != MagneticCalibration.FIT_SIZE) return null;
+        final float[] fit = new float[parts.length];
+        try {
+            for (int i = 0; i < parts.length; i++) {
+                fit[i] = Float.parseFloat(parts[i]);
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return fit;
+    }
+
+    private void saveCalibration() {
+        final float[] fit = mCalibration.getFit();
+        if (fit == null) return;
+        final StringBuilder stored = new StringBuilder();
+        for (int i = 0; i < fit.length; i++) {
+            if (i > 0) stored.append(',');
+            stored.append(fit[i]);
+        }
+        mContext
+            .getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE)
+            .edit()
+            .putString(KEY_CALIBRATION, stored.toString())
+            .apply();
     }
 
-    private void calculateOrientation() {
-        if (mValuesAcc == null || mValuesMag == null) return;
+    private boolean isCalibrating() {
+        return mCalibrate && mSensorMagUncalibrated != null;
+    }
+
+    private void calculateOrientation(final long timestamp) {
+        if (!mHasAcc || !mHasMag) return;
 
         if (
-            !SensorManager.getRotationMatrix(
+            !OrientationMath.rotationMatrixFromAccMag(
                 mRotationMatrix,
-                null,
                 mValuesAcc,
                 mValuesMag
             )
         ) return;
-        SensorManager.getOrientation(mRotationMatrix, mOrientation);
+        OrientationMath.orientationFromRotationMatrix(
+            mRotationMatrix,
+            mOrientation
+        );
 
-        publishOrientation(mOrientation[0], mOrientation[1], mOrientation[2]);
+        publishOrientation(
+            mOrientation[0],
+            mOrientation[1],
+            mOrientation[2],
+            mRotationMatrix,
+            timestamp
+        );
+    }
+
+    @Override
+    protected String getSource() {
+        return "raw";
     }
 
     @Override
     protected void onStart() {
-        if (mSensorAcc != null && mSensorMag != null) {
-            // Use configured sensor delay
-            int sensorDelay = getSensorDelay();
+        if (isCalibrating() && mCalibration == null) {
+            mCalibration = new MagneticCalibration();
+            mCalibration.setFit(loadCalibration());
+        }
+        mSaveCalibration = true;
+        // Never pair a fresh sample with one from before the stop
+        mHasAcc = false;
+        mHasMag = false;
+        registerSensors();
+    }
 
-            mSensorManager.registerListener(mListener, mSensorAcc, sensorDelay);
-            mSensorManager.registerListener(mListener, mSensorMag, sensorDelay);
+    private void registerSensors() {
+        final Sensor magnetometer = isCalibrating()
+            ? mSensorMagUncalibrated
+            : mSensorMag;
+        if (
+            mSensorAcc != null &&
+            magnetometer != null &&
+            !startDirectChannel(mDirect, mSensorAcc, magnetometer)
+        ) {
+            // Use configured sensor delay and batching
+            registerListener(mSensorManager, mListener, mSensorAcc);
+            registerListener(mSensorManager, mListener, magnetometer);
         }
     }
 
     @Override
     protected void onStop() {
+        mDirect.stop();
         mSensorManager.unregisterListener(mListener);
+        mBatch.clear();
+        if (mCalibration != null && mSaveCalibration) saveCalibration();
     }
 
-    private class SensorListener implements SensorEventListener {
+    // A new rate or adaptive tier only registers the sensors again, the fit
+    // is saved on a real stop and by the timer in onSample
+    @Override
+    protected void onSensorRateChanged() {
+        mDirect.stop();
+        mSensorManager.unregisterListener(mListener);
+        mBatch.clear();
+        registerSensors();
+    }
+
+    // Once the fit's residual gives the accuracy, the OS accuracy of the
+    // uncalibrated magnetometer says nothing about it
+    @Override
+    protected void onSensorAccuracyChanged(final int accuracy) {
+        final MagneticCalibration calibration = mCalibration;
+        if (
+            calibration != null && !Double.isNaN(calibration.getAccuracy())
+        ) return;
+        super.onSensorAccuracyChanged(accuracy);
+    }
+
+    @Override
+    protected void onStartReplay(final long timestamp) {
+        // Replays start from scratch, whatever this device has stored
+        if (mCalibrate) mCalibration = new MagneticCalibration();
+        mSaveCalibration = false;
+        mHasAcc = false;
+        mHasMag = false;
+    }
+
+    @Override
+    protected void onReplaySample(
+        final int type,
+        final long timestamp,
+        final float[] values
+    ) {
+        onSample(type, timestamp, values);
+    }
+
+    private void onSample(
+        final int type,
+        final long timestamp,
+        final float[] values
+    ) {
+        switch (type) {
+            case Sensor.TYPE_ACCELEROMETER:
+                System.arraycopy(values, 0, mValuesAcc, 0, 3);
+                mHasAcc = true;
+                break;
+            case Sensor.TYPE_MAGNETIC_FIELD_UNCALIBRATED:
+                if (mCalibration == null) break;
+                if (
+                    mCalibration.add(values) &&
+                    mSaveCalibration &&
+                    SystemClock.elapsedRealtime() - mLastCalibrationSaveMs >
+                    CALIBRATION_SAVE_INTERVAL_MS
+                ) {
+                    // The process may die without a stop
+                    mLastCalibrationSaveMs = SystemClock.elapsedRealtime();
+                    saveCalibration();
+                }
+                // Corrected before the rotation matrix is built
+                if (mCalibration.correct(values, mValuesMag)) {
+                    final double accuracy = mCalibration.getAccuracy();
+                    if (!Double.isNaN(accuracy)) mLastSensorAccuracy = accuracy;
+                } else if (values.length >= 6) {
+                    // Until the first fit, remove the OS hard-iron estimate
+                    // that comes with every uncalibrated sample
+                    mValuesMag[0] = values[0] - values[3];
+                    mValuesMag[1] = values[1] - values[4];
+                    mValuesMag[2] = values[2] - values[5];
+                }
+                onMagnetometer(timestamp);
+                break;
+            case Sensor.TYPE_MAGNETIC_FIELD:
+                System.arraycopy(values, 0, mValuesMag, 0, 3);
+                onMagnetometer(timestamp);
+                break;
+        }
+    }
+
+    private void onMagnetometer(final long timestamp) {
+        mHasMag = true;
+
+        if (isOrientationNeeded(timestamp)) calculateOrientation(timestamp);
+    }
+
+    private class SensorListener
+        implements SensorEventListener, SensorBatch.Consumer {
 
         @Override
         public void onAccuracyChanged(final Sensor sensor, final int accuracy) {
-            // Track the latest sensor accuracy for callbacks
-            switch (accuracy) {
-                case SensorManager.SENSOR_STATUS_ACCURACY_HIGH:
-                    mLastSensorAccuracy = 1.0;
-                    break;
-                case SensorManager.SENSOR_STATUS_ACCURACY_MEDIUM:
-                    mLastSensorAccuracy = 3.0;
-                    break;
-                case SensorManager.SENSOR_STATUS_ACCURACY_LOW:
-                    mLastSensorAccuracy = 10.0;
-                    break;
-                case SensorManager.SENSOR_STATUS_UNRELIABLE:
-                default:
-                    mLastSensorAccuracy = 15.0;
-                    break;
-            }
+            ingestAccuracy(sensor, accuracy);
+            onSensorAccuracyChanged(accuracy);
         }
 
         @Override
         public void onSensorChanged(final SensorEvent event) {
-            switch (event.sensor.getType()) {
-                case Sensor.TYPE_ACCELEROMETER:
-                    mValuesAcc = event.values.clone();
-                    break;
-                case Sensor.TYPE_MAGNETIC_FIELD:
-                    mValuesMag = event.values.clone();
-
-                    // Throttle to save battery (similar to example code)
-                    if (
-                        (event.timestamp - mLastUpdate) < SENSOR_THROTTLE_NS
-                    ) break;
-                    mLastUpdate = event.timestamp;
-
-                    calculateOrientation();
-                    break;
+            ingestEvent(event);
+            if (isBatching()) {
+                mBatch.add(event);
+            } else {
+                onSample(event.sensor.getType(), event.timestamp, event.values);
             }
         }
+
+        @Override
+        public void onBurstStart() {
+            beginBurst();
+        }
+
+        @Override
+        public void onSample(
+            final int type,
+            final long timestamp,
+            final float[] values
+        ) {
+            AccMagCompass.this.onSample(type, timestamp, values);
+        }
+
+        @Override
+        public void onBurstEnd() {
+            endBurst();
+        }
     }
 }
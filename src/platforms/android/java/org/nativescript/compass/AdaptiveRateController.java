@@ -0,0 +1,80 @@
+package org.nativescript.compass;
+
+// Picks a sensor rate tier from the measured angular velocity. Rotation
+// switches to the fast tier on the first sample above MOVING_DEG_PER_SEC,
+// while the slow tier is only entered after the device stayed below
+// STILL_DEG_PER_SEC for SETTLE_MS, so small jitter never flaps the rate.
+final class AdaptiveRateController {
+
+    static final int TIER_FAST = 0;
+    static final int TIER_SLOW = 1;
+    static final int TIER_COUNT = 2;
+
+    static final double MOVING_DEG_PER_SEC = 15.0;
+    static final double STILL_DEG_PER_SEC = 5.0;
+    static final long SETTLE_MS = 2000;
+
+    private final long[] mTierTimeMs = new long[TIER_COUNT];
+    private int mTier = TIER_FAST;
+    private long mTierSinceMs = -1;
+    private long mStillSinceMs = -1;
+    private int mSwitches = 0;
+
+    synchronized void reset(final long nowMs) {
+        accumulate(nowMs);
+        mTier = TIER_FAST;
+        mTierSinceMs = nowMs;
+        mStillSinceMs = -1;
+    }
+
+    // Stops the clock of the current tier while the sensors are off
+    synchronized void pause(final long nowMs) {
+        accumulate(nowMs);
+        mTierSinceMs = -1;
+    }
+
+    // Returns true when the tier changed and the sensors need re-registering
+    synchronized boolean update(final double degPerSec, final long nowMs) {
+        if (degPerSec >= MOVING_DEG_PER_SEC) {
+            mStillSinceMs = -1;
+            return switchTo(TIER_FAST, nowMs);
+        }
+        if (degPerSec > STILL_DEG_PER_SEC) {
+            mStillSinceMs = -1;
+            return false;
+        }
+        if (mStillSinceMs < 0) {
+            mStillSinceMs = nowMs;
+            return false;
+        }
+        if (nowMs - mStillSinceMs < SETTLE_MS) return false;
+        return switchTo(TIER_SLOW, nowMs);
+    }
+
+    synchronized int getTier() {
+        return mTier;
+    }
+
+    synchronized int getSwitchCount() {
+        return mSwitches;
+    }
+
+    synchronized long getTimeInTier(final int tier, final long nowMs) {
+        long time = mTierTimeMs[tier];
+        if (tier == mTier && mTierSinceMs >= 0) time += nowMs - mTierSinceMs;
+        return time;
+    }
+
+    private boolean switchTo(final int tier, final long nowMs) {
+        if (tier == mTier) return false;
+        accumulate(nowMs);
+        mTier = tier;
+        mTierSinceMs = nowMs;
+        mSwitches++;
+        return true;
+    }
+
+    private void accumulate(final long nowMs) {
+        if (mTierSinceMs >= 0) mTierTimeMs[mTier] += nowMs - mTierSinceMs;
+    }
+}
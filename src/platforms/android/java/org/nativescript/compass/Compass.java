@@ -2,40 +2,145 @@ package org.nativescript.compass;
 
 import android.content.Context;
 import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
+import android.os.SystemClock;
 
 public abstract class Compass {
 
     public static Compass getDefaultCompass(final Context context) {
-        final Sensor gyro = ((SensorManager) context.getSystemService(
-                Context.SENSOR_SERVICE
-            )).getDefaultSensor(Sensor.TYPE_GYROSCOPE);
-
-        if (gyro != null) return new GyroCompass(context);
+        if (hasGyroscope(context)) return new GyroCompass(context);
         else return new AccMagCompass(context);
     }
 
-    private CompassCallback mCallback = null;
-    private boolean mStarted = false;
+    public static boolean hasGyroscope(final Context context) {
+        return hasSensor(context, Sensor.TYPE_GYROSCOPE);
+    }
+
+    public static boolean hasSensor(final Context context, final int type) {
+        final Sensor sensor = ((SensorManager) context.getSystemService(
+                Context.SENSOR_SERVICE
+            )).getDefaultSensor(type);
+        return sensor != null;
+    }
+
+    // Set from the caller's thread, read on the sensor thread
+    private volatile CompassCallback mCallback = null;
+    private volatile OrientationListener mOrientationListener = null;
+    private volatile boolean mStarted = false;
+    private volatile boolean mReplaying = false; // See startReplay
+    private boolean mReplayClockStarted = false;
     protected double mLastSensorAccuracy = 5.0; // Last reported sensor accuracy
     protected int mSensorDelay = SensorManager.SENSOR_DELAY_UI; // Default sensor delay
+    protected int mSamplingPeriodUs = -1; // See setSamplingPeriodUs
+    protected int mMaxReportLatencyUs = 0; // 0 = deliver every event immediately
+    // Changed in place while running, see setOutputInterval
+    protected volatile long mOutputIntervalUs = 100000;
+    private long mNextOutput = 0; // Sensor time, see isOutputDue
+    private volatile boolean mDeliverLatestOnly = false;
+    private boolean mDirectChannel = false;
+
+    // Batch state, only touched on the sensor thread
+    private boolean mInBurst = false;
+    private boolean mHasPending = false;
+    private final float[] mPendingOrientation = new float[3];
+    private final float[] mPendingRotationMatrix = new float[9];
+    private long mPendingTimestamp = 0;
+
+    // Adaptive rate state, the heading rate is only touched on the sensor thread
+    private volatile boolean mAdaptiveRate = false;
+    private final AdaptiveRateController mRateController =
+        new AdaptiveRateController();
+    private long mLastRateTimestamp = 0;
+    private float mLastRateAzimuth = 0;
+
+    // Filled on the sensor thread
+    private final PipelineMetrics mMetrics = new PipelineMetrics();
+    private long mIngestNanos = 0;
+
+    // Track the latest sensor accuracy for callbacks
+    protected void onSensorAccuracyChanged(final int accuracy) {
+        switch (accuracy) {
+            case SensorManager.SENSOR_STATUS_ACCURACY_HIGH:
+                mLastSensorAccuracy = 1.0;
+                break;
+            case SensorManager.SENSOR_STATUS_ACCURACY_MEDIUM:
+                mLastSensorAccuracy = 3.0;
+                break;
+            case SensorManager.SENSOR_STATUS_ACCURACY_LOW:
+                mLastSensorAccuracy = 10.0;
+                break;
+            case SensorManager.SENSOR_STATUS_UNRELIABLE:
+            default:
+                mLastSensorAccuracy = 15.0;
+                break;
+        }
+    }
 
     protected abstract void onStart();
 
     protected abstract void onStop();
 
+    // The source this compass reads, as CompassHelper resolves it: "raw",
+    // "software", "hardware" or "hardware_low_power". Keys LastReadingCache.
+    protected abstract String getSource();
+
     private float[] mLastOrientation = new float[3];
 
+    // rotationMatrix is the attitude the angles were read from, see
+    // OrientationListener. timestamp is the elapsedRealtimeNanos time of the
+    // newest sensor sample the orientation was computed from, as in
+    // SensorEvent.timestamp.
     protected void publishOrientation(
         final float azimuth,
         final float pitch,
-        final float roll
+        final float roll,
+        final float[] rotationMatrix,
+        final long timestamp
     ) {
+        if (mInBurst) {
+            // Only the last orientation of a batched burst is published
+            mPendingOrientation[0] = azimuth;
+            mPendingOrientation[1] = pitch;
+            mPendingOrientation[2] = roll;
+            System.arraycopy(rotationMatrix, 0, mPendingRotationMatrix, 0, 9);
+            mPendingTimestamp = timestamp;
+            mHasPending = true;
+            return;
+        }
+
+        mMetrics.count(PipelineMetrics.FUSED);
+        if (mIngestNanos != 0) {
+            mMetrics.record(
+                PipelineMetrics.STAGE_FUSION,
+                SystemClock.elapsedRealtimeNanos() - mIngestNanos
+            );
+        }
+
+        if (mAdaptiveRate) onHeadingRate(azimuth, timestamp);
+
         mLastOrientation[0] = azimuth;
         mLastOrientation[1] = pitch;
         mLastOrientation[2] = roll;
 
-        if (mCallback != null) {
+        // Before the callback, so the listener sees the attitude of the
+        // reading that follows
+        final OrientationListener listener = mOrientationListener;
+        if (listener != null) {
+            listener.onOrientation(
+                azimuth,
+                pitch,
+                roll,
+                rotationMatrix,
+                mLastSensorAccuracy,
+                timestamp
+            );
+        }
+
+        // The callback gets at most one reading per output interval
+        final CompassCallback callback = mCallback;
+        if (callback != null && isOutputDue(timestamp)) {
             // Convert radians to degrees and normalize to 0-360
             double heading = Math.toDegrees(azimuth);
             if (heading < 0) heading += 360;
@@ -43,13 +148,117 @@ public abstract class Compass {
             // Use the last known sensor accuracy
             double accuracy = mLastSensorAccuracy;
 
-            mCallback.onReading(
-                heading,
-                accuracy,
-                heading,
-                System.currentTimeMillis()
+            // A replayed trace is not this device's current heading
+            if (!mReplaying) {
+                LastReadingCache.update(
+                    getSource(),
+                    heading,
+                    accuracy,
+                    heading,
+                    timestamp
+                );
+            }
+
+            callback.onReading(heading, accuracy, heading, timestamp);
+        }
+    }
+
+    // Sensor time keeps the rate right for batched bursts, which are
+    // published back to back
+    private void onHeadingRate(final float azimuth, final long timestamp) {
+        if (mLastRateTimestamp != 0) {
+            // Timer fusion can republish before a newer sample arrives
+            if (timestamp <= mLastRateTimestamp) return;
+            double delta = azimuth - mLastRateAzimuth;
+            if (delta > Math.PI) delta -= 2 * Math.PI;
+            else if (delta < -Math.PI) delta += 2 * Math.PI;
+            onAngularRate(
+                Math.toDegrees(Math.abs(delta)) *
+                1e9 /
+                (timestamp - mLastRateTimestamp),
+                timestamp
             );
         }
+        mLastRateTimestamp = timestamp;
+        mLastRateAzimuth = azimuth;
+    }
+
+    // Feeds the adaptive rate controller, subclasses with a gyroscope report
+    // the measured angular velocity here as well. timestamp is the sample's
+    // sensor time, on the elapsedRealtime clock.
+    protected void onAngularRate(final double degPerSec, final long timestamp) {
+        if (!mAdaptiveRate) return;
+        final int before = getSamplingDelay();
+        if (
+            mRateController.update(degPerSec, timestamp / 1000000L) &&
+            getSamplingDelay() != before &&
+            mStarted
+        ) {
+            SensorThread.getHandler().post(mRateChangeTask);
+        }
+    }
+
+    private final Runnable mRateChangeTask = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (Compass.this) {
+                if (mStarted) onSensorRateChanged();
+            }
+        }
+    };
+
+    // Re-registers the sensors at the current getSamplingDelay() and
+    // batching latency. Runs on the sensor thread with the compass locked, so
+    // it must not call into SensorHub
+    protected void onSensorRateChanged() {
+        onStop();
+        onStart();
+    }
+
+    // A running compass keeps its callback and listener when reconfigured,
+    // only the sensors are registered again, and only if their sampling
+    // delay or batching latency changed
+    private void reregisterIfChanged(
+        final int samplingDelayBefore,
+        final int maxReportLatencyUsBefore
+    ) {
+        if (
+            mStarted &&
+            (getSamplingDelay() != samplingDelayBefore ||
+                mMaxReportLatencyUs != maxReportLatencyUsBefore)
+        ) {
+            // Once for several settings changed in a row
+            SensorThread.getHandler().removeCallbacks(mRateChangeTask);
+            SensorThread.getHandler().post(mRateChangeTask);
+        }
+    }
+
+    // Drops to SENSOR_DELAY_NORMAL while the device is still and returns to
+    // the configured delay as soon as it rotates
+    public synchronized void setAdaptiveRate(boolean adaptiveRate) {
+        final int before = getSamplingDelay();
+        if (adaptiveRate && !mAdaptiveRate && mStarted) {
+            mRateController.reset(SystemClock.elapsedRealtime());
+        }
+        mAdaptiveRate = adaptiveRate;
+        reregisterIfChanged(before, mMaxReportLatencyUs);
+    }
+
+    public boolean isAdaptiveRate() {
+        return mAdaptiveRate;
+    }
+
+    // [current sampling period us, current tier (0 fast, 1 slow),
+    //  time in fast tier ms, time in slow tier ms, tier switches]
+    public long[] getSensorRateStats() {
+        final long now = SystemClock.elapsedRealtime();
+        return new long[] {
+            sensorDelayToMicros(getSamplingDelay()),
+            mRateController.getTier(),
+            mRateController.getTimeInTier(AdaptiveRateController.TIER_FAST, now),
+            mRateController.getTimeInTier(AdaptiveRateController.TIER_SLOW, now),
+            mRateController.getSwitchCount(),
+        };
     }
 
     public float[] getLastOrientation() {
@@ -58,12 +267,160 @@ public abstract class Compass {
             : new float[] { 0, 0, 0 };
     }
 
-    public void setSensorDelay(int sensorDelay) {
+    // Allocation-free variant for callers that read the orientation per sample
+    public void getLastOrientation(final float[] out) {
+        System.arraycopy(mLastOrientation, 0, out, 0, 3);
+    }
+
+    // Lets the sensor hub hold events in its FIFO for up to this long, so the
+    // application processor wakes once per burst instead of once per event
+    public synchronized void setMaxReportLatency(int maxReportLatencyUs) {
+        final int before = mMaxReportLatencyUs;
+        mMaxReportLatencyUs = Math.max(0, maxReportLatencyUs);
+        reregisterIfChanged(getSamplingDelay(), before);
+    }
+
+    // How often the callback needs a reading. It gets at most one per
+    // interval, while an OrientationListener gets every orientation at the
+    // sensor rate.
+    public void setOutputInterval(long outputIntervalUs) {
+        mOutputIntervalUs = Math.max(0, outputIntervalUs);
+    }
+
+    // Whether a sample at timestamp has to be turned into an orientation.
+    // Compasses that can compute one per sample skip the rest, so samples
+    // nobody reads cost nothing.
+    protected boolean isOrientationNeeded(final long timestamp) {
+        return mOrientationListener != null || !isBeforeNextOutput(timestamp);
+    }
+
+    private boolean isBeforeNextOutput(final long timestamp) {
+        final long interval = mOutputIntervalUs * 1000L;
+        return (
+            timestamp < mNextOutput - interval / 4 &&
+            // Scheduled for a longer interval, the shorter one applies now
+            mNextOutput - timestamp <= 2 * interval
+        );
+    }
+
+    // Decimates the callback to the output interval on sensor time. A
+    // sample up to a quarter interval early is taken, so a sample rate
+    // matching the interval loses nothing to jitter, and the next output is
+    // due one interval after this one was, so outputs average exactly one
+    // per interval. After a gap the schedule restarts instead of catching up.
+    private boolean isOutputDue(final long timestamp) {
+        if (isBeforeNextOutput(timestamp)) return false;
+        final long interval = mOutputIntervalUs * 1000L;
+        mNextOutput = Math.abs(timestamp - mNextOutput) > interval / 4
+            ? timestamp + interval
+            : mNextOutput + interval;
+        return true;
+    }
+
+    // With batching, publish only the newest orientation of every burst
+    public void setDeliverLatestOnly(boolean deliverLatestOnly) {
+        mDeliverLatestOnly = deliverLatestOnly;
+    }
+
+    protected boolean isBatching() {
+        return mMaxReportLatencyUs > 0;
+    }
+
+    protected void beginBurst() {
+        mInBurst = mDeliverLatestOnly;
+    }
+
+    protected void endBurst() {
+        mInBurst = false;
+        if (mHasPending) {
+            mHasPending = false;
+            publishOrientation(
+                mPendingOrientation[0],
+                mPendingOrientation[1],
+                mPendingOrientation[2],
+                mPendingRotationMatrix,
+                mPendingTimestamp
+            );
+        }
+    }
+
+    // Registers on the shared sensor thread with the configured rate and batching
+    protected void registerListener(
+        final SensorManager sensorManager,
+        final SensorEventListener listener,
+        final Sensor sensor
+    ) {
+        sensorManager.registerListener(
+            listener,
+            sensor,
+            getSamplingDelay(),
+            mMaxReportLatencyUs,
+            SensorThread.getHandler()
+        );
+    }
+
+    // Reads the sensors through a SensorDirectChannel where the device
+    // supports it, see DirectSensorSource. Ignored while batching, which
+    // needs the FIFO of a listener registration.
+    public void setDirectChannel(boolean directChannel) {
+        mDirectChannel = directChannel;
+    }
+
+    public boolean isDirectChannel() {
+        return mDirectChannel;
+    }
+
+    // Starts the direct channel if enabled and supported, otherwise returns
+    // false and the caller registers its listener
+    protected boolean startDirectChannel(
+        final DirectSensorSource source,
+        final Sensor... sensors
+    ) {
+        if (!mDirectChannel || isBatching()) return false;
+        return source.start(sensors, sensorDelayToMicros(getSamplingDelay()));
+    }
+
+    public synchronized void setSensorDelay(int sensorDelay) {
+        final int before = getSamplingDelay();
         mSensorDelay = sensorDelay;
+        reregisterIfChanged(before, mMaxReportLatencyUs);
+    }
+
+    // Samples at this period in microseconds instead of the sensor delay,
+    // a negative period goes back to the sensor delay
+    public synchronized void setSamplingPeriodUs(int samplingPeriodUs) {
+        final int before = getSamplingDelay();
+        mSamplingPeriodUs = samplingPeriodUs;
+        reregisterIfChanged(before, mMaxReportLatencyUs);
+    }
+
+    // The configured rate as registerListener takes it, a SENSOR_DELAY_*
+    // constant or a period in microseconds. A period of a few microseconds
+    // would read as a constant, and is the fastest rate anyway.
+    protected int getConfiguredDelay() {
+        if (mSamplingPeriodUs < 0) return mSensorDelay;
+        return mSamplingPeriodUs <= SensorManager.SENSOR_DELAY_NORMAL
+            ? SensorManager.SENSOR_DELAY_FASTEST
+            : mSamplingPeriodUs;
     }
 
     protected int getSensorDelay() {
-        return mSensorDelay;
+        final int delay = getConfiguredDelay();
+        if (
+            mAdaptiveRate &&
+            mRateController.getTier() == AdaptiveRateController.TIER_SLOW &&
+            sensorDelayToMicros(delay) <
+            sensorDelayToMicros(SensorManager.SENSOR_DELAY_NORMAL)
+        ) {
+            return SensorManager.SENSOR_DELAY_NORMAL;
+        }
+        return delay;
+    }
+
+    // The delay the sensors are registered at, getSensorDelay() unless a
+    // compass needs a faster rate than it outputs
+    protected int getSamplingDelay() {
+        return getSensorDelay();
     }
 
     // Convert string sensorDelay to Android constant
@@ -85,22 +442,197 @@ public abstract class Compass {
         }
     }
 
-    public void setCallback(final CompassCallback callback) {
+    // Sampling period in microseconds for a SENSOR_DELAY_* constant or a raw period
+    public static long sensorDelayToMicros(int sensorDelay) {
+        switch (sensorDelay) {
+            case SensorManager.SENSOR_DELAY_FASTEST:
+                return 0;
+            case SensorManager.SENSOR_DELAY_GAME:
+                return 20000;
+            case SensorManager.SENSOR_DELAY_UI:
+                return 66667;
+            case SensorManager.SENSOR_DELAY_NORMAL:
+                return 200000;
+            default:
+                return sensorDelay;
+        }
+    }
+
+    // Converts an elapsedRealtimeNanos timestamp to wall-clock milliseconds.
+    // Readings carry sensor time through the whole pipeline and are only
+    // converted when they leave it, so clock changes never affect staleness
+    // or throttling.
+    public static long toWallClockMillis(final long elapsedRealtimeNanos) {
+        return (
+            System.currentTimeMillis() -
+            (SystemClock.elapsedRealtimeNanos() - elapsedRealtimeNanos) / 1000000L
+        );
+    }
+
+    // Trace replay, see SensorTraceReplay. The callback receives readings
+    // without the sensors being started. Time is the sensor time of the
+    // replayed samples throughout, the wall clock is never read.
+    void startReplay(
+        final CompassCallback callback,
+        final OrientationListener listener
+    ) {
         mCallback = callback;
-        if (callback != null && !mStarted) {
-            onStart();
-            mStarted = true;
-        } else if (callback == null && mStarted) {
-            onStop();
-            mStarted = false;
+        mOrientationListener = listener;
+        mReplaying = true;
+        mReplayClockStarted = false;
+    }
+
+    void stopReplay() {
+        onStopReplay();
+        mCallback = null;
+        mOrientationListener = null;
+        mReplaying = false;
+    }
+
+    boolean isReplaying() {
+        return mReplaying;
+    }
+
+    // A recorded event, entering where live events do after batching
+    void replaySample(
+        final int type,
+        final long timestamp,
+        final float[] values
+    ) {
+        if (!mReplayClockStarted) {
+            mReplayClockStarted = true;
+            mRateController.reset(timestamp / 1000000L);
+            mLastRateTimestamp = 0;
+            mNextOutput = 0;
+            onStartReplay(timestamp);
+        }
+        onReplaySample(type, timestamp, values);
+    }
+
+    void replayAccuracy(final int type, final int accuracy) {
+        onReplayAccuracy(type, accuracy);
+    }
+
+    // Called with the time of the first replayed sample, where a live start
+    // would have started the sensors
+    protected void onStartReplay(final long timestamp) {}
+
+    protected void onStopReplay() {}
+
+    protected void onReplaySample(
+        final int type,
+        final long timestamp,
+        final float[] values
+    ) {}
+
+    protected void onReplayAccuracy(final int type, final int accuracy) {
+        onSensorAccuracyChanged(accuracy);
+    }
+
+    // Called first for every live event: counts it, records how long it took
+    // to arrive and hands it to the trace recorder, if one is running
+    protected void ingestEvent(final SensorEvent event) {
+        // Batched events are recorded once SensorBatch has put them in
+        // timestamp order, the order they are processed in
+        ingest(
+            event.sensor.getType(),
+            event.timestamp,
+            event.values,
+            !isBatching()
+        );
+    }
+
+    // The same for samples that do not arrive as a SensorEvent
+    protected void ingestSample(
+        final int type,
+        final long timestamp,
+        final float[] values
+    ) {
+        ingest(type, timestamp, values, true);
+    }
+
+    private void ingest(
+        final int type,
+        final long timestamp,
+        final float[] values,
+        final boolean record
+    ) {
+        final long now = SystemClock.elapsedRealtimeNanos();
+        switch (type) {
+            case Sensor.TYPE_ACCELEROMETER:
+                mMetrics.count(PipelineMetrics.RECEIVED_ACCELEROMETER);
+                break;
+            case Sensor.TYPE_MAGNETIC_FIELD:
+            case Sensor.TYPE_MAGNETIC_FIELD_UNCALIBRATED:
+                mMetrics.count(PipelineMetrics.RECEIVED_MAGNETOMETER);
+                break;
+            case Sensor.TYPE_GYROSCOPE:
+                mMetrics.count(PipelineMetrics.RECEIVED_GYROSCOPE);
+                break;
+            default:
+                mMetrics.count(PipelineMetrics.RECEIVED_OTHER);
+                break;
         }
+        mMetrics.record(PipelineMetrics.STAGE_INGEST, now - timestamp);
+        mIngestNanos = now;
+        if (record) SensorTraceRecorder.recordSample(type, timestamp, values);
+    }
+
+    protected void ingestAccuracy(final Sensor sensor, final int accuracy) {
+        mMetrics.count(PipelineMetrics.ACCURACY_CHANGES);
+        SensorTraceRecorder.recordAccuracy(sensor.getType(), accuracy);
     }
 
-    public void stop() {
+    // Starts the fusion latency clock for work no event triggered, like a timer tick
+    protected void beginProcessing() {
+        mIngestNanos = SystemClock.elapsedRealtimeNanos();
+    }
+
+    // Adds this compass's counters and histograms to a PipelineMetrics snapshot
+    public void addMetricsTo(final long[] snapshot) {
+        mMetrics.addTo(snapshot);
+    }
+
+    public synchronized void setCallback(final CompassCallback callback) {
+        mCallback = callback;
+        updateStarted();
+    }
+
+    // Receives every published orientation, see OrientationListener. The
+    // compass runs while it has a callback, a listener or both.
+    public synchronized void setOrientationListener(
+        final OrientationListener listener
+    ) {
+        mOrientationListener = listener;
+        updateStarted();
+    }
+
+    public synchronized void stop() {
         if (mStarted) {
-            onStop();
-            mStarted = false;
+            stopSensors();
             mCallback = null;
+            mOrientationListener = null;
+        }
+    }
+
+    private void updateStarted() {
+        final boolean wanted =
+            mCallback != null || mOrientationListener != null;
+        if (wanted && !mStarted) {
+            mRateController.reset(SystemClock.elapsedRealtime());
+            mLastRateTimestamp = 0;
+            mNextOutput = 0;
+            onStart();
+            mStarted = true;
+        } else if (!wanted && mStarted) {
+            stopSensors();
         }
     }
+
+    private void stopSensors() {
+        SensorThread.getHandler().removeCallbacks(mRateChangeTask);
+        onStop();
+        mRateController.pause(SystemClock.elapsedRealtime());
+        mStarted = false;
+    }
 }
@@ -0,0 +1,11 @@
+package org.nativescript.compass;
+
+// Delivers readings N at a time in one packed array to cut bridge crossings.
+// Row i starts at readings[i * STRIDE]: heading, accuracy, magneticHeading,
+// timestamp, pitch, roll. The array is reused, copy it before returning.
+public interface CompassBatchCallback {
+    int STRIDE = 6;
+
+    void onReadings(double[] readings, int count);
+    void onError(String error);
+}
@@ -1,5 +1,7 @@
 package org.nativescript.compass;
 
+// Callbacks set on a Compass or SensorHub receive the sensor timestamp in
+// elapsedRealtimeNanos; CompassHelper delivers wall-clock milliseconds.
 public interface CompassCallback {
     void onReading(
         double heading,
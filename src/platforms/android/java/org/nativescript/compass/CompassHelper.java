@@ -3,11 +3,34 @@ package org.nativescript.compass;
 import android.content.Context;
 import android.hardware.Sensor;
 import android.hardware.SensorManager;
-import java.util.Timer;
-import java.util.TimerTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class CompassHelper {
 
+    private static final long READING_TIMEOUT_MS = 3000;
+    private static final long STALE_READING_MS = 500;
+    // Bounds of the sampling period sensorDelay "auto" picks
+    private static final long MIN_AUTO_PERIOD_US = 5000;
+    private static final long MAX_AUTO_PERIOD_US = 200000;
+
+    // One lazily started thread runs every throttle and timeout task
+    private static ScheduledThreadPoolExecutor sScheduler = null;
+
+    // Declination at the last known location, NaN until setLocation
+    private static final DeclinationCache sDeclinations = new DeclinationCache(
+        32
+    );
+    private static volatile double sDeclination = Double.NaN;
+
     // Main CompassHelper class
     private final Context mContext;
     private final double mMinChangeThreshold;
@@ -15,18 +38,52 @@ public class CompassHelper {
     private final double mFilter;
     private final boolean mUseSensorFusion;
     private final int mSensorDelay; // Converted from string to int constant
+    private final boolean mAutoSensorDelay; // Derived from the output needs
     private final CompassCallback mUserCallback;
+    private String mSource = null; // null = decided by useSensorFusion
+    private String mFusionEngine = null; // Default engine chosen by GyroCompass
+    private int mFusionDecimation = 0; // 0 = GyroCompass fusion timer
+    private long mMaxReportLatencyMs = 0; // 0 = no sensor batching
+    private boolean mDeliverLatestOnly = false;
+    private boolean mAdaptiveRate = false;
+    private boolean mMotionGate = false;
+    private long mMagDutyIntervalMs = 0; // 0 = magnetometer always on
+    private long mMagDutyBurstMs = 1000;
+    private ReadingBatcher mBatcher = null;
+    private HeadingHistory mHistory = null;
+    private OrientationListener mOrientationListener = null;
+    private boolean mTrueHeading = false;
+    private boolean mCalibration = false;
+    private boolean mDirectChannel = false;
+    // Attitude of the reading being processed, sensor thread only
+    private float mPitch = 0;
+    private float mRoll = 0;
+    private volatile long mLastCheckTime = 0;
+    private final AtomicBoolean mCheckPending = new AtomicBoolean(false);
 
-    private Compass mCompass;
+    private volatile SensorHub.Subscription mSubscription;
     private double mLastHeading = 0;
-    private long mLastCallbackTime = 0;
-    private double mFilteredHeading = Double.NaN;
+    private double mFilteredHeading = Double.NaN; // Last chain output, sensor thread only
+    private HeadingFilter[] mFilters = new HeadingFilter[0]; // Empty = EMA with mFilter
+    private HeadingFilter[] mActiveFilters = new HeadingFilter[0];
 
     // Timer-based throttling
-    private Timer mThrottleTimer;
-    private double mLatestAccuracy = 0;
-    private double mLatestMagneticHeading = 0;
-    private long mLatestTimestamp = 0;
+    private ScheduledFuture<?> mThrottleTask;
+    // Latest filtered reading, written by the sensor thread and read by the checks
+    private final ReadingSnapshot mLatest = new ReadingSnapshot();
+    private final double[] mCheckScratch = new double[3];
+    private long mLastCheckedTimestamp = 0;
+    // Filter stage on the sensor thread, the checks on the scheduler thread,
+    // delivery on the main looper
+    private final PipelineMetrics mMetrics = new PipelineMetrics();
+    // Readings and errors reach the user on the main looper
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Delivery mDelivery = new Delivery();
+    // See replay(), its clocks run on the trace's sensor time
+    private volatile boolean mReplaying = false;
+    private volatile long mReplayNanos = 0;
+    private long mReplayNextCheck = 0; // Next throttle timer tick
+    private long mReplayDeferredCheck = 0; // 0 = none pending
 
     public CompassHelper(
         Context context,
@@ -43,9 +100,253 @@ public class CompassHelper {
         mFilter = filter;
         mUseSensorFusion = useSensorFusion;
         mSensorDelay = Compass.sensorDelayFromString(sensorDelayString);
+        mAutoSensorDelay = "auto".equalsIgnoreCase(sensorDelayString);
         mUserCallback = callback;
     }
 
+    // Selects the compass backend: "hardware" (rotation vector fused on the
+    // sensor hub), "hardware_low_power" (geomagnetic rotation vector),
+    // "software" (GyroCompass) or "raw" (AccMagCompass). Call before startUpdating
+    public void setSource(String source) {
+        mSource = source;
+    }
+
+    // Selects the GyroCompass fusion engine ("quaternion" or "euler"), call before startUpdating
+    public void setFusionEngine(String fusionEngine) {
+        mFusionEngine = fusionEngine;
+    }
+
+    // Fuse on every Nth gyro sample instead of the fixed-rate timer, call before startUpdating
+    public void setFusionDecimation(int samples) {
+        mFusionDecimation = samples;
+    }
+
+    // Lets the sensors batch events in their hardware FIFO for up to
+    // maxReportLatencyMs, call before startUpdating. Readings are then checked
+    // as each burst arrives instead of on the throttle timer, so the CPU can
+    // sleep between bursts.
+    public void setBatching(long maxReportLatencyMs, boolean deliverLatestOnly) {
+        mMaxReportLatencyMs = Math.max(0, maxReportLatencyMs);
+        mDeliverLatestOnly = deliverLatestOnly;
+    }
+
+    // Lowers the sensor rate while the device is still and restores it as
+    // soon as it rotates, call before startUpdating
+    public void setAdaptiveRate(boolean adaptiveRate) {
+        mAdaptiveRate = adaptiveRate;
+    }
+
+    // [current sampling period us, current tier (0 fast, 1 slow),
+    //  time in fast tier ms, time in slow tier ms, tier switches],
+    // or null when not updating
+    public long[] getSensorRateStats() {
+        final SensorHub.Subscription subscription = mSubscription;
+        return subscription != null
+            ? subscription.getCompass().getSensorRateStats()
+            : null;
+    }
+
+    // Suspends the magnetometer and sensor fusion while the device is still,
+    // holding the last heading. Only used by the "software" source, call
+    // before startUpdating
+    public void setMotionGate(boolean motionGate) {
+        mMotionGate = motionGate;
+    }
+
+    // [suspended (0/1), times suspended, total suspended ms], or null when
+    // not updating or the source has no motion gate
+    public long[] getMotionGateStats() {
+        final SensorHub.Subscription subscription = mSubscription;
+        if (subscription == null) return null;
+        final Compass compass = subscription.getCompass();
+        return compass instanceof GyroCompass
+            ? ((GyroCompass) compass).getMotionGateStats()
+            : null;
+    }
+
+    // Delivers every reading, packed batchSize rows at a time, to
+    // callback instead of the throttled single-reading callback. A partial
+    // batch is flushed after maxDelayMs (0 = only when full) and on
+    // stopUpdating. minChangeThreshold and updateThrottle do not apply.
+    // Call before startUpdating, a null callback turns it off.
+    public void setBatchDelivery(
+        int batchSize,
+        long maxDelayMs,
+        CompassBatchCallback callback
+    ) {
+        mBatcher = callback != null
+            ? new ReadingBatcher(
+                callback,
+                SensorThread.getHandler(),
+                mMainHandler,
+                mMetrics,
+                batchSize,
+                maxDelayMs
+            )
+            : null;
+    }
+
+    // Keeps the last `capacity` raw readings with their pitch and roll,
+    // recorded before the filter chain so readings it drops are kept too, a
+    // circular mean/variance over statsWindowMs and the rate of turn over
+    // rateWindowMs. Call before startUpdating, capacity 0 turns it off.
+    public void setHistory(int capacity, long statsWindowMs, long rateWindowMs) {
+        mHistory = capacity > 0
+            ? new HeadingHistory(capacity, statsWindowMs, rateWindowMs)
+            : null;
+    }
+
+    // [circular mean degrees, circular variance 0-1, rate of turn
+    //  degrees/s, samples in the stats window], or null without history
+    public double[] getHeadingStats() {
+        final HeadingHistory history = mHistory;
+        final double[] stats = new double[4];
+        return history != null && history.getStats(stats) ? stats : null;
+    }
+
+    // [wall-clock timestamp, heading, pitch, roll] of the reading `ago`
+    // samples before the newest one, or null when it is not in the history
+    public double[] getHistorySample(int ago) {
+        final HeadingHistory history = mHistory;
+        final double[] sample = new double[4];
+        if (history == null || !history.getSample(ago, sample)) return null;
+        sample[0] = Compass.toWallClockMillis((long) sample[0] * 1000000L);
+        return sample;
+    }
+
+    // Receives the full attitude of every orientation the compass publishes,
+    // on the sensor thread and before filtering or throttling. Call before
+    // startUpdating, null turns it off.
+    public void setOrientationListener(OrientationListener listener) {
+        mOrientationListener = listener;
+    }
+
+    // Reports true heading once setLocation has been called, magneticHeading
+    // stays magnetic. Call before startUpdating.
+    public void setTrueHeading(boolean trueHeading) {
+        mTrueHeading = trueHeading;
+    }
+
+    // Location used for the declination of every running compass, looked up
+    // once here so each reading only adds it. timeMs 0 means now.
+    public static void setLocation(
+        double latitude,
+        double longitude,
+        double altitudeM,
+        long timeMs
+    ) {
+        sDeclination = sDeclinations.getDeclination(
+            latitude,
+            longitude,
+            altitudeM,
+            timeMs > 0 ? timeMs : System.currentTimeMillis()
+        );
+    }
+
+    // Degrees east of true north at the last location, NaN before setLocation
+    public static double getDeclination() {
+        return sDeclination;
+    }
+
+    // Calibrates the raw magnetometer in the plugin, fitting hard- and
+    // soft-iron distortion while the device is turned through all axes and
+    // keeping the fit between sessions. Used by the "software" and "raw"
+    // sources when the device has an uncalibrated magnetometer; call before
+    // startUpdating.
+    public void setMagneticCalibration(boolean calibrate) {
+        mCalibration = calibrate;
+    }
+
+    // Reads the sensors through a SensorDirectChannel shared memory ring
+    // instead of SensorEvents where the device supports it. Meant for the
+    // "game" and "fastest" delays, the slowest direct rate is about 50 Hz.
+    // Not used with batching; call before startUpdating.
+    public void setDirectChannel(boolean directChannel) {
+        mDirectChannel = directChannel;
+    }
+
+    // [fitted (0/1), offset x, y, z uT, scale x, y, z, field radius uT,
+    //  residual uT, fits accepted], or null when not calibrating
+    public double[] getMagneticCalibration() {
+        final SensorHub.Subscription subscription = mSubscription;
+        if (subscription == null) return null;
+        final Compass compass = subscription.getCompass();
+        if (compass instanceof AccMagCompass) {
+            return ((AccMagCompass) compass).getCalibrationState();
+        }
+        return compass instanceof GyroCompass
+            ? ((GyroCompass) compass).getCalibrationState()
+            : null;
+    }
+
+    // Forgets the stored magnetometer calibration
+    public static void resetMagneticCalibration(Context context) {
+        AccMagCompass.clearStoredCalibration(context);
+    }
+
+    // Records every raw event reaching the compasses to a binary trace file
+    // for SensorTraceReplay, replacing any running recording
+    public static boolean startSensorTrace(String path) {
+        try {
+            SensorTraceRecorder.start(new File(path));
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // [records written, records dropped], or null when nothing was recording
+    public static long[] stopSensorTrace() {
+        return SensorTraceRecorder.stop();
+    }
+
+    // Appends a stage to the heading filter chain, which then replaces the
+    // default EMA built from `filter`. Call before startUpdating.
+    public void addFilter(HeadingFilter filter) {
+        final HeadingFilter[] next = new HeadingFilter[mFilters.length + 1];
+        System.arraycopy(mFilters, 0, next, 0, mFilters.length);
+        next[mFilters.length] = filter;
+        mFilters = next;
+    }
+
+    // Back to the default EMA chain, call before startUpdating
+    public void clearFilters() {
+        mFilters = new HeadingFilter[0];
+    }
+
+    // Runs the magnetometer only in burstMs bursts every intervalMs and dead
+    // reckons with the bias-corrected gyro in between. Only used by the
+    // "software" source, call before startUpdating. 0 turns it off.
+    public void setMagDutyCycle(long intervalMs, long burstMs) {
+        mMagDutyIntervalMs = Math.max(0, intervalMs);
+        mMagDutyBurstMs = burstMs;
+    }
+
+    // [dead reckoning (0/1), drift found by the last correction degrees,
+    //  dead-reckoning time before it ms, gyro bias x, y, z rad/s, bias
+    //  updates, corrections], or null when not updating or not "software"
+    public double[] getDutyCycleStats() {
+        final SensorHub.Subscription subscription = mSubscription;
+        if (subscription == null) return null;
+        final Compass compass = subscription.getCompass();
+        return compass instanceof GyroCompass
+            ? ((GyroCompass) compass).getDutyCycleStats()
+            : null;
+    }
+
+    // Counters and latency histograms of the whole pipeline, laid out as
+    // described by PipelineMetrics. Counting is always on; poll twice and
+    // diff for rates.
+    public long[] getMetrics() {
+        final long[] snapshot = new long[PipelineMetrics.SNAPSHOT_SIZE];
+        mMetrics.addTo(snapshot);
+        final SensorHub.Subscription subscription = mSubscription;
+        if (subscription != null) {
+            subscription.getCompass().addMetricsTo(snapshot);
+        }
+        return snapshot;
+    }
+
     public static boolean isCompassAvailable(Context context) {
         SensorManager sensorManager = (SensorManager) context.getSystemService(
             Context.SENSOR_SERVICE
@@ -61,42 +362,35 @@ public class CompassHelper {
 
     public boolean startUpdating() {
         try {
-            if (mUseSensorFusion) {
-                mCompass = Compass.getDefaultCompass(mContext);
-            } else {
-                mCompass = new AccMagCompass(mContext);
-            }
-
-            // Set sensor delay
-            mCompass.setSensorDelay(mSensorDelay);
-
-            mCompass.setCallback(
-                new CompassCallback() {
-                    @Override
-                    public void onReading(
-                        double heading,
-                        double accuracy,
-                        double magneticHeading,
-                        long timestamp
-                    ) {
-                        processReading(
-                            heading,
-                            accuracy,
-                            magneticHeading,
-                            timestamp
-                        );
-                    }
-
-                    @Override
-                    public void onError(String error) {
-                        if (mUserCallback != null) {
-                            mUserCallback.onError(error);
-                        }
-                    }
-                }
+            prepare();
+            final long outputPeriodUs = getOutputPeriodUs();
+            mSubscription = subscribe(
+                mContext,
+                mUseSensorFusion,
+                mSource,
+                mFusionEngine,
+                mFusionDecimation,
+                mMotionGate,
+                mMagDutyIntervalMs,
+                mMagDutyBurstMs,
+                mCalibration,
+                mDirectChannel,
+                new SensorHub.Request()
+                    .setSensorDelay(mSensorDelay)
+                    .setSamplingPeriodUs(
+                        mAutoSensorDelay ? (int) outputPeriodUs : -1
+                    )
+                    .setMaxReportLatency((int) (mMaxReportLatencyMs * 1000))
+                    .setOutputInterval(outputPeriodUs)
+                    .setDeliverLatestOnly(mDeliverLatestOnly)
+                    .setAdaptiveRate(mAdaptiveRate),
+                getOrientationInput(),
+                mCompassInput
             );
 
-            startThrottleTimer();
+            if (mMaxReportLatencyMs == 0 && mBatcher == null) {
+                startThrottleTimer();
+            }
 
             return true;
         } catch (Exception e) {
@@ -111,77 +405,583 @@ public class CompassHelper {
 
     public boolean stopUpdating() {
         try {
-            if (mCompass != null) {
-                mCompass.stop();
-                mCompass = null;
+            if (mSubscription != null) {
+                mSubscription.close();
+                mSubscription = null;
             }
+            if (mBatcher != null) mBatcher.flushLater();
             stopThrottleTimer();
+            mDelivery.cancel();
             return true;
         } catch (Exception e) {
             return false;
         }
     }
 
+    // Runs a SensorTraceRecorder trace through the compass, filter chain,
+    // minChangeThreshold and updateThrottle that startUpdating would use, on
+    // the calling thread and as fast as it decodes. The throttle timer, the
+    // staleness check and the compass itself run on the trace's sensor time,
+    // so the readings only depend on the trace and these settings. Readings
+    // are delivered on the calling thread with timestamps in sensor time
+    // milliseconds. Not while updating; returns the number of records.
+    public long replay(File trace) throws IOException {
+        prepare();
+        mLastHeading = 0;
+        mLastCheckedTimestamp = 0;
+        mLastCheckTime = 0;
+        mCheckPending.set(false);
+        mLatest.write(Double.NaN, 0, 0, 0);
+        mReplayNextCheck = 0;
+        mReplayDeferredCheck = 0;
+
+        final long outputPeriodUs = getOutputPeriodUs();
+        final Context context = mContext.getApplicationContext();
+        final Compass compass = createCompass(
+            context,
+            resolveSource(context, mUseSensorFusion, mSource),
+            mFusionEngine,
+            mFusionDecimation,
+            mMotionGate,
+            mMagDutyIntervalMs,
+            mMagDutyBurstMs,
+            mCalibration,
+            false,
+            true
+        );
+        compass.setSensorDelay(mSensorDelay);
+        compass.setSamplingPeriodUs(
+            mAutoSensorDelay ? (int) outputPeriodUs : -1
+        );
+        compass.setMaxReportLatency((int) (mMaxReportLatencyMs * 1000));
+        compass.setOutputInterval(outputPeriodUs);
+        compass.setDeliverLatestOnly(mDeliverLatestOnly);
+        compass.setAdaptiveRate(mAdaptiveRate);
+
+        final ReadingBatcher batcher = mBatcher;
+        if (batcher != null) batcher.setSynchronous(true);
+        mReplaying = true;
+        compass.startReplay(mCompassInput, getOrientationInput());
+        try {
+            final long records = SensorTraceReplay.read(
+                trace,
+                new SensorTraceReplay.Sink() {
+                    @Override
+                    public void onSample(
+                        int sensorType,
+                        long timestamp,
+                        float[] values
+                    ) {
+                        advanceReplay(timestamp);
+                        compass.replaySample(sensorType, timestamp, values);
+                    }
+
+                    @Override
+                    public void onAccuracy(
+                        int sensorType,
+                        long timestamp,
+                        int accuracy
+                    ) {
+                        compass.replayAccuracy(sensorType, accuracy);
+                    }
+                }
+            );
+            // Let the throttle catch up with the last reading, as it would live
+            if (mReplayNanos != 0) {
+                advanceReplay(mReplayNanos + getThrottleNanos());
+            }
+            if (batcher != null) batcher.flush();
+            return records;
+        } finally {
+            compass.stopReplay();
+            mReplaying = false;
+            mReplayNanos = 0;
+            if (batcher != null) batcher.setSynchronous(false);
+        }
+    }
+
+    // Runs the throttle timer ticks and deferred checks due by timestamp
+    private void advanceReplay(final long timestamp) {
+        if (mMaxReportLatencyMs == 0 && mBatcher == null) {
+            if (mReplayNextCheck == 0) {
+                mReplayNextCheck = timestamp + getThrottleNanos();
+            }
+            while (timestamp >= mReplayNextCheck) {
+                mReplayNanos = mReplayNextCheck;
+                checkAndSendReading();
+                mReplayNextCheck += getThrottleNanos();
+            }
+        }
+        if (mReplayDeferredCheck != 0 && timestamp >= mReplayDeferredCheck) {
+            mReplayNanos = mReplayDeferredCheck;
+            mReplayDeferredCheck = 0;
+            mDeferredCheck.run();
+        }
+        mReplayNanos = timestamp;
+    }
+
+    private long getThrottleNanos() {
+        return Math.max(1, mUpdateThrottle) * 1000000L;
+    }
+
+    // The sensor clock, or the replayed sample time during replay()
+    private long elapsedRealtimeNanos() {
+        return mReplaying ? mReplayNanos : SystemClock.elapsedRealtimeNanos();
+    }
+
+    // Sensor time to the milliseconds handed to the user
+    private long toUserMillis(final long timestamp) {
+        return mReplaying
+            ? timestamp / 1000000L
+            : Compass.toWallClockMillis(timestamp);
+    }
+
+    private void prepare() {
+        if (mHistory != null) mHistory.clear();
+        mActiveFilters = mFilters.length > 0
+            ? mFilters
+            : new HeadingFilter[] { new EmaHeadingFilter(mFilter) };
+        for (HeadingFilter filter : mActiveFilters) filter.reset();
+        mFilteredHeading = Double.NaN;
+    }
+
+    // Only listen when something uses pitch and roll
+    private OrientationListener getOrientationInput() {
+        return mBatcher != null ||
+            mHistory != null ||
+            mOrientationListener != null
+            ? mOrientationInput
+            : null;
+    }
+
+    // Picks the compass implementation for a source option, falling back to
+    // what the device actually has
+    private static String resolveSource(
+        Context context,
+        boolean useSensorFusion,
+        String source
+    ) {
+        switch (source == null ? "auto" : source.toLowerCase()) {
+            case "hardware":
+                if (Compass.hasSensor(context, Sensor.TYPE_ROTATION_VECTOR)) {
+                    return "hardware";
+                }
+                return resolveSource(context, true, "software");
+            case "hardware_low_power":
+                if (
+                    Compass.hasSensor(
+                        context,
+                        Sensor.TYPE_GEOMAGNETIC_ROTATION_VECTOR
+                    )
+                ) {
+                    return "hardware_low_power";
+                }
+                return "raw";
+            case "software":
+                return Compass.hasGyroscope(context) ? "software" : "raw";
+            case "raw":
+                return "raw";
+            default:
+                return resolveSource(
+                    context,
+                    useSensorFusion,
+                    useSensorFusion ? "software" : "raw"
+                );
+        }
+    }
+
+    // Joins (or starts) the shared compass matching these settings
+    private static SensorHub.Subscription subscribe(
+        final Context context,
+        final boolean useSensorFusion,
+        final String source,
+        final String fusionEngine,
+        final int fusionDecimation,
+        final boolean motionGate,
+        final long magDutyIntervalMs,
+        final long magDutyBurstMs,
+        final boolean calibration,
+        final boolean directChannel,
+        final SensorHub.Request request,
+        final OrientationListener listener,
+        final CompassCallback callback
+    ) {
+        final SensorHub hub = SensorHub.getInstance(context);
+        final Context appContext = hub.getContext();
+
+        final String resolved = resolveSource(
+            appContext,
+            useSensorFusion,
+            source
+        );
+        final String engine = "euler".equalsIgnoreCase(fusionEngine)
+            ? "euler"
+            : "quaternion";
+        final String key;
+        switch (resolved) {
+            case "hardware":
+                key = "rotation_vector";
+                break;
+            case "hardware_low_power":
+                key = "geomagnetic_rotation_vector";
+                break;
+            case "software":
+                key =
+                    "gyro:" +
+                    engine +
+                    ":" +
+                    fusionDecimation +
+                    (motionGate ? ":gated" : "") +
+                    (magDutyIntervalMs > 0
+                        ? ":duty" + magDutyIntervalMs + "/" + magDutyBurstMs
+                        : "") +
+                    (calibration ? ":calibrated" : "");
+                break;
+            default:
+                key = calibration
+                    ? SensorHub.KEY_ACC_MAG_CALIBRATED
+                    : SensorHub.KEY_ACC_MAG;
+                break;
+        }
+        return hub.subscribe(
+            key + (directChannel ? SensorHub.KEY_DIRECT : ""),
+            new SensorHub.CompassFactory() {
+                @Override
+                public Compass create() {
+                    return createCompass(
+                        appContext,
+                        resolved,
+                        engine,
+                        fusionDecimation,
+                        motionGate,
+                        magDutyIntervalMs,
+                        magDutyBurstMs,
+                        calibration,
+                        directChannel,
+                        false
+                    );
+                }
+            },
+            request,
+            callback,
+            listener
+        );
+    }
+
+    // A compass for a resolved source. ownAccMag gives a GyroCompass its own
+    // accelerometer + magnetometer compass instead of the shared one, which
+    // a replay needs.
+    private static Compass createCompass(
+        final Context context,
+        final String source,
+        final String fusionEngine,
+        final int fusionDecimation,
+        final boolean motionGate,
+        final long magDutyIntervalMs,
+        final long magDutyBurstMs,
+        final boolean calibration,
+        final boolean directChannel,
+        final boolean ownAccMag
+    ) {
+        final Compass compass;
+        switch (source) {
+            case "hardware":
+                compass = new RotationVectorCompass(
+                    context,
+                    Sensor.TYPE_ROTATION_VECTOR
+                );
+                break;
+            case "hardware_low_power":
+                compass = new RotationVectorCompass(
+                    context,
+                    Sensor.TYPE_GEOMAGNETIC_ROTATION_VECTOR
+                );
+                break;
+            case "software":
+                final GyroCompass gyro = new GyroCompass(
+                    context,
+                    ownAccMag ? new AccMagCompass(context) : null
+                );
+                gyro.setFusionEngine(
+                    GyroCompass.fusionEngineFromString(fusionEngine)
+                );
+                gyro.setFusionDecimation(fusionDecimation);
+                gyro.setMotionGate(motionGate);
+                gyro.setMagDutyCycle(magDutyIntervalMs, magDutyBurstMs);
+                gyro.setCalibration(calibration);
+                compass = gyro;
+                break;
+            default:
+                final AccMagCompass accMag = new AccMagCompass(context);
+                accMag.setCalibration(calibration);
+                compass = accMag;
+                break;
+        }
+        compass.setDirectChannel(directChannel);
+        return compass;
+    }
+
+    // timestamp is the sensor time in elapsedRealtimeNanos, converted to wall
+    // clock only when the reading is handed to the user
     private void processReading(
         double rawHeading,
         double accuracy,
         double magneticHeading,
         long timestamp
     ) {
+        if (mTrueHeading) {
+            final double declination = sDeclination;
+            if (!Double.isNaN(declination)) {
+                rawHeading += declination;
+                if (rawHeading >= 360) rawHeading -= 360;
+                else if (rawHeading < 0) rawHeading += 360;
+            }
+        }
+
+        // Every raw sample, including those a filter stage drops
+        final HeadingHistory history = mHistory;
+        if (history != null) {
+            history.add(
+                timestamp / 1000000L,
+                rawHeading,
+                Math.toDegrees(mPitch),
+                Math.toDegrees(mRoll)
+            );
+        }
+
         // Apply filter and store latest data
-        mFilteredHeading = applyFilter(rawHeading);
-        mLatestAccuracy = accuracy;
-        mLatestMagneticHeading = magneticHeading;
-        mLatestTimestamp = timestamp;
+        final long filterStart = SystemClock.elapsedRealtimeNanos();
+        final double filtered = applyFilter(rawHeading, timestamp);
+        mMetrics.record(
+            PipelineMetrics.STAGE_FILTER,
+            SystemClock.elapsedRealtimeNanos() - filterStart
+        );
+        if (Double.isNaN(filtered)) {
+            mMetrics.count(PipelineMetrics.DROPPED_FILTER);
+            return;
+        }
+        mFilteredHeading = filtered;
+        mLatest.write(mFilteredHeading, accuracy, magneticHeading, timestamp);
+
+        final ReadingBatcher batcher = mBatcher;
+        if (batcher != null) {
+            batcher.add(
+                mFilteredHeading,
+                accuracy,
+                magneticHeading,
+                toUserMillis(timestamp),
+                Math.toDegrees(mPitch),
+                Math.toDegrees(mRoll)
+            );
+            return;
+        }
+
+        // Batched readings arrive in bursts, so one check per burst is
+        // scheduled instead of a timer waking the CPU. It runs on the
+        // scheduler like the timer, which keeps the checks off this thread.
+        if (
+            mMaxReportLatencyMs > 0 && mCheckPending.compareAndSet(false, true)
+        ) {
+            final long now = elapsedRealtimeNanos() / 1000000L;
+            // Checks the newest reading of the burst once the throttle allows
+            final long wait = Math.max(
+                0,
+                mLastCheckTime + mUpdateThrottle - now
+            );
+            if (!mReplaying) {
+                getScheduler().schedule(
+                    mDeferredCheck,
+                    wait,
+                    TimeUnit.MILLISECONDS
+                );
+            } else if (wait == 0) {
+                mDeferredCheck.run();
+            } else {
+                mReplayDeferredCheck = (now + wait) * 1000000L;
+            }
+        }
     }
 
-    private double applyFilter(double rawHeading) {
-        if (Double.isNaN(mFilteredHeading)) {
-            mFilteredHeading = rawHeading;
-            return rawHeading;
+    // Compasses report the attitude right before the reading itself, so
+    // pitch and roll belong to the sample processReading gets next
+    private final OrientationListener mOrientationInput =
+        new OrientationListener() {
+            @Override
+            public void onOrientation(
+                float azimuth,
+                float pitch,
+                float roll,
+                float[] rotationMatrix,
+                double accuracy,
+                long timestamp
+            ) {
+                mPitch = pitch;
+                mRoll = roll;
+                final OrientationListener listener = mOrientationListener;
+                if (listener != null) {
+                    listener.onOrientation(
+                        azimuth,
+                        pitch,
+                        roll,
+                        rotationMatrix,
+                        accuracy,
+                        timestamp
+                    );
+                }
+            }
+        };
+
+    private final CompassCallback mCompassInput = new CompassCallback() {
+        @Override
+        public void onReading(
+            double heading,
+            double accuracy,
+            double magneticHeading,
+            long timestamp
+        ) {
+            processReading(heading, accuracy, magneticHeading, timestamp);
         }
 
-        double delta = rawHeading - mFilteredHeading;
-        if (delta > 180) delta -= 360;
-        else if (delta < -180) delta += 360;
+        @Override
+        public void onError(final String error) {
+            if (mBatcher != null) {
+                mBatcher.onError(error);
+            } else if (mUserCallback != null) {
+                mMainHandler.post(
+                    new Runnable() {
+                        @Override
+                        public void run() {
+                            mUserCallback.onError(error);
+                        }
+                    }
+                );
+            }
+        }
+    };
 
-        mFilteredHeading += delta * (1 - mFilter);
-        if (mFilteredHeading < 0) mFilteredHeading += 360;
-        else if (mFilteredHeading >= 360) mFilteredHeading -= 360;
+    private final Runnable mDeferredCheck = new Runnable() {
+        @Override
+        public void run() {
+            mCheckPending.set(false);
+            mLastCheckTime = elapsedRealtimeNanos() / 1000000L;
+            checkAndSendReading();
+        }
+    };
 
-        return mFilteredHeading;
+    private double applyFilter(double rawHeading, long timestamp) {
+        final HeadingFilter[] filters = mActiveFilters;
+        double heading = rawHeading;
+        for (int i = 0; i < filters.length && !Double.isNaN(heading); i++) {
+            heading = filters[i].filter(heading, timestamp);
+        }
+        return heading;
     }
 
+    // How often the compass has to publish for the filter chain to settle
+    // within one updateThrottle interval. This is the sampling period of
+    // sensorDelay "auto" and the decimation interval for any other delay.
+    private long getOutputPeriodUs() {
+        int samples = 1;
+        for (HeadingFilter filter : mActiveFilters) {
+            samples = Math.max(samples, samplesPerUpdate(filter));
+        }
+        return Math.max(
+            MIN_AUTO_PERIOD_US,
+            Math.min(MAX_AUTO_PERIOD_US, mUpdateThrottle * 1000 / samples)
+        );
+    }
+
+    // Readings a filter stage needs to follow a change in heading, stages
+    // that work on time rather than on sample counts need one
+    static int samplesPerUpdate(final HeadingFilter filter) {
+        if (filter instanceof EmaHeadingFilter) {
+            // Until the previous heading weighs less than half. A weight of
+            // 1 never lets a new heading in, sampling faster cannot help.
+            final double weight = ((EmaHeadingFilter) filter).getFilter();
+            if (weight <= 0 || weight >= 1) return 1;
+            return (int) Math.ceil(Math.log(0.5) / Math.log(weight));
+        }
+        if (filter instanceof MedianHeadingFilter) {
+            // Until the new heading holds half the window
+            return (((MedianHeadingFilter) filter).getWindow() + 1) / 2;
+        }
+        if (filter instanceof OutlierHeadingFilter) {
+            // A sustained turn passes once the rejections run out
+            return ((OutlierHeadingFilter) filter).getMaxRejects() + 1;
+        }
+        return 1;
+    }
+
+    public static void getCurrentReading(
+        Context context,
+        boolean useSensorFusion,
+        String sensorDelayString,
+        CompassCallback callback
+    ) {
+        getCurrentReading(
+            context,
+            useSensorFusion,
+            sensorDelayString,
+            null,
+            0,
+            callback
+        );
+    }
+
+    // maxAgeMs > 0 accepts a reading already published by a running compass
+    // of the same source without touching the sensors. Either way the
+    // callback runs on the main looper.
     public static void getCurrentReading(
         Context context,
         boolean useSensorFusion,
         String sensorDelayString,
+        String source,
+        long maxAgeMs,
         CompassCallback callback
     ) {
+        // Sensors deliver on the shared sensor thread, hand the final
+        // reading back to the main looper
+        final Handler mainHandler = new Handler(Looper.getMainLooper());
         try {
-            Compass compass = useSensorFusion
-                ? Compass.getDefaultCompass(context)
-                : new AccMagCompass(context);
+            if (
+                maxAgeMs > 0 &&
+                LastReadingCache.deliverIfFresh(
+                    resolveSource(context, useSensorFusion, source),
+                    maxAgeMs,
+                    mainHandler,
+                    callback
+                )
+            ) return;
 
-            // Set sensor delay
-            compass.setSensorDelay(
-                Compass.sensorDelayFromString(sensorDelayString)
-            );
+            // Whichever of reading, error or timeout comes first wins
+            final AtomicBoolean finished = new AtomicBoolean(false);
+            final SensorHub.Subscription[] subscription =
+                new SensorHub.Subscription[1];
 
             // Single reading with timeout
-            Timer timeoutTimer = new Timer();
-            timeoutTimer.schedule(
-                new TimerTask() {
+            final ScheduledFuture<?> timeoutTask = getScheduler().schedule(
+                new Runnable() {
                     @Override
                     public void run() {
-                        compass.stop();
-                        callback.onError("Timeout getting compass reading");
+                        if (!finished.compareAndSet(false, true)) return;
+                        closeSubscription(subscription);
+                        mainHandler.post(
+                            new Runnable() {
+                                @Override
+                                public void run() {
+                                    callback.onError(
+                                        "Timeout getting compass reading"
+                                    );
+                                }
+                            }
+                        );
                     }
                 },
-                3000
+                READING_TIMEOUT_MS,
+                TimeUnit.MILLISECONDS
             );
 
-            compass.setCallback(
+            final CompassCallback singleReadingCallback =
                 new CompassCallback() {
                     @Override
                     public void onReading(
@@ -190,78 +990,241 @@ public class CompassHelper {
                         double magneticHeading,
                         long timestamp
                     ) {
-                        timeoutTimer.cancel();
-                        compass.stop();
-                        callback.onReading(
-                            heading,
-                            accuracy,
-                            magneticHeading,
+                        if (!finished.compareAndSet(false, true)) return;
+                        timeoutTask.cancel(false);
+                        closeSubscription(subscription);
+                        final long wallClock = Compass.toWallClockMillis(
                             timestamp
                         );
+                        mainHandler.post(
+                            new Runnable() {
+                                @Override
+                                public void run() {
+                                    callback.onReading(
+                                        heading,
+                                        accuracy,
+                                        magneticHeading,
+                                        wallClock
+                                    );
+                                }
+                            }
+                        );
                     }
 
                     @Override
-                    public void onError(String error) {
-                        timeoutTimer.cancel();
-                        compass.stop();
-                        callback.onError(error);
+                    public void onError(final String error) {
+                        if (!finished.compareAndSet(false, true)) return;
+                        timeoutTask.cancel(false);
+                        closeSubscription(subscription);
+                        mainHandler.post(
+                            new Runnable() {
+                                @Override
+                                public void run() {
+                                    callback.onError(error);
+                                }
+                            }
+                        );
+                    }
+                };
+
+            final SensorHub.Subscription joined = subscribe(
+                context,
+                useSensorFusion,
+                source,
+                null,
+                0,
+                false,
+                0,
+                0,
+                false,
+                false,
+                new SensorHub.Request()
+                    .setSensorDelay(
+                        Compass.sensorDelayFromString(sensorDelayString)
+                    ),
+                null,
+                singleReadingCallback
+            );
+            synchronized (subscription) {
+                subscription[0] = joined;
+                // The reading may already have arrived from a running compass
+                if (finished.get()) closeSubscription(subscription);
+            }
+        } catch (final Exception e) {
+            mainHandler.post(
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onError(
+                            "Failed to get compass reading: " + e.getMessage()
+                        );
                     }
                 }
             );
-        } catch (Exception e) {
-            callback.onError(
-                "Failed to get compass reading: " + e.getMessage()
+        }
+    }
+
+    private static void closeSubscription(
+        final SensorHub.Subscription[] subscription
+    ) {
+        synchronized (subscription) {
+            if (subscription[0] != null) {
+                subscription[0].close();
+                subscription[0] = null;
+            }
+        }
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor getScheduler() {
+        if (sScheduler == null) {
+            sScheduler = new ScheduledThreadPoolExecutor(
+                1,
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "CompassScheduler");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }
             );
+            // Drop cancelled tasks right away instead of keeping them queued until due
+            sScheduler.setRemoveOnCancelPolicy(true);
         }
+        return sScheduler;
     }
 
     private void startThrottleTimer() {
-        mThrottleTimer = new Timer();
-        mThrottleTimer.scheduleAtFixedRate(
-            new TimerTask() {
+        stopThrottleTimer();
+        mThrottleTask = getScheduler().scheduleAtFixedRate(
+            new Runnable() {
                 @Override
                 public void run() {
                     checkAndSendReading();
                 }
             },
             mUpdateThrottle,
-            mUpdateThrottle
+            mUpdateThrottle,
+            TimeUnit.MILLISECONDS
         );
     }
 
     private void stopThrottleTimer() {
-        if (mThrottleTimer != null) {
-            mThrottleTimer.cancel();
-            mThrottleTimer = null;
+        if (mThrottleTask != null) {
+            mThrottleTask.cancel(false);
+            mThrottleTask = null;
         }
     }
 
+    // Only runs on the scheduler thread, or the replaying thread during
+    // replay(), so the check state needs no lock. The reading itself is
+    // delivered on the main looper.
     private void checkAndSendReading() {
-        if (Double.isNaN(mFilteredHeading) || mUserCallback == null) {
-            return;
-        }
+        if (mUserCallback == null) return;
 
-        // Check if data is fresh
-        long currentTime = System.currentTimeMillis();
-        long dataAge = currentTime - mLatestTimestamp;
-        if (dataAge > 500) {
-            // Skip data older than 500ms
+        final long timestamp = mLatest.read(mCheckScratch);
+        final double heading = mCheckScratch[0];
+        if (Double.isNaN(heading)) return;
+
+        // Check if data is fresh, on the sensor clock so wall-clock changes
+        // cannot suppress or pass readings
+        final long now = elapsedRealtimeNanos();
+        final long dataAge = now - timestamp;
+        // The timer re-checks the same reading until a new one arrives,
+        // count each reading's outcome once
+        final boolean firstCheck = timestamp != mLastCheckedTimestamp;
+        mLastCheckedTimestamp = timestamp;
+        // Batched samples already waited up to the report latency in the FIFO
+        if (dataAge > (STALE_READING_MS + mMaxReportLatencyMs) * 1000000L) {
+            if (firstCheck) mMetrics.count(PipelineMetrics.DROPPED_STALE);
             return;
         }
 
         // Check threshold (like iOS minChangeThreshold)
-        double change = Math.abs(mFilteredHeading - mLastHeading);
+        double change = Math.abs(heading - mLastHeading);
         if (change > 180) change = 360 - change; // Handle 360/0 boundary
 
         if (change >= mMinChangeThreshold) {
+            if (mReplaying) {
+                mUserCallback.onReading(
+                    heading,
+                    mCheckScratch[1],
+                    mCheckScratch[2],
+                    toUserMillis(timestamp)
+                );
+                mMetrics.count(PipelineMetrics.DELIVERED);
+            } else {
+                mDelivery.post(
+                    heading,
+                    mCheckScratch[1],
+                    mCheckScratch[2],
+                    timestamp
+                );
+            }
+            mLastHeading = heading;
+        } else if (firstCheck) {
+            mMetrics.count(PipelineMetrics.DROPPED_THRESHOLD);
+        }
+    }
+
+    // Hands readings that passed the checks to the main looper. At most one
+    // is waiting at a time and a newer reading replaces it, so a busy main
+    // thread gets the latest heading instead of a backlog. Nothing is
+    // allocated per reading.
+    private final class Delivery implements Runnable {
+
+        private double mHeading;
+        private double mAccuracy;
+        private double mMagneticHeading;
+        private long mTimestamp;
+        private boolean mPosted = false;
+
+        void post(
+            final double heading,
+            final double accuracy,
+            final double magneticHeading,
+            final long timestamp
+        ) {
+            synchronized (this) {
+                mHeading = heading;
+                mAccuracy = accuracy;
+                mMagneticHeading = magneticHeading;
+                mTimestamp = timestamp;
+                if (mPosted) return;
+                mPosted = true;
+            }
+            mMainHandler.post(this);
+        }
+
+        synchronized void cancel() {
+            mMainHandler.removeCallbacks(this);
+            mPosted = false;
+        }
+
+        @Override
+        public void run() {
+            final double heading;
+            final double accuracy;
+            final double magneticHeading;
+            final long timestamp;
+            synchronized (this) {
+                heading = mHeading;
+                accuracy = mAccuracy;
+                magneticHeading = mMagneticHeading;
+                timestamp = mTimestamp;
+                mPosted = false;
+            }
             mUserCallback.onReading(
-                mFilteredHeading,
-                mLatestAccuracy,
-                mLatestMagneticHeading,
-                mLatestTimestamp
+                heading,
+                accuracy,
+                magneticHeading,
+                Compass.toWallClockMillis(timestamp)
+            );
+            mMetrics.count(PipelineMetrics.DELIVERED);
+            mMetrics.record(
+                PipelineMetrics.STAGE_DELIVERY,
+                SystemClock.elapsedRealtimeNanos() - timestamp
             );
-            mLastHeading = mFilteredHeading;
-            mLastCallbackTime = currentTime;
         }
     }
 }
@@ -0,0 +1,96 @@
+package org.nativescript.compass;
+
+import android.hardware.GeomagneticField;
+
+// Magnetic declination per quantized location cell. GeomagneticField
+// evaluates the full spherical-harmonic world magnetic model, so it only
+// runs once per cell; the declination drifts by tenths of a degree across a
+// cell and by about 0.1 degree a year, well below compass noise. The least
+// recently used cell is evicted when the cache is full. Lookups scan a few
+// primitive slots and never allocate.
+final class DeclinationCache {
+
+    static final double CELL_DEGREES = 0.25;
+    static final double CELL_ALTITUDE_M = 1000;
+    static final long CELL_TIME_MS = 30L * 24 * 60 * 60 * 1000;
+
+    private final long[] mKeys;
+    private final float[] mDeclinations;
+    private final long[] mLastUsed; // Lookup count, 0 = empty slot
+    private long mLookups = 0;
+
+    DeclinationCache(final int capacity) {
+        final int size = Math.max(1, capacity);
+        mKeys = new long[size];
+        mDeclinations = new float[size];
+        mLastUsed = new long[size];
+    }
+
+    // Declination in degrees east of true north
+    synchronized float getDeclination(
+        final double latitude,
+        final double longitude,
+        final double altitudeM,
+        final long timeMs
+    ) {
+        final long latCell = clamp(
+            (long) Math.floor(latitude / CELL_DEGREES),
+            -360,
+            359
+        );
+        final long lonCell = clamp(
+            (long) Math.floor(normalizeLongitude(longitude) / CELL_DEGREES),
+            -720,
+            719
+        );
+        final long altCell = clamp(
+            (long) Math.floor(altitudeM / CELL_ALTITUDE_M),
+            -512,
+            511
+        );
+        final long timeCell = Math.floorDiv(timeMs, CELL_TIME_MS);
+        // 11 bits latitude, 11 bits longitude, 10 bits altitude, 32 bits time
+        final long key =
+            ((latCell + 360) & 0x7FF) |
+            (((lonCell + 720) & 0x7FF) << 11) |
+            (((altCell + 512) & 0x3FF) << 22) |
+            ((timeCell & 0xFFFFFFFFL) << 32);
+
+        mLookups++;
+        int victim = 0;
+        for (int i = 0; i < mKeys.length; i++) {
+            if (mLastUsed[i] != 0 && mKeys[i] == key) {
+                mLastUsed[i] = mLookups;
+                return mDeclinations[i];
+            }
+            if (mLastUsed[i] < mLastUsed[victim]) victim = i;
+        }
+
+        // Evaluate the model at the centre of the cell
+        final GeomagneticField field = new GeomagneticField(
+            (float) ((latCell + 0.5) * CELL_DEGREES),
+            (float) ((lonCell + 0.5) * CELL_DEGREES),
+            (float) ((altCell + 0.5) * CELL_ALTITUDE_M),
+            timeCell * CELL_TIME_MS + CELL_TIME_MS / 2
+        );
+        mKeys[victim] = key;
+        mDeclinations[victim] = field.getDeclination();
+        mLastUsed[victim] = mLookups;
+        return mDeclinations[victim];
+    }
+
+    private static long clamp(
+        final long value,
+        final long min,
+        final long max
+    ) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private static double normalizeLongitude(final double longitude) {
+        double normalized = longitude % 360;
+        if (normalized >= 180) normalized -= 360;
+        else if (normalized < -180) normalized += 360;
+        return normalized;
+    }
+}
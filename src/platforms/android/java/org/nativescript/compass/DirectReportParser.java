@@ -0,0 +1,90 @@
+package org.nativescript.compass;
+
+import java.nio.ByteBuffer;
+
+// Parses the sensor direct report ring a SensorDirectChannel writes into
+// shared memory, in place and without allocating. Only java.nio is used, so
+// it runs on a desktop JVM against synthetic buffers as well.
+//
+// Every record is RECORD_SIZE bytes in native byte order:
+//   int size, int token, int type, int counter, long timestampNs, float[16]
+// The counter starts at 1 and grows by one per report across the channel,
+// so the next record is the slot after the last one whose counter is one
+// higher. A smaller counter (or 0) is an older lap not yet overwritten; a
+// larger one means the writer lapped the reader and reports were lost. The
+// writer zeroes a record's counter before rewriting it, so a counter that
+// changed while the record was read marks it as torn.
+final class DirectReportParser {
+
+    interface Consumer {
+        // values holds all VALUES floats, only valid during the call
+        void onReport(int token, int type, long timestamp, float[] values);
+    }
+
+    static final int RECORD_SIZE = 104;
+    static final int OFFSET_SIZE = 0;
+    static final int OFFSET_TOKEN = 4;
+    static final int OFFSET_TYPE = 8;
+    static final int OFFSET_COUNTER = 12;
+    static final int OFFSET_TIMESTAMP = 16;
+    static final int OFFSET_VALUES = 24;
+    static final int VALUES = 16;
+
+    private final int mCapacity; // Records in the ring
+    private final float[] mValues = new float[VALUES];
+    private int mNextSlot = 0;
+    private int mNextCounter = 1;
+
+    DirectReportParser(final int capacity) {
+        mCapacity = Math.max(1, capacity);
+    }
+
+    // Ring slot the next record is expected in, where the caller's buffer
+    // has to start
+    int getNextSlot() {
+        return mNextSlot;
+    }
+
+    // Parses up to count records laid out from index 0 of records, which
+    // hold the ring slots from getNextSlot() on. counters holds the same
+    // slots read again afterwards, only their counters are compared; a live
+    // mapping may pass records twice. Stops at the first record that is not
+    // new and returns how many were consumed.
+    int parse(
+        final ByteBuffer records,
+        final ByteBuffer counters,
+        final int count,
+        final Consumer consumer
+    ) {
+        int consumed = 0;
+        while (consumed < count) {
+            final int base = consumed * RECORD_SIZE;
+            if (records.getInt(base + OFFSET_SIZE) != RECORD_SIZE) break;
+            final int counter = records.getInt(base + OFFSET_COUNTER);
+            // Wrap-safe, the counter is an unsigned 32-bit value. Records
+            // the writer lapped are skipped, the rest stay in order.
+            if (counter == 0 || counter - mNextCounter < 0) break;
+
+            final int token = records.getInt(base + OFFSET_TOKEN);
+            final int type = records.getInt(base + OFFSET_TYPE);
+            final long timestamp = records.getLong(base + OFFSET_TIMESTAMP);
+            for (int i = 0; i < VALUES; i++) {
+                mValues[i] = records.getFloat(base + OFFSET_VALUES + i * 4);
+            }
+            // Rewritten while it was read, left for the next parse
+            if (counters.getInt(base + OFFSET_COUNTER) != counter) break;
+
+            mNextCounter = counter + 1;
+            if (mNextCounter == 0) mNextCounter = 1;
+            mNextSlot = (mNextSlot + 1) % mCapacity;
+            consumed++;
+            consumer.onReport(token, type, timestamp, mValues);
+        }
+        return consumed;
+    }
+
+    void reset() {
+        mNextSlot = 0;
+        mNextCounter = 1;
+    }
+}
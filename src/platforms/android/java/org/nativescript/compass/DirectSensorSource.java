@@ -0,0 +1,211 @@
+package org.nativescript.compass;
+
+import android.hardware.Sensor;
+import android.hardware.SensorDirectChannel;
+import android.hardware.SensorManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.MemoryFile;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// Ingests sensors through a SensorDirectChannel instead of a
+// SensorEventListener. The sensor hub writes reports into a shared memory
+// ring that is polled on the sensor thread, so no SensorEvent is allocated
+// per sample. MemoryFile cannot be mapped from Java, each poll copies the new
+// part of the ring into one preallocated buffer in bulk and parses it there.
+// A second copy right after shows which records were rewritten meanwhile,
+// see DirectReportParser.
+final class DirectSensorSource implements DirectReportParser.Consumer {
+
+    private static final int RING_RECORDS = 256;
+    private static final int CHUNK_RECORDS = 32;
+    private static final long POLL_INTERVAL_MS = 10;
+
+    private final Compass mCompass;
+    private final SensorManager mSensorManager;
+    private final SensorBatch.Consumer mConsumer;
+    private final Handler mHandler = SensorThread.getHandler();
+    private final DirectReportParser mParser = new DirectReportParser(
+        RING_RECORDS
+    );
+    private final byte[] mChunk = new byte[
+        CHUNK_RECORDS * DirectReportParser.RECORD_SIZE
+    ];
+    private final ByteBuffer mChunkBuffer = ByteBuffer.wrap(mChunk).order(
+        ByteOrder.nativeOrder()
+    );
+    private final byte[] mRecheck = new byte[mChunk.length];
+    private final ByteBuffer mRecheckBuffer = ByteBuffer.wrap(mRecheck).order(
+        ByteOrder.nativeOrder()
+    );
+    // Reused per report, sized like the SensorEvent.values of each type
+    private final float[] mValues3 = new float[3];
+    private final float[] mValues5 = new float[5];
+    private final float[] mValues6 = new float[6];
+    private final float[] mValuesAll = new float[DirectReportParser.VALUES];
+    // Opened and closed by the caller, polled on the sensor thread. Nothing
+    // is locked while readings are delivered.
+    private volatile MemoryFile mMemory = null;
+    private SensorDirectChannel mChannel = null;
+    private volatile boolean mResetParser = false;
+    // Sensor thread only
+    private boolean mInPoll = false;
+
+    DirectSensorSource(
+        final Compass compass,
+        final SensorManager sensorManager,
+        final SensorBatch.Consumer consumer
+    ) {
+        mCompass = compass;
+        mSensorManager = sensorManager;
+        mConsumer = consumer;
+    }
+
+    // Direct reports come in three fixed rate levels, the closest one at or
+    // above the requested period is used
+    static int rateLevelFromMicros(final long periodUs) {
+        if (periodUs <= 1250) return SensorDirectChannel.RATE_VERY_FAST;
+        if (periodUs <= 5000) return SensorDirectChannel.RATE_FAST;
+        return SensorDirectChannel.RATE_NORMAL;
+    }
+
+    static boolean isSupported(final Sensor sensor) {
+        return (
+            sensor != null &&
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.O &&
+            sensor.isDirectChannelTypeSupported(
+                SensorDirectChannel.TYPE_MEMORY_FILE
+            ) &&
+            sensor.getHighestDirectReportRateLevel() >=
+            SensorDirectChannel.RATE_NORMAL
+        );
+    }
+
+    // false when a sensor has no direct report support, the caller then
+    // registers a listener as usual
+    boolean start(final Sensor[] sensors, final long periodUs) {
+        stop();
+        for (final Sensor sensor : sensors) {
+            if (!isSupported(sensor)) return false;
+        }
+        try {
+            mMemory = new MemoryFile(
+                "compass-direct",
+                RING_RECORDS * DirectReportParser.RECORD_SIZE
+            );
+            mChannel = mSensorManager.createDirectChannel(mMemory);
+            if (mChannel == null) {
+                stop();
+                return false;
+            }
+            final int requested = rateLevelFromMicros(periodUs);
+            for (final Sensor sensor : sensors) {
+                final int level = Math.min(
+                    requested,
+                    sensor.getHighestDirectReportRateLevel()
+                );
+                if (mChannel.configure(sensor, level) <= 0) {
+                    stop();
+                    return false;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            stop();
+            return false;
+        }
+        mResetParser = true;
+        mHandler.postDelayed(mPollTask, POLL_INTERVAL_MS);
+        return true;
+    }
+
+    void stop() {
+        mHandler.removeCallbacks(mPollTask);
+        if (mChannel != null) {
+            mChannel.close();
+            mChannel = null;
+        }
+        final MemoryFile memory = mMemory;
+        mMemory = null;
+        // A poll still running on it stops at the IOException
+        if (memory != null) memory.close();
+    }
+
+    private final Runnable mPollTask = new Runnable() {
+        @Override
+        public void run() {
+            final MemoryFile memory = mMemory;
+            if (memory == null) return;
+            if (mResetParser) {
+                mResetParser = false;
+                mParser.reset();
+            }
+            poll(memory);
+            // A restart while polling has posted its own task
+            if (memory == mMemory) {
+                mHandler.postDelayed(this, POLL_INTERVAL_MS);
+            }
+        }
+    };
+
+    private void poll(final MemoryFile memory) {
+        try {
+            while (true) {
+                final int slot = mParser.getNextSlot();
+                final int count = Math.min(CHUNK_RECORDS, RING_RECORDS - slot);
+                final int offset = slot * DirectReportParser.RECORD_SIZE;
+                final int length = count * DirectReportParser.RECORD_SIZE;
+                memory.readBytes(mChunk, offset, 0, length);
+                memory.readBytes(mRecheck, offset, 0, length);
+                if (
+                    mParser.parse(mChunkBuffer, mRecheckBuffer, count, this) <
+                    count
+                ) break;
+            }
+        } catch (IOException e) {
+            // Closed underneath, the next start opens a new one
+        }
+        if (mInPoll) {
+            mInPoll = false;
+            mConsumer.onBurstEnd();
+        }
+    }
+
+    @Override
+    public void onReport(
+        final int token,
+        final int type,
+        final long timestamp,
+        final float[] values
+    ) {
+        final float[] sample;
+        switch (type) {
+            case Sensor.TYPE_ACCELEROMETER:
+            case Sensor.TYPE_MAGNETIC_FIELD:
+            case Sensor.TYPE_GYROSCOPE:
+                sample = mValues3;
+                break;
+            case Sensor.TYPE_ROTATION_VECTOR:
+            case Sensor.TYPE_GEOMAGNETIC_ROTATION_VECTOR:
+                sample = mValues5;
+                break;
+            case Sensor.TYPE_MAGNETIC_FIELD_UNCALIBRATED:
+            case Sensor.TYPE_GYROSCOPE_UNCALIBRATED:
+                sample = mValues6;
+                break;
+            default:
+                sample = mValuesAll;
+                break;
+        }
+        System.arraycopy(values, 0, sample, 0, sample.length);
+
+        // One poll is handled like one batched burst
+        if (!mInPoll) {
+            mInPoll = true;
+            mConsumer.onBurstStart();
+        }
+        mCompass.ingestSample(type, timestamp, sample);
+        mConsumer.onSample(type, timestamp, sample);
+    }
+}
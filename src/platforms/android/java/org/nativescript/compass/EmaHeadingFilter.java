@@ -0,0 +1,30 @@
+package org.nativescript.compass;
+
+// Exponential moving average, the plugin's original smoothing.
+// filter = 0 passes headings through, values towards 1 smooth harder.
+public class EmaHeadingFilter implements HeadingFilter {
+
+    private final double mFilter;
+    private double mHeading = Double.NaN;
+
+    public EmaHeadingFilter(final double filter) {
+        mFilter = filter;
+    }
+
+    double getFilter() {
+        return mFilter;
+    }
+
+    @Override
+    public double filter(final double heading, final long timestampNanos) {
+        mHeading = Double.isNaN(mHeading)
+            ? heading
+            : OrientationMath.smoothHeading(mHeading, heading, mFilter);
+        return mHeading;
+    }
+
+    @Override
+    public void reset() {
+        mHeading = Double.NaN;
+    }
+}
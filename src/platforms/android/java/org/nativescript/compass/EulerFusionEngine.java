@@ -0,0 +1,88 @@
+package org.nativescript.compass;
+
+// Legacy engine: integrates gyro deltas into a rotation matrix and blends
+// azimuth, pitch and roll independently on every fusion tick, so the
+// reference is turned into Euler angles first.
+public class EulerFusionEngine implements FusionEngine {
+
+    private final float mTimeConstant;
+    private final float[] mAccMagOrientation = new float[3];
+    private final float[] mGyroMatrix = new float[9];
+    private final float[] mGyroOrientation = new float[3];
+    private final float[] mDeltaVector = new float[4];
+    private final float[] mDeltaMatrix = new float[9];
+
+    // timeConstant is in seconds, larger values trust the gyro for longer
+    public EulerFusionEngine(final float timeConstant) {
+        mTimeConstant = timeConstant;
+    }
+
+    @Override
+    public void reset(final float[] rotationMatrix) {
+        setReference(rotationMatrix);
+        System.arraycopy(mAccMagOrientation, 0, mGyroOrientation, 0, 3);
+        System.arraycopy(rotationMatrix, 0, mGyroMatrix, 0, 9);
+    }
+
+    @Override
+    public void setReference(final float[] rotationMatrix) {
+        OrientationMath.orientationFromRotationMatrix(
+            rotationMatrix,
+            mAccMagOrientation
+        );
+    }
+
+    @Override
+    public void integrateGyro(final float[] rates, final float dT) {
+        OrientationMath.rotationVectorFromGyro(rates, mDeltaVector, dT / 2.0f);
+        OrientationMath.rotationMatrixFromQuaternion(mDeltaVector, mDeltaMatrix);
+        OrientationMath.multiply(mGyroMatrix, mDeltaMatrix, mGyroMatrix);
+        OrientationMath.orientationFromRotationMatrix(
+            mGyroMatrix,
+            mGyroOrientation
+        );
+    }
+
+    @Override
+    public void fuse(
+        final float[] outRotationMatrix,
+        final float[] outOrientation,
+        final float dT
+    ) {
+        final float coefficient = mTimeConstant / (mTimeConstant + dT);
+        for (int i = 0; i < 3; i++) {
+            outOrientation[i] = blend(
+                mGyroOrientation[i],
+                mAccMagOrientation[i],
+                coefficient
+            );
+        }
+
+        OrientationMath.rotationMatrixFromOrientation(outOrientation, mGyroMatrix);
+        System.arraycopy(mGyroMatrix, 0, outRotationMatrix, 0, 9);
+        System.arraycopy(outOrientation, 0, mGyroOrientation, 0, 3);
+    }
+
+    private static float blend(
+        final float gyro,
+        final float accMag,
+        final float coefficient
+    ) {
+        final float oneMinusCoeff = 1.0f - coefficient;
+
+        // Handle the -pi/pi wraparound so the average stays on the short arc
+        float fused;
+        if (gyro < -0.5 * Math.PI && accMag > 0.0) {
+            fused = (float) (coefficient * (gyro + 2.0 * Math.PI) +
+                oneMinusCoeff * accMag);
+            fused -= (fused > Math.PI) ? 2.0 * Math.PI : 0;
+        } else if (accMag < -0.5 * Math.PI && gyro > 0.0) {
+            fused = (float) (coefficient * gyro +
+                oneMinusCoeff * (accMag + 2.0 * Math.PI));
+            fused -= (fused > Math.PI) ? 2.0 * Math.PI : 0;
+        } else {
+            fused = coefficient * gyro + oneMinusCoeff * accMag;
+        }
+        return fused;
+    }
+}
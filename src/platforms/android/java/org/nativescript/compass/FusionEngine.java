@@ -0,0 +1,20 @@
+package org.nativescript.compass;
+
+// Combines integrated gyroscope rotation with the absolute accelerometer +
+// magnetometer attitude. Attitudes are row-major 3x3 rotation matrices as from
+// SensorManager.getRotationMatrix, orientations [azimuth, pitch, roll] in
+// radians.
+public interface FusionEngine {
+    // Seeds the gyro estimate with an absolute attitude
+    void reset(float[] rotationMatrix);
+
+    // Latest absolute attitude from accelerometer and magnetometer
+    void setReference(float[] rotationMatrix);
+
+    // Integrates one gyroscope sample (rad/s) over dT seconds
+    void integrateGyro(float[] rates, float dT);
+
+    // Pulls the gyro estimate towards the reference for dT seconds since the
+    // previous fusion step and writes the result as a matrix and an orientation
+    void fuse(float[] outRotationMatrix, float[] outOrientation, float dT);
+}
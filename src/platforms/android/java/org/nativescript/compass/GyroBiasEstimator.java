@@ -0,0 +1,69 @@
+package org.nativescript.compass;
+
+// Learns the gyroscope zero-rate offset while the device is still. Samples
+// are collected in blocks of WINDOW; a block whose per-axis variance and
+// mean are both small can only be bias plus noise, and its mean nudges the
+// estimate. Everything is O(1) per sample.
+final class GyroBiasEstimator {
+
+    static final int WINDOW = 50;
+    static final double STILL_VARIANCE = 2.5e-5; // (rad/s)^2 per axis
+    static final double MAX_BIAS = 0.05; // rad/s, larger means are rotation
+    static final float LEARN_RATE = 0.2f;
+
+    private final float[] mBias = new float[3];
+    private final double[] mSum = new double[3];
+    private final double[] mSumSq = new double[3];
+    private int mCount = 0;
+    private int mUpdates = 0;
+
+    // Sensor thread only
+    void add(final float[] rates) {
+        for (int i = 0; i < 3; i++) {
+            mSum[i] += rates[i];
+            mSumSq[i] += rates[i] * rates[i];
+        }
+        if (++mCount < WINDOW) return;
+
+        boolean still = true;
+        for (int i = 0; i < 3 && still; i++) {
+            final double mean = mSum[i] / WINDOW;
+            still =
+                Math.abs(mean) < MAX_BIAS &&
+                mSumSq[i] / WINDOW - mean * mean < STILL_VARIANCE;
+        }
+        if (still) {
+            synchronized (this) {
+                for (int i = 0; i < 3; i++) {
+                    final float mean = (float) (mSum[i] / WINDOW);
+                    mBias[i] = mUpdates == 0
+                        ? mean
+                        : mBias[i] + LEARN_RATE * (mean - mBias[i]);
+                }
+                mUpdates++;
+            }
+        }
+        mCount = 0;
+        for (int i = 0; i < 3; i++) {
+            mSum[i] = 0;
+            mSumSq[i] = 0;
+        }
+    }
+
+    // out may alias rates, sensor thread only
+    void correct(final float[] rates, final float[] out) {
+        out[0] = rates[0] - mBias[0];
+        out[1] = rates[1] - mBias[1];
+        out[2] = rates[2] - mBias[2];
+    }
+
+    synchronized void getBias(final double[] out, final int offset) {
+        out[offset] = mBias[0];
+        out[offset + 1] = mBias[1];
+        out[offset + 2] = mBias[2];
+    }
+
+    synchronized int getUpdates() {
+        return mUpdates;
+    }
+}
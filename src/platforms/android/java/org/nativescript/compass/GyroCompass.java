@@ -6,35 +6,69 @@ import android.hardware.SensorEvent;
 import android.hardware.SensorEventListener;
 import android.hardware.SensorManager;
 import android.os.Handler;
-import android.os.Looper;
-import java.util.Timer;
-import java.util.TimerTask;
+import android.os.SystemClock;
 
 public class GyroCompass extends Compass {
 
-    private static final float EPSILON = 0.000000001f;
-    private static final float FILTER_COEFFICIENT = 0.98f;
     private static final float NS2S = 1.0f / 1000000000.0f;
     private static final int TIME_CONSTANT = 30;
+    // Seconds, equivalent to the former fixed 0.98 coefficient at 30 ms
+    private static final float FILTER_TIME_CONSTANT = 1.47f;
+    private static final long HOLD_REPUBLISH_MS = 250;
 
-    private final AccMagCompass mAccMagCompass;
+    private final AccMagCompass mAccMagCompass; // null when shared through SensorHub
+    private SensorHub.Subscription mAccMagSubscription = null;
+    private volatile Compass mAccMagSource = null;
     private final AccMagListener mAccMagListener = new AccMagListener();
-    private float[] mAccMagOrientation = null;
+    private boolean mHasAccMagOrientation = false;
+    private long mAccMagTimestamp = 0; // Sensor time of the newest reference
     private final Context mContext;
+    private FusionEngine mFusionEngine = new QuaternionFusionEngine(
+        FILTER_TIME_CONSTANT
+    );
+    private int mFusionDecimation = 0; // 0 = fixed-rate timer
+    private int mSamplesSinceFusion = 0;
+    private long mLastFusionTimestamp = 0;
     private final float[] mFusedOrientation = new float[3];
-    private final Timer mFuseTimer = new Timer();
+    private final float[] mFusedMatrix = new float[9];
     private final float[] mGyro = new float[3];
-    private float[] mGyroMatrix = null;
-    private final float[] mGyroOrientation = { 0, 0, 0 };
     private final Sensor mSensor;
     private final SensorListener mSensorListener = new SensorListener();
+    private final SensorBatch mBatch = new SensorBatch(
+        mSensorListener,
+        SensorThread.getHandler()
+    );
+    private final DirectSensorSource mDirect;
+    private int mActiveDecimation = 0;
     private SensorManager mSensorManager = null;
-    private FuseOrientationTask mTask;
+    private final FuseOrientationTask mFuseTask = new FuseOrientationTask();
     private long mTimestamp;
-    private final Handler mHandler = new Handler(Looper.getMainLooper());
-
+    private final Handler mHandler = SensorThread.getHandler();
+    private boolean mMotionGateEnabled = false;
+    private final MotionGate mMotionGate = new MotionGate();
+    private long mLastHoldPublishMs = 0;
+    // Magnetometer duty cycling, 0 = AccMag runs continuously
+    private long mDutyIntervalMs = 0;
+    private long mDutyBurstMs = 1000;
+    private boolean mCalibration = false;
+    private final GyroBiasEstimator mBiasEstimator = new GyroBiasEstimator();
+    private volatile boolean mDeadReckoning = false; // No fresh AccMag reference
+    private volatile double mLastDriftDeg = 0;
+    private volatile long mLastDriftIntervalMs = 0;
+    private volatile int mCorrections = 0;
+    // Sensor thread only, see updateActivity()
+    private boolean mActive = false;
+    private boolean mAccMagOpen = false;
+    private boolean mFuseRunning = false;
+    private boolean mMagOff = false; // Closed by the duty cycle
+    private boolean mAwaitingCorrection = false;
+    private long mDeadReckoningSinceMs = 0;
+    private long mNextDutySwitch = 0; // Sensor time, 0 = not armed yet
+    private long mNextReplayFusion = 0; // Sensor time of the next timer tick
+
+    // Shares the accelerometer + magnetometer compass with other SensorHub subscribers
     public GyroCompass(final Context context) {
-        this(context, new AccMagCompass(context));
+        this(context, null);
     }
 
     public GyroCompass(final Context context, final AccMagCompass compass) {
@@ -45,339 +79,636 @@ public class GyroCompass extends Compass {
             Context.SENSOR_SERVICE
         );
         mSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE);
+        mDirect = new DirectSensorSource(
+            this,
+            mSensorManager,
+            mSensorListener
+        );
     }
 
-    private void onGyroChanged(final SensorEvent event) {
-        if (mAccMagOrientation == null) return;
+    // Convert string fusion engine name to an engine instance
+    public static FusionEngine fusionEngineFromString(String fusionEngine) {
+        if (fusionEngine != null && fusionEngine.equalsIgnoreCase("euler")) {
+            return new EulerFusionEngine(FILTER_TIME_CONSTANT);
+        }
+        return new QuaternionFusionEngine(FILTER_TIME_CONSTANT); // Default
+    }
 
-        if (mGyroMatrix == null) mGyroMatrix = getRotationMatrixFromOrientation(
-            mAccMagOrientation
-        );
+    // Must be called before the compass is started
+    public void setFusionEngine(final FusionEngine fusionEngine) {
+        if (fusionEngine != null) mFusionEngine = fusionEngine;
+    }
+
+    // Fuse inline on the sensor thread every N gyro samples instead of on
+    // the fixed-rate timer, must be called before the compass is started
+    public void setFusionDecimation(final int samples) {
+        mFusionDecimation = Math.max(0, samples);
+    }
+
+    // Suspends the accelerometer + magnetometer and fusion while the device
+    // is still, must be called before the compass is started
+    public void setMotionGate(final boolean enabled) {
+        mMotionGateEnabled = enabled;
+    }
+
+    // [suspended (0/1), times suspended, total suspended ms]
+    public long[] getMotionGateStats() {
+        return new long[] {
+            mMotionGate.isSuspended() ? 1 : 0,
+            mMotionGate.getSuspendCount(),
+            mMotionGate.getSuspendedMs(SystemClock.elapsedRealtime()),
+        };
+    }
+
+    // Integrates the gyro alone for intervalMs, then runs the accelerometer +
+    // magnetometer for burstMs to correct the drift, learning the gyro bias
+    // whenever the device is still. 0 keeps the magnetometer on. Must be
+    // called before the compass is started.
+    public void setMagDutyCycle(final long intervalMs, final long burstMs) {
+        mDutyIntervalMs = Math.max(0, intervalMs);
+        mDutyBurstMs = Math.max(TIME_CONSTANT, burstMs);
+    }
+
+    // Uses the self-calibrating accelerometer + magnetometer compass, see
+    // AccMagCompass.setCalibration. Must be called before the compass is
+    // started.
+    public void setCalibration(final boolean calibrate) {
+        mCalibration = calibrate;
+    }
+
+    // See MagneticCalibration.getState(), null when not calibrating
+    public double[] getCalibrationState() {
+        final Compass source = mAccMagSource;
+        return source instanceof AccMagCompass
+            ? ((AccMagCompass) source).getCalibrationState()
+            : null;
+    }
+
+    // [dead reckoning (0/1), heading drift found by the last correction in
+    //  degrees, dead-reckoning time before it ms, gyro bias x, y, z rad/s,
+    //  bias updates, corrections]
+    public double[] getDutyCycleStats() {
+        final double[] stats = new double[9];
+        stats[0] = mDeadReckoning ? 1 : 0;
+        stats[1] = mLastDriftDeg;
+        stats[2] = mLastDriftIntervalMs;
+        mBiasEstimator.getBias(stats, 3);
+        stats[6] = mBiasEstimator.getUpdates();
+        stats[7] = mCorrections;
+        return stats;
+    }
+
+    private void onGyroSample(final long timestamp, final float[] values) {
+        if (mDutyIntervalMs > 0) updateDutyCycle(timestamp);
+        if (!mHasAccMagOrientation) return;
 
-        final float[] deltaVector = new float[4];
+        if (mMotionGateEnabled) {
+            // Sample time, on the elapsedRealtime clock like the gate's
+            // other times, so a batched burst delivered all at once still
+            // accounts the suspended time to the samples that moved the gate
+            if (
+                mMotionGate.onGyro(
+                    values[0],
+                    values[1],
+                    values[2],
+                    timestamp / 1000000L
+                )
+            ) {
+                if (mMotionGate.isSuspended()) {
+                    mLastHoldPublishMs = 0;
+                } else {
+                    // Fuse on this very sample, one sample period after the last
+                    mLastFusionTimestamp = mTimestamp;
+                    mSamplesSinceFusion = mActiveDecimation;
+                }
+                updateActivity(TIME_CONSTANT, timestamp);
+            }
+            if (mMotionGate.isSuspended()) {
+                mTimestamp = timestamp;
+                holdHeading(timestamp);
+                return;
+            }
+        }
+
+        // Sample-to-sample dT keeps the integration exact across a batch
+        if (mDutyIntervalMs > 0) {
+            mBiasEstimator.add(values);
+            mBiasEstimator.correct(values, mGyro);
+        } else {
+            System.arraycopy(values, 0, mGyro, 0, 3);
+        }
         if (mTimestamp != 0) {
-            final float dT = (event.timestamp - mTimestamp) * NS2S;
-            System.arraycopy(event.values, 0, mGyro, 0, 3);
-            getRotationVectorFromGyro(mGyro, deltaVector, dT / 2.0f);
+            final float dT = (timestamp - mTimestamp) * NS2S;
+            mFusionEngine.integrateGyro(mGyro, dT);
         }
 
-        mTimestamp = event.timestamp;
+        if (isAdaptiveRate()) {
+            onAngularRate(
+                Math.toDegrees(
+                    Math.sqrt(
+                        values[0] * values[0] +
+                        values[1] * values[1] +
+                        values[2] * values[2]
+                    )
+                ),
+                timestamp
+            );
+        }
+
+        mTimestamp = timestamp;
+
+        if (
+            mActiveDecimation > 0 &&
+            ++mSamplesSinceFusion >= mActiveDecimation
+        ) {
+            mSamplesSinceFusion = 0;
+            fuseInline(timestamp);
+        }
+    }
+
+    // Keeps consumers waiting for a fresh reading served while the gate is closed
+    private void holdHeading(final long timestamp) {
+        final long now = timestamp / 1000000L;
+        if (now - mLastHoldPublishMs < HOLD_REPUBLISH_MS) return;
+        mLastHoldPublishMs = now;
+        // Nothing is fused while the gate is closed
+        publishOrientation(
+            mFusedOrientation[0],
+            mFusedOrientation[1],
+            mFusedOrientation[2],
+            mFusedMatrix,
+            timestamp
+        );
+    }
+
+    private void fuseInline(final long timestamp) {
+        if (mLastFusionTimestamp == 0) {
+            mLastFusionTimestamp = timestamp;
+            return;
+        }
+        final float dT = (timestamp - mLastFusionTimestamp) * NS2S;
+        mLastFusionTimestamp = timestamp;
+
+        // dT = 0 leaves the gyro estimate untouched while dead reckoning
+        mFusionEngine.fuse(
+            mFusedMatrix,
+            mFusedOrientation,
+            mDeadReckoning ? 0 : dT
+        );
+        publishOrientation(
+            mFusedOrientation[0],
+            mFusedOrientation[1],
+            mFusedOrientation[2],
+            mFusedMatrix,
+            timestamp
+        );
+    }
 
-        final float[] deltaMatrix = new float[9];
-        SensorManager.getRotationMatrixFromVector(deltaMatrix, deltaVector);
-        mGyroMatrix = matrixMultiplication(mGyroMatrix, deltaMatrix);
-        SensorManager.getOrientation(mGyroMatrix, mGyroOrientation);
+    // Without a gyroscope this reads the accelerometer + magnetometer only
+    @Override
+    protected String getSource() {
+        return mSensor != null ? "software" : "raw";
     }
 
     @Override
     protected void onStart() {
         if (mSensor != null) {
-            int sensorDelay = getSensorDelay();
-            mSensorManager.registerListener(
-                mSensorListener,
-                mSensor,
-                sensorDelay
-            );
-            mAccMagCompass.setCallback(
-                new CompassCallback() {
-                    @Override
-                    public void onReading(
-                        double heading,
-                        double accuracy,
-                        double magneticHeading,
-                        long timestamp
-                    ) {
-                        float[] orientation =
-                            mAccMagCompass.getLastOrientation();
-                        mAccMagListener.onCompassChanged(
-                            orientation[0],
-                            orientation[1],
-                            orientation[2]
-                        );
-                    }
-
-                    @Override
-                    public void onError(String error) {}
-                }
-            );
-
-            mTask = new FuseOrientationTask();
-            mFuseTimer.scheduleAtFixedRate(mTask, 200, TIME_CONSTANT);
-        } else {
-            // Fallback to AccMag if no gyroscope
-            mAccMagCompass.setCallback(
-                new CompassCallback() {
-                    @Override
-                    public void onReading(
-                        double heading,
-                        double accuracy,
-                        double magneticHeading,
-                        long timestamp
-                    ) {
-                        publishOrientation(
-                            (float) Math.toRadians(heading),
-                            0,
-                            0
-                        );
-                    }
-
-                    @Override
-                    public void onError(String error) {}
-                }
-            );
+            mTimestamp = 0;
+            // The fixed-rate timer would wake the CPU every 30 ms and defeat
+            // batching, so batched events are always fused inline
+            mActiveDecimation = isBatching() && mFusionDecimation == 0
+                ? 1
+                : mFusionDecimation;
+            mSamplesSinceFusion = 0;
+            mLastFusionTimestamp = 0;
+            registerGyro();
         }
+        // Without a gyroscope this falls back to AccMag
+        mHandler.post(mActivateTask);
     }
 
     @Override
     protected void onStop() {
         if (mSensor != null) {
+            mDirect.stop();
             mSensorManager.unregisterListener(mSensorListener);
-            mAccMagCompass.stop();
-            if (mTask != null) {
-                mTask.cancel();
+            mBatch.clear();
+        }
+        mHandler.post(mDeactivateTask);
+    }
+
+    // The AccMag subscription and the fusion timer are only opened and closed
+    // on the sensor thread, where the motion gate toggles them as well. Doing
+    // it there keeps SensorHub calls off the caller's (possibly locked) stack.
+    private final Runnable mActivateTask = new Runnable() {
+        @Override
+        public void run() {
+            activate(SystemClock.elapsedRealtime());
+        }
+    };
+
+    private final Runnable mDeactivateTask = new Runnable() {
+        @Override
+        public void run() {
+            mActive = false;
+            mMotionGate.reset(SystemClock.elapsedRealtime());
+            mMagOff = false;
+            mDeadReckoning = false;
+            updateActivity(0, 0);
+        }
+    };
+
+    private void activate(final long nowMs) {
+        mActive = true;
+        mMotionGate.reset(nowMs);
+        mMagOff = false;
+        mDeadReckoning = false;
+        mAwaitingCorrection = false;
+        mNextDutySwitch = 0;
+        updateActivity(200, nowMs * 1000000L);
+    }
+
+    // timestamp is the sensor time of the change, it only schedules the
+    // fusion timer of a replay
+    private void updateActivity(final long fuseDelayMs, final long timestamp) {
+        final boolean run = mActive && !mMotionGate.isSuspended();
+
+        // A replay feeds its own AccMagCompass while open, see onReplaySample
+        final boolean accMag = run && !mMagOff;
+        if (accMag && !mAccMagOpen) {
+            mAccMagOpen = true;
+            if (!isReplaying()) {
+                startAccMag(mSensor != null ? mFusionInput : mFallback);
             }
+        } else if (!accMag && mAccMagOpen) {
+            mAccMagOpen = false;
+            if (!isReplaying()) stopAccMag();
+        }
+
+        final boolean fuse = run && mSensor != null && mActiveDecimation == 0;
+        if (fuse && !mFuseRunning) {
+            mFuseRunning = true;
+            if (isReplaying()) {
+                mNextReplayFusion = timestamp + fuseDelayMs * 1000000L;
+            } else {
+                mFuseTask.start(fuseDelayMs);
+            }
+        } else if (!fuse && mFuseRunning) {
+            mFuseRunning = false;
+            mFuseTask.cancel();
+        }
+    }
+
+    // Alternates between a magnetometer burst and gyro-only dead reckoning,
+    // timed by the gyro samples so a replay cycles exactly like the recording
+    private void updateDutyCycle(final long timestamp) {
+        if (!mActive) return;
+        if (mNextDutySwitch == 0) {
+            mNextDutySwitch = timestamp + mDutyBurstMs * 1000000L;
+            return;
+        }
+        if (timestamp < mNextDutySwitch) return;
+        if (mMagOff) {
+            // Keep dead reckoning until the first fresh reference arrives
+            mMagOff = false;
+            mAwaitingCorrection = true;
+            mNextDutySwitch = timestamp + mDutyBurstMs * 1000000L;
         } else {
-            mAccMagCompass.stop();
+            mMagOff = true;
+            mDeadReckoning = true;
+            mAwaitingCorrection = false;
+            mDeadReckoningSinceMs = timestamp / 1000000L;
+            mNextDutySwitch = timestamp + mDutyIntervalMs * 1000000L;
+        }
+        updateActivity(TIME_CONSTANT, timestamp);
+    }
+
+    // Only the gyroscope is registered again here, the accelerometer +
+    // magnetometer compass adapts on its own and may be shared through
+    // SensorHub, so its request is updated once the lock is released
+    @Override
+    protected void onSensorRateChanged() {
+        if (mSensor != null) {
+            mDirect.stop();
+            mSensorManager.unregisterListener(mSensorListener);
+            mBatch.clear();
+            mTimestamp = 0;
+            mActiveDecimation = isBatching() && mFusionDecimation == 0
+                ? 1
+                : mFusionDecimation;
+            mSamplesSinceFusion = 0;
+            registerGyro();
         }
+        mHandler.post(mReconfigureTask);
     }
 
-    // Helper methods for gyroscope fusion
-    private float[] getRotationMatrixFromOrientation(final float[] o) {
-        final float[] xM = new float[9];
-        final float[] yM = new float[9];
-        final float[] zM = new float[9];
-
-        final float sinX = (float) Math.sin(o[1]);
-        final float cosX = (float) Math.cos(o[1]);
-        final float sinY = (float) Math.sin(o[2]);
-        final float cosY = (float) Math.cos(o[2]);
-        final float sinZ = (float) Math.sin(o[0]);
-        final float cosZ = (float) Math.cos(o[0]);
-
-        xM[0] = 1.0f;
-        xM[1] = 0.0f;
-        xM[2] = 0.0f;
-        xM[3] = 0.0f;
-        xM[4] = cosX;
-        xM[5] = sinX;
-        xM[6] = 0.0f;
-        xM[7] = -sinX;
-        xM[8] = cosX;
-
-        yM[0] = cosY;
-        yM[1] = 0.0f;
-        yM[2] = sinY;
-        yM[3] = 0.0f;
-        yM[4] = 1.0f;
-        yM[5] = 0.0f;
-        yM[6] = -sinY;
-        yM[7] = 0.0f;
-        yM[8] = cosY;
-
-        zM[0] = cosZ;
-        zM[1] = sinZ;
-        zM[2] = 0.0f;
-        zM[3] = -sinZ;
-        zM[4] = cosZ;
-        zM[5] = 0.0f;
-        zM[6] = 0.0f;
-        zM[7] = 0.0f;
-        zM[8] = 1.0f;
-
-        float[] resultMatrix = matrixMultiplication(xM, yM);
-        resultMatrix = matrixMultiplication(zM, resultMatrix);
-        return resultMatrix;
-    }
-
-    private void getRotationVectorFromGyro(
-        final float[] values,
-        final float[] deltaRotationVector,
-        final float time
+    // A new batching latency may start or stop the fusion timer and is
+    // passed on to the accelerometer + magnetometer compass
+    private final Runnable mReconfigureTask = new Runnable() {
+        @Override
+        public void run() {
+            if (!mActive) return;
+            updateActivity(TIME_CONSTANT, SystemClock.elapsedRealtimeNanos());
+            if (!mAccMagOpen) return;
+            if (mAccMagCompass != null) {
+                configureAccMag();
+            } else if (mAccMagSubscription != null) {
+                mAccMagSubscription.update(accMagRequest());
+            }
+        }
+    };
+
+    // The gyro is integrated between samples, so it keeps at least the
+    // SENSOR_DELAY_GAME rate however seldom the output is needed; only the
+    // callback readings are decimated to the output interval. The
+    // adaptive slow tier still lowers it while the device is still.
+    @Override
+    protected int getSamplingDelay() {
+        final int delay = getSensorDelay();
+        if (delay != getConfiguredDelay()) return delay; // Adaptive slow tier
+        return sensorDelayToMicros(delay) >
+            sensorDelayToMicros(SensorManager.SENSOR_DELAY_GAME)
+            ? SensorManager.SENSOR_DELAY_GAME
+            : delay;
+    }
+
+    private void registerGyro() {
+        if (!startDirectChannel(mDirect, mSensor)) {
+            registerListener(mSensorManager, mSensorListener, mSensor);
+        }
+    }
+
+    // A replay runs the same state machine as a live start, with the fusion
+    // timer, duty cycle and motion gate all timed by the replayed samples
+    @Override
+    protected void onStartReplay(final long timestamp) {
+        mTimestamp = 0;
+        mActiveDecimation = isBatching() && mFusionDecimation == 0
+            ? 1
+            : mFusionDecimation;
+        mSamplesSinceFusion = 0;
+        mLastFusionTimestamp = 0;
+        mHasAccMagOrientation = false;
+        mFuseRunning = false;
+        mAccMagOpen = false;
+        if (mAccMagCompass != null) {
+            configureAccMag();
+            mAccMagCompass.startReplay(
+                null,
+                mSensor != null ? mFusionInput : mFallback
+            );
+        }
+        activate(timestamp / 1000000L);
+    }
+
+    @Override
+    protected void onStopReplay() {
+        mActive = false;
+        mAccMagOpen = false;
+        mFuseRunning = false;
+        if (mAccMagCompass != null) mAccMagCompass.stopReplay();
+    }
+
+    @Override
+    protected void onReplaySample(
+        final int type,
+        final long timestamp,
+        final float[] values
     ) {
-        final float[] normValues = new float[3];
-        final float omegaMagnitude = (float) Math.sqrt(
-            values[0] * values[0] +
-            values[1] * values[1] +
-            values[2] * values[2]
-        );
+        // Timer ticks due before this sample run first, as they would live
+        while (mFuseRunning && timestamp >= mNextReplayFusion) {
+            fuse();
+            mNextReplayFusion += TIME_CONSTANT * 1000000L;
+        }
+        if (type == Sensor.TYPE_GYROSCOPE) {
+            onGyroSample(timestamp, values);
+        } else if (mAccMagCompass != null && mAccMagOpen) {
+            mAccMagCompass.replaySample(type, timestamp, values);
+        }
+    }
 
-        if (omegaMagnitude > EPSILON) {
-            normValues[0] = values[0] / omegaMagnitude;
-            normValues[1] = values[1] / omegaMagnitude;
-            normValues[2] = values[2] / omegaMagnitude;
+    @Override
+    protected void onReplayAccuracy(final int type, final int accuracy) {
+        if (type == Sensor.TYPE_GYROSCOPE) {
+            super.onReplayAccuracy(type, accuracy);
+        } else if (mAccMagCompass != null) {
+            mAccMagCompass.replayAccuracy(type, accuracy);
         }
+    }
 
-        final float thetaOverTwo = omegaMagnitude * time;
-        final float sinThetaOverTwo = (float) Math.sin(thetaOverTwo);
-        final float cosThetaOverTwo = (float) Math.cos(thetaOverTwo);
-        deltaRotationVector[0] = sinThetaOverTwo * normValues[0];
-        deltaRotationVector[1] = sinThetaOverTwo * normValues[1];
-        deltaRotationVector[2] = sinThetaOverTwo * normValues[2];
-        deltaRotationVector[3] = cosThetaOverTwo;
+    // Includes the accelerometer + magnetometer compass feeding the fusion
+    @Override
+    public void addMetricsTo(final long[] snapshot) {
+        super.addMetricsTo(snapshot);
+        final Compass source = mAccMagSource;
+        if (source != null) source.addMetricsTo(snapshot);
     }
 
-    private float[] matrixMultiplication(final float[] A, final float[] B) {
-        final float[] result = new float[9];
-        result[0] = A[0] * B[0] + A[1] * B[3] + A[2] * B[6];
-        result[1] = A[0] * B[1] + A[1] * B[4] + A[2] * B[7];
-        result[2] = A[0] * B[2] + A[1] * B[5] + A[2] * B[8];
-        result[3] = A[3] * B[0] + A[4] * B[3] + A[5] * B[6];
-        result[4] = A[3] * B[1] + A[4] * B[4] + A[5] * B[7];
-        result[5] = A[3] * B[2] + A[4] * B[5] + A[5] * B[8];
-        result[6] = A[6] * B[0] + A[7] * B[3] + A[8] * B[6];
-        result[7] = A[6] * B[1] + A[7] * B[4] + A[8] * B[7];
-        result[8] = A[6] * B[2] + A[7] * B[5] + A[8] * B[8];
-        return result;
+    // The attitude arrives as its rotation matrix through OrientationListener,
+    // so nothing is copied or allocated per reference sample and the fusion
+    // engine never has to rebuild it from Euler angles
+    private void startAccMag(final OrientationListener listener) {
+        if (mAccMagCompass != null) {
+            configureAccMag();
+            mAccMagCompass.setOrientationListener(listener);
+            return;
+        }
+        mAccMagSubscription = SensorHub.getInstance(mContext).subscribe(
+            (mCalibration
+                    ? SensorHub.KEY_ACC_MAG_CALIBRATED
+                    : SensorHub.KEY_ACC_MAG) +
+            (isDirectChannel() ? SensorHub.KEY_DIRECT : ""),
+            new SensorHub.CompassFactory() {
+                @Override
+                public Compass create() {
+                    final AccMagCompass compass = new AccMagCompass(mContext);
+                    compass.setCalibration(mCalibration);
+                    compass.setDirectChannel(isDirectChannel());
+                    return compass;
+                }
+            },
+            accMagRequest(),
+            null,
+            listener
+        );
+        mAccMagSource = mAccMagSubscription.getCompass();
     }
 
+    // The configured delay, the accelerometer + magnetometer compass follows
+    // the adaptive rate itself
+    private SensorHub.Request accMagRequest() {
+        return new SensorHub.Request()
+            .setSensorDelay(mSensorDelay)
+            .setSamplingPeriodUs(mSamplingPeriodUs)
+            .setMaxReportLatency(mMaxReportLatencyUs)
+            // Fusion only needs the newest absolute reference per burst
+            .setDeliverLatestOnly(true)
+            .setAdaptiveRate(isAdaptiveRate());
+    }
+
+    private void configureAccMag() {
+        mAccMagSource = mAccMagCompass;
+        mAccMagCompass.setSensorDelay(mSensorDelay);
+        mAccMagCompass.setSamplingPeriodUs(mSamplingPeriodUs);
+        mAccMagCompass.setMaxReportLatency(mMaxReportLatencyUs);
+        mAccMagCompass.setDeliverLatestOnly(true);
+        mAccMagCompass.setAdaptiveRate(isAdaptiveRate());
+        mAccMagCompass.setCalibration(mCalibration);
+        mAccMagCompass.setDirectChannel(isDirectChannel());
+    }
+
+    private void stopAccMag() {
+        if (mAccMagCompass != null) {
+            mAccMagCompass.stop();
+        } else if (mAccMagSubscription != null) {
+            mAccMagSubscription.close();
+            mAccMagSubscription = null;
+        }
+    }
+
+    private final OrientationListener mFusionInput = new OrientationListener() {
+        @Override
+        public void onOrientation(
+            float azimuth,
+            float pitch,
+            float roll,
+            float[] rotationMatrix,
+            double accuracy,
+            long timestamp
+        ) {
+            mAccMagTimestamp = timestamp;
+            if (mMotionGateEnabled) mMotionGate.onTilt(pitch, roll);
+            mAccMagListener.onCompassChanged(azimuth, rotationMatrix);
+        }
+    };
+
+    // Without a gyroscope the accelerometer + magnetometer attitude is passed on
+    private final OrientationListener mFallback = new OrientationListener() {
+        @Override
+        public void onOrientation(
+            float azimuth,
+            float pitch,
+            float roll,
+            float[] rotationMatrix,
+            double accuracy,
+            long timestamp
+        ) {
+            mLastSensorAccuracy = accuracy;
+            publishOrientation(azimuth, pitch, roll, rotationMatrix, timestamp);
+        }
+    };
+
     private class AccMagListener {
 
         public void onCompassChanged(
-            final float x,
-            final float y,
-            final float z
+            final float azimuth,
+            final float[] rotationMatrix
         ) {
-            if (mAccMagOrientation == null) {
-                mGyroOrientation[0] = x;
-                mGyroOrientation[1] = y;
-                mGyroOrientation[2] = z;
+            if (mAwaitingCorrection) {
+                // How far the gyro alone wandered since the last burst
+                double drift = Math.toDegrees(azimuth - mFusedOrientation[0]);
+                if (drift > 180) drift -= 360;
+                else if (drift < -180) drift += 360;
+                mLastDriftDeg = drift;
+                mLastDriftIntervalMs =
+                    mAccMagTimestamp / 1000000L - mDeadReckoningSinceMs;
+                mCorrections++;
+                mDeadReckoning = false;
+            }
+            // After dead reckoning the attitude snaps to the fresh reference,
+            // the complementary filter would take seconds to remove the drift
+            if (!mHasAccMagOrientation || mAwaitingCorrection) {
+                mFusionEngine.reset(rotationMatrix);
+                mHasAccMagOrientation = true;
+                mAwaitingCorrection = false;
+            } else {
+                mFusionEngine.setReference(rotationMatrix);
             }
-            mAccMagOrientation = new float[] { x, y, z };
         }
     }
 
-    private class FuseOrientationTask extends TimerTask {
+    // Fixed-rate fusion on the sensor thread, so it never races the gyro integration
+    private class FuseOrientationTask implements Runnable {
+
+        private volatile boolean mRunning = false;
+        private long mNextRun;
+
+        void start(final long delayMs) {
+            mRunning = true;
+            mNextRun = SystemClock.uptimeMillis() + delayMs;
+            mHandler.postAtTime(this, mNextRun);
+        }
+
+        void cancel() {
+            mRunning = false;
+            mHandler.removeCallbacks(this);
+        }
 
         @Override
         public void run() {
-            if (mAccMagOrientation == null) return;
+            if (!mRunning) return;
+            fuse();
+            mNextRun += TIME_CONSTANT;
+            mHandler.postAtTime(this, mNextRun);
+        }
+    }
 
-            final float oneMinusCoeff = 1.0f - FILTER_COEFFICIENT;
+    // One tick of the fixed-rate fusion
+    private void fuse() {
+        beginProcessing();
+        if (!mHasAccMagOrientation) return;
+        mFusionEngine.fuse(
+            mFusedMatrix,
+            mFusedOrientation,
+            mDeadReckoning ? 0 : TIME_CONSTANT / 1000.0f
+        );
+        // As fresh as the newest gyro or reference sample fused in
+        final long timestamp = Math.max(mTimestamp, mAccMagTimestamp);
+        publishOrientation(
+            mFusedOrientation[0],
+            mFusedOrientation[1],
+            mFusedOrientation[2],
+            mFusedMatrix,
+            timestamp
+        );
+    }
 
-            // Sensor fusion for azimuth
-            if (
-                mGyroOrientation[0] < -0.5 * Math.PI &&
-                mAccMagOrientation[0] > 0.0
-            ) {
-                mFusedOrientation[0] = (float) (FILTER_COEFFICIENT *
-                        (mGyroOrientation[0] + 2.0 * Math.PI) +
-                    oneMinusCoeff * mAccMagOrientation[0]);
-                mFusedOrientation[0] -= (mFusedOrientation[0] > Math.PI)
-                    ? 2.0 * Math.PI
-                    : 0;
-            } else if (
-                mAccMagOrientation[0] < -0.5 * Math.PI &&
-                mGyroOrientation[0] > 0.0
-            ) {
-                mFusedOrientation[0] = (float) (FILTER_COEFFICIENT *
-                        mGyroOrientation[0] +
-                    oneMinusCoeff * (mAccMagOrientation[0] + 2.0 * Math.PI));
-                mFusedOrientation[0] -= (mFusedOrientation[0] > Math.PI)
-                    ? 2.0 * Math.PI
-                    : 0;
-            } else {
-                mFusedOrientation[0] =
-                    FILTER_COEFFICIENT * mGyroOrientation[0] +
-                    oneMinusCoeff * mAccMagOrientation[0];
-            }
+    private class SensorListener
+        implements SensorEventListener, SensorBatch.Consumer {
 
-            // pitch
-            if (
-                mGyroOrientation[1] < -0.5 * Math.PI &&
-                mAccMagOrientation[1] > 0.0
-            ) {
-                mFusedOrientation[1] = (float) (FILTER_COEFFICIENT *
-                        (mGyroOrientation[1] + 2.0 * Math.PI) +
-                    oneMinusCoeff * mAccMagOrientation[1]);
-                mFusedOrientation[1] -= (mFusedOrientation[1] > Math.PI)
-                    ? 2.0 * Math.PI
-                    : 0;
-            } else if (
-                mAccMagOrientation[1] < -0.5 * Math.PI &&
-                mGyroOrientation[1] > 0.0
-            ) {
-                mFusedOrientation[1] = (float) (FILTER_COEFFICIENT *
-                        mGyroOrientation[1] +
-                    oneMinusCoeff * (mAccMagOrientation[1] + 2.0 * Math.PI));
-                mFusedOrientation[1] -= (mFusedOrientation[1] > Math.PI)
-                    ? 2.0 * Math.PI
-                    : 0;
-            } else {
-                mFusedOrientation[1] =
-                    FILTER_COEFFICIENT * mGyroOrientation[1] +
-                    oneMinusCoeff * mAccMagOrientation[1];
-            }
+        @Override
+        public void onAccuracyChanged(final Sensor sensor, final int accuracy) {
+            ingestAccuracy(sensor, accuracy);
+            onSensorAccuracyChanged(accuracy);
+        }
 
-            // roll
-            if (
-                mGyroOrientation[2] < -0.5 * Math.PI &&
-                mAccMagOrientation[2] > 0.0
-            ) {
-                mFusedOrientation[2] = (float) (FILTER_COEFFICIENT *
-                        (mGyroOrientation[2] + 2.0 * Math.PI) +
-                    oneMinusCoeff * mAccMagOrientation[2]);
-                mFusedOrientation[2] -= (mFusedOrientation[2] > Math.PI)
-                    ? 2.0 * Math.PI
-                    : 0;
-            } else if (
-                mAccMagOrientation[2] < -0.5 * Math.PI &&
-                mGyroOrientation[2] > 0.0
-            ) {
-                mFusedOrientation[2] = (float) (FILTER_COEFFICIENT *
-                        mGyroOrientation[2] +
-                    oneMinusCoeff * (mAccMagOrientation[2] + 2.0 * Math.PI));
-                mFusedOrientation[2] -= (mFusedOrientation[2] > Math.PI)
-                    ? 2.0 * Math.PI
-                    : 0;
+        @Override
+        public void onSensorChanged(final SensorEvent event) {
+            ingestEvent(event);
+            if (isBatching()) {
+                mBatch.add(event);
             } else {
-                mFusedOrientation[2] =
-                    FILTER_COEFFICIENT * mGyroOrientation[2] +
-                    oneMinusCoeff * mAccMagOrientation[2];
+                onGyroSample(event.timestamp, event.values);
             }
-
-            mGyroMatrix = getRotationMatrixFromOrientation(mFusedOrientation);
-            System.arraycopy(mFusedOrientation, 0, mGyroOrientation, 0, 3);
-
-            mHandler.post(
-                new Runnable() {
-                    @Override
-                    public void run() {
-                        publishOrientation(
-                            mFusedOrientation[0],
-                            mFusedOrientation[1],
-                            mFusedOrientation[2]
-                        );
-                    }
-                }
-            );
         }
-    }
 
-    private class SensorListener implements SensorEventListener {
+        @Override
+        public void onBurstStart() {
+            beginBurst();
+        }
 
         @Override
-        public void onAccuracyChanged(final Sensor sensor, final int accuracy) {
-            // Track the latest sensor accuracy for callbacks
-            switch (accuracy) {
-                case SensorManager.SENSOR_STATUS_ACCURACY_HIGH:
-                    mLastSensorAccuracy = 1.0;
-                    break;
-                case SensorManager.SENSOR_STATUS_ACCURACY_MEDIUM:
-                    mLastSensorAccuracy = 3.0;
-                    break;
-                case SensorManager.SENSOR_STATUS_ACCURACY_LOW:
-                    mLastSensorAccuracy = 10.0;
-                    break;
-                case SensorManager.SENSOR_STATUS_UNRELIABLE:
-                default:
-                    mLastSensorAccuracy = 15.0;
-                    break;
-            }
+        public void onSample(
+            final int type,
+            final long timestamp,
+            final float[] values
+        ) {
+            onGyroSample(timestamp, values);
         }
 
         @Override
-        public void onSensorChanged(final SensorEvent event) {
-            onGyroChanged(event);
+        public void onBurstEnd() {
+            endBurst();
         }
     }
 }
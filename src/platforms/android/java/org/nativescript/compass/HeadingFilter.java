@@ -0,0 +1,12 @@
+package org.nativescript.compass;
+
+// One stage of the CompassHelper heading filter chain. Headings are degrees
+// in [0, 360), timestamps are nanoseconds. Stages run on the sensor thread
+// for every reading and must not allocate.
+public interface HeadingFilter {
+    // Returns the filtered heading, or NaN to drop the reading
+    double filter(double heading, long timestampNanos);
+
+    // Forgets all state, called when updates start
+    void reset();
+}
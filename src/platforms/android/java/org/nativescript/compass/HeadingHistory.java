@@ -0,0 +1,159 @@
+package org.nativescript.compass;
+
+// Fixed-capacity ring of (timestamp, azimuth, pitch, roll) samples with a
+// circular mean/variance over the last statsWindowMs and an angular velocity
+// over the last rateWindowMs. Every sample enters and leaves each window
+// once, so adding is O(1) amortized and queries are O(1).
+final class HeadingHistory {
+
+    private final int mCapacity;
+    private final long[] mTimestamps;
+    private final float[] mAzimuth; // Degrees, 0-360
+    private final float[] mPitch;
+    private final float[] mRoll;
+    // Azimuth without the 360/0 wrap, so a window's turn is newest - oldest
+    private final double[] mUnwrapped;
+    private long mCount = 0; // Samples ever added, the next slot is mCount % mCapacity
+
+    private final long mStatsWindowMs;
+    private long mStatsTail = 0; // Oldest sample inside the stats window
+    private double mSumSin = 0;
+    private double mSumCos = 0;
+
+    private final long mRateWindowMs;
+    private long mRateTail = 0; // Oldest sample inside the rate window
+
+    HeadingHistory(
+        final int capacity,
+        final long statsWindowMs,
+        final long rateWindowMs
+    ) {
+        mCapacity = Math.max(2, capacity);
+        mTimestamps = new long[mCapacity];
+        mAzimuth = new float[mCapacity];
+        mPitch = new float[mCapacity];
+        mRoll = new float[mCapacity];
+        mUnwrapped = new double[mCapacity];
+        mStatsWindowMs = Math.max(0, statsWindowMs);
+        mRateWindowMs = Math.max(0, rateWindowMs);
+    }
+
+    synchronized void add(
+        final long timestamp,
+        final double azimuth,
+        final double pitch,
+        final double roll
+    ) {
+        // The slot about to be overwritten leaves both windows first
+        if (mCount >= mCapacity) {
+            final long overwritten = mCount - mCapacity;
+            if (mStatsTail <= overwritten) evictStats();
+            if (mRateTail <= overwritten) mRateTail = overwritten + 1;
+        }
+
+        final int slot = (int) (mCount % mCapacity);
+        double unwrapped = azimuth;
+        if (mCount > 0) {
+            final int previous = (int) ((mCount - 1) % mCapacity);
+            double delta = azimuth - mAzimuth[previous];
+            if (delta > 180) delta -= 360;
+            else if (delta < -180) delta += 360;
+            unwrapped = mUnwrapped[previous] + delta;
+        }
+        mTimestamps[slot] = timestamp;
+        mAzimuth[slot] = (float) azimuth;
+        mPitch[slot] = (float) pitch;
+        mRoll[slot] = (float) roll;
+        mUnwrapped[slot] = unwrapped;
+        mCount++;
+
+        final double radians = Math.toRadians(azimuth);
+        mSumSin += Math.sin(radians);
+        mSumCos += Math.cos(radians);
+
+        while (
+            mStatsTail < mCount - 1 &&
+            timestamp - mTimestamps[(int) (mStatsTail % mCapacity)] >
+            mStatsWindowMs
+        ) {
+            evictStats();
+        }
+        while (
+            mRateTail < mCount - 1 &&
+            timestamp - mTimestamps[(int) (mRateTail % mCapacity)] >
+            mRateWindowMs
+        ) {
+            mRateTail++;
+        }
+
+        // Re-sum once per lap so rounding from the running sums never builds up
+        if (slot == mCapacity - 1) resumStats();
+    }
+
+    private void evictStats() {
+        final double radians = Math.toRadians(
+            mAzimuth[(int) (mStatsTail % mCapacity)]
+        );
+        mSumSin -= Math.sin(radians);
+        mSumCos -= Math.cos(radians);
+        mStatsTail++;
+    }
+
+    private void resumStats() {
+        mSumSin = 0;
+        mSumCos = 0;
+        for (long i = mStatsTail; i < mCount; i++) {
+            final double radians = Math.toRadians(
+                mAzimuth[(int) (i % mCapacity)]
+            );
+            mSumSin += Math.sin(radians);
+            mSumCos += Math.cos(radians);
+        }
+    }
+
+    synchronized void clear() {
+        mCount = 0;
+        mStatsTail = 0;
+        mRateTail = 0;
+        mSumSin = 0;
+        mSumCos = 0;
+    }
+
+    // out = [circular mean (degrees), circular variance (0-1),
+    //        angular velocity (degrees/s, positive clockwise), samples in
+    //        the stats window]. Returns false while the history is empty.
+    synchronized boolean getStats(final double[] out) {
+        if (mCount == 0) return false;
+        final long samples = mCount - mStatsTail;
+
+        double mean = Math.toDegrees(Math.atan2(mSumSin, mSumCos));
+        if (mean < 0) mean += 360;
+        if (mean >= 360) mean -= 360; // -0.0000001 + 360 rounds to 360
+        final double resultant =
+            Math.sqrt(mSumSin * mSumSin + mSumCos * mSumCos) / samples;
+
+        final int newest = (int) ((mCount - 1) % mCapacity);
+        final int oldest = (int) (mRateTail % mCapacity);
+        final long span = mTimestamps[newest] - mTimestamps[oldest];
+
+        out[0] = mean;
+        out[1] = Math.max(0, Math.min(1, 1 - resultant));
+        out[2] = span > 0
+            ? (mUnwrapped[newest] - mUnwrapped[oldest]) * 1000.0 / span
+            : 0;
+        out[3] = samples;
+        return true;
+    }
+
+    // out = [timestamp, azimuth, pitch, roll] of the sample `ago` readings
+    // before the newest one. Returns false when it is no longer stored.
+    synchronized boolean getSample(final int ago, final double[] out) {
+        if (ago < 0 || ago >= mCapacity || ago >= mCount) return false;
+        final int slot = (int) ((mCount - 1 - ago) % mCapacity);
+        out[0] = mTimestamps[slot];
+        out[1] = mAzimuth[slot];
+        out[2] = mPitch[slot];
+        out[3] = mRoll[slot];
+        return true;
+    }
+}
@@ -0,0 +1,82 @@
+package org.nativescript.compass;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import java.util.HashMap;
+
+// Most recent reading published by a running Compass of each source, so
+// one-shot requests can be answered without starting the sensors. The
+// heading is the compass's own, before the filter chain and declination,
+// which is what a one-shot request delivers from the sensors as well.
+final class LastReadingCache {
+
+    private static final class Reading {
+
+        double mHeading;
+        double mAccuracy;
+        double mMagneticHeading;
+        long mTimestamp; // elapsedRealtimeNanos, immune to clock changes
+    }
+
+    // Keyed by the source as CompassHelper resolves it, see Compass.getSource
+    private static final HashMap<String, Reading> sReadings = new HashMap<>();
+
+    private LastReadingCache() {}
+
+    static synchronized void update(
+        String source,
+        double heading,
+        double accuracy,
+        double magneticHeading,
+        long timestamp
+    ) {
+        Reading reading = sReadings.get(source);
+        if (reading == null) {
+            reading = new Reading();
+            sReadings.put(source, reading);
+        }
+        reading.mHeading = heading;
+        reading.mAccuracy = accuracy;
+        reading.mMagneticHeading = magneticHeading;
+        reading.mTimestamp = timestamp;
+    }
+
+    // Posts the cached reading of source to handler, stamped with wall-clock
+    // time, if its sensor sample is at most maxAgeMs old
+    static boolean deliverIfFresh(
+        String source,
+        long maxAgeMs,
+        Handler handler,
+        final CompassCallback callback
+    ) {
+        final double heading, accuracy, magneticHeading;
+        final long timestamp;
+        synchronized (LastReadingCache.class) {
+            final Reading reading = sReadings.get(source);
+            if (
+                reading == null ||
+                SystemClock.elapsedRealtimeNanos() - reading.mTimestamp >
+                maxAgeMs * 1000000L
+            ) return false;
+            heading = reading.mHeading;
+            accuracy = reading.mAccuracy;
+            magneticHeading = reading.mMagneticHeading;
+            timestamp = reading.mTimestamp;
+        }
+        final long wallClock = Compass.toWallClockMillis(timestamp);
+        handler.post(
+            new Runnable() {
+                @Override
+                public void run() {
+                    callback.onReading(
+                        heading,
+                        accuracy,
+                        magneticHeading,
+                        wallClock
+                    );
+                }
+            }
+        );
+        return true;
+    }
+}
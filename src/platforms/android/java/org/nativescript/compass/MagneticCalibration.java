@@ -0,0 +1,241 @@
+package org.nativescript.compass;
+
+// Streaming hard- and soft-iron calibration for an uncalibrated magnetometer.
+// Fits the axis-aligned ellipsoid A x^2 + B y^2 + C z^2 + D x + E y + F z = 1
+// by least squares over exponentially decayed running sums, so memory and
+// work per sample are constant and old environments fade out. The ellipsoid
+// centre is the hard-iron offset and its semi-axes give the per-axis
+// soft-iron scale that maps it back onto a sphere.
+final class MagneticCalibration {
+
+    static final int FIT_INTERVAL = 50; // Samples between fits
+    static final double DECAY = 1 - 1.0 / 3000; // Per-sample forgetting factor
+    static final double MIN_WEIGHT = 200; // Samples a fit needs at least
+    static final double MIN_SPREAD = 0.25; // Per-axis std dev / radius
+    static final double MIN_RADIUS_UT = 10;
+    static final double MAX_RADIUS_UT = 200;
+    static final double MAX_AXIS_RATIO = 2;
+    static final double RESIDUAL_ALPHA = 1.0 / 200;
+    static final int FIT_SIZE = 7; // Offset x, y, z, scale x, y, z, radius
+
+    private static final int PARAMS = 6;
+    private static final int COLUMNS = PARAMS + 1;
+
+    // Sums of phi phi^T (upper triangle) and phi,
+    // phi = [x^2, y^2, z^2, x, y, z]
+    private final double[] mSums = new double[PARAMS * PARAMS];
+    private final double[] mRhs = new double[PARAMS];
+    private double mWeight = 0;
+    private int mSinceFit = 0;
+    private final double[] mSystem = new double[PARAMS * COLUMNS];
+    private final double[] mPhi = new double[PARAMS];
+
+    // Current fit, written under the lock and read without it on the
+    // sensor thread
+    private boolean mValid = false;
+    private final float[] mOffset = new float[3];
+    private final float[] mScale = { 1, 1, 1 };
+    private float mRadius = 0;
+    private int mFits = 0;
+
+    // Spread of the corrected field magnitude, sensor thread only
+    private double mMeanMagnitude = 0;
+    private double mResidualSq = 0;
+    private int mResidualSamples = 0;
+
+    // Adds one raw sample and refits every FIT_INTERVAL samples. Returns true
+    // when a new fit was accepted. Sensor thread only.
+    boolean add(final float[] raw) {
+        final double x = raw[0], y = raw[1], z = raw[2];
+        mPhi[0] = x * x;
+        mPhi[1] = y * y;
+        mPhi[2] = z * z;
+        mPhi[3] = x;
+        mPhi[4] = y;
+        mPhi[5] = z;
+        for (int i = 0; i < PARAMS; i++) {
+            for (int j = i; j < PARAMS; j++) {
+                mSums[i * PARAMS + j] =
+                    mSums[i * PARAMS + j] * DECAY + mPhi[i] * mPhi[j];
+            }
+            mRhs[i] = mRhs[i] * DECAY + mPhi[i];
+        }
+        mWeight = mWeight * DECAY + 1;
+
+        if (++mSinceFit < FIT_INTERVAL || mWeight < MIN_WEIGHT) return false;
+        mSinceFit = 0;
+        return fit();
+    }
+
+    // Applies the current fit, out may alias raw. Returns false and copies
+    // the sample unchanged while there is no fit yet.
+    boolean correct(final float[] raw, final float[] out) {
+        if (!mValid) {
+            System.arraycopy(raw, 0, out, 0, 3);
+            return false;
+        }
+        out[0] = (raw[0] - mOffset[0]) * mScale[0];
+        out[1] = (raw[1] - mOffset[1]) * mScale[1];
+        out[2] = (raw[2] - mOffset[2]) * mScale[2];
+
+        // A good fit leaves the corrected magnitude constant
+        final double magnitude = Math.sqrt(
+            out[0] * out[0] + out[1] * out[1] + out[2] * out[2]
+        );
+        if (mResidualSamples == 0) {
+            mMeanMagnitude = magnitude;
+        } else {
+            final double delta = magnitude - mMeanMagnitude;
+            mMeanMagnitude += RESIDUAL_ALPHA * delta;
+            mResidualSq += RESIDUAL_ALPHA * (delta * delta - mResidualSq);
+        }
+        mResidualSamples++;
+        return true;
+    }
+
+    // Heading error in degrees a magnitude spread of the residual causes in
+    // the horizontal field at 60 degrees inclination, NaN until known
+    double getAccuracy() {
+        if (!mValid || mResidualSamples < FIT_INTERVAL) return Double.NaN;
+        final double horizontal = mMeanMagnitude / 2;
+        return Math.max(
+            1,
+            Math.min(45, Math.toDegrees(Math.atan2(getResidual(), horizontal)))
+        );
+    }
+
+    double getResidual() {
+        return Math.sqrt(mResidualSq);
+    }
+
+    private boolean fit() {
+        // Normal equations, mirrored from the upper triangle
+        for (int i = 0; i < PARAMS; i++) {
+            for (int j = 0; j < PARAMS; j++) {
+                mSystem[i * COLUMNS + j] = i <= j
+                    ? mSums[i * PARAMS + j]
+                    : mSums[j * PARAMS + i];
+            }
+            mSystem[i * COLUMNS + PARAMS] = mRhs[i];
+        }
+        if (!solve()) return false;
+
+        final double a = mSystem[0 * COLUMNS + PARAMS];
+        final double b = mSystem[1 * COLUMNS + PARAMS];
+        final double c = mSystem[2 * COLUMNS + PARAMS];
+        if (a <= 0 || b <= 0 || c <= 0) return false;
+        final double cx = -mSystem[3 * COLUMNS + PARAMS] / (2 * a);
+        final double cy = -mSystem[4 * COLUMNS + PARAMS] / (2 * b);
+        final double cz = -mSystem[5 * COLUMNS + PARAMS] / (2 * c);
+        final double g = 1 + a * cx * cx + b * cy * cy + c * cz * cz;
+        if (g <= 0) return false;
+        final double ax = Math.sqrt(g / a);
+        final double ay = Math.sqrt(g / b);
+        final double az = Math.sqrt(g / c);
+        final double radius = Math.cbrt(ax * ay * az);
+        if (
+            radius < MIN_RADIUS_UT ||
+            radius > MAX_RADIUS_UT ||
+            Math.max(ax, Math.max(ay, az)) >
+            MAX_AXIS_RATIO * Math.min(ax, Math.min(ay, az))
+        ) return false;
+
+        // Every axis must have been swept, or its centre is a guess
+        final double minSpread = MIN_SPREAD * radius;
+        for (int i = 0; i < 3; i++) {
+            final double mean = mRhs[3 + i] / mWeight;
+            final double variance = mRhs[i] / mWeight - mean * mean;
+            if (variance < minSpread * minSpread) return false;
+        }
+
+        synchronized (this) {
+            mOffset[0] = (float) cx;
+            mOffset[1] = (float) cy;
+            mOffset[2] = (float) cz;
+            mScale[0] = (float) (radius / ax);
+            mScale[1] = (float) (radius / ay);
+            mScale[2] = (float) (radius / az);
+            mRadius = (float) radius;
+            mValid = true;
+            mFits++;
+        }
+        return true;
+    }
+
+    // Gauss-Jordan elimination with partial pivoting in place, the
+    // solution ends up in the last column
+    private boolean solve() {
+        for (int col = 0; col < PARAMS; col++) {
+            int pivot = col;
+            for (int row = col + 1; row < PARAMS; row++) {
+                if (
+                    Math.abs(mSystem[row * COLUMNS + col]) >
+                    Math.abs(mSystem[pivot * COLUMNS + col])
+                ) pivot = row;
+            }
+            final double value = mSystem[pivot * COLUMNS + col];
+            if (Math.abs(value) < 1e-12) return false;
+            if (pivot != col) {
+                for (int k = 0; k < COLUMNS; k++) {
+                    final double swap = mSystem[col * COLUMNS + k];
+                    mSystem[col * COLUMNS + k] = mSystem[pivot * COLUMNS + k];
+                    mSystem[pivot * COLUMNS + k] = swap;
+                }
+            }
+            for (int k = col; k < COLUMNS; k++) {
+                mSystem[col * COLUMNS + k] /= value;
+            }
+            for (int row = 0; row < PARAMS; row++) {
+                if (row == col) continue;
+                final double factor = mSystem[row * COLUMNS + col];
+                if (factor == 0) continue;
+                for (int k = col; k < COLUMNS; k++) {
+                    mSystem[row * COLUMNS + k] -=
+                        factor * mSystem[col * COLUMNS + k];
+                }
+            }
+        }
+        return true;
+    }
+
+    // [offset x, y, z, scale x, y, z, radius], null without a fit
+    synchronized float[] getFit() {
+        if (!mValid) return null;
+        return new float[] {
+            mOffset[0],
+            mOffset[1],
+            mOffset[2],
+            mScale[0],
+            mScale[1],
+            mScale[2],
+            mRadius,
+        };
+    }
+
+    // Restores a fit from getFit(), e.g. from the previous session. Call
+    // before samples arrive.
+    synchronized void setFit(final float[] fit) {
+        if (fit == null || fit.length < FIT_SIZE) return;
+        System.arraycopy(fit, 0, mOffset, 0, 3);
+        System.arraycopy(fit, 3, mScale, 0, 3);
+        mRadius = fit[6];
+        mValid = true;
+    }
+
+    // [fitted (0/1), offset x, y, z uT, scale x, y, z, radius uT,
+    //  residual uT, fits accepted]
+    synchronized double[] getState() {
+        return new double[] {
+            mValid ? 1 : 0,
+            mOffset[0],
+            mOffset[1],
+            mOffset[2],
+            mScale[0],
+            mScale[1],
+            mScale[2],
+            mRadius,
+            mResidualSamples > 0 ? getResidual() : Double.NaN,
+            mFits,
+        };
+    }
+}
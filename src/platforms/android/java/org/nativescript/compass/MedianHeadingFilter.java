@@ -0,0 +1,65 @@
+package org.nativescript.compass;
+
+// Sliding circular median over the last `window` headings. Headings are
+// taken as offsets from their circular mean, so the 360/0 wrap never splits
+// the window, and the middle offset is the median.
+public class MedianHeadingFilter implements HeadingFilter {
+
+    private final float[] mWindow;
+    private final double[] mSorted;
+    private int mCount = 0;
+    private int mIndex = 0;
+
+    public MedianHeadingFilter(final int window) {
+        final int size = Math.max(1, window);
+        mWindow = new float[size];
+        mSorted = new double[size];
+    }
+
+    int getWindow() {
+        return mWindow.length;
+    }
+
+    @Override
+    public double filter(final double heading, final long timestampNanos) {
+        mWindow[mIndex] = (float) heading;
+        mIndex = (mIndex + 1) % mWindow.length;
+        if (mCount < mWindow.length) mCount++;
+
+        double sumSin = 0, sumCos = 0;
+        for (int i = 0; i < mCount; i++) {
+            final double radians = Math.toRadians(mWindow[i]);
+            sumSin += Math.sin(radians);
+            sumCos += Math.cos(radians);
+        }
+        final double mean = Math.toDegrees(Math.atan2(sumSin, sumCos));
+
+        // Insertion sort of the whole window, which is small. Every sample
+        // moves the mean and so every offset, nothing carries over.
+        for (int i = 0; i < mCount; i++) {
+            double offset = mWindow[i] - mean;
+            while (offset > 180) offset -= 360;
+            while (offset <= -180) offset += 360;
+            int j = i - 1;
+            while (j >= 0 && mSorted[j] > offset) {
+                mSorted[j + 1] = mSorted[j];
+                j--;
+            }
+            mSorted[j + 1] = offset;
+        }
+
+        double median = mean + (mCount % 2 == 1
+            ? mSorted[mCount / 2]
+            : (mSorted[mCount / 2 - 1] + mSorted[mCount / 2]) / 2);
+        if (median < 0) median += 360;
+        // Also when a tiny negative median rounded up to 360 above
+        if (median >= 360) median -= 360;
+        return median;
+    }
+
+    @Override
+    public void reset() {
+        mCount = 0;
+        mIndex = 0;
+    }
+}
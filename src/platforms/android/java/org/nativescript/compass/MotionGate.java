@@ -0,0 +1,121 @@
+package org.nativescript.compass;
+
+// Decides when the device is still enough to suspend the magnetometer and
+// fusion. Stillness needs a full window of low, steady gyro magnitude plus a
+// steady accelerometer tilt; a single gyro sample above GYRO_MOTION_RAD ends
+// it again, so heading changes are never missed for more than one sample.
+final class MotionGate {
+
+    static final int GYRO_WINDOW = 32;
+    static final int TILT_WINDOW = 8;
+
+    static final double GYRO_STILL_RAD = 0.03; // Mean |omega|, rad/s
+    static final double GYRO_STILL_VARIANCE = 1e-4; // (rad/s)^2
+    static final double TILT_STILL_VARIANCE = 1e-4; // rad^2, ~0.6 degrees
+    static final double GYRO_MOTION_RAD = 0.06; // Resumes immediately
+
+    private final float[] mGyro = new float[GYRO_WINDOW];
+    private int mGyroCount = 0;
+    private int mGyroIndex = 0;
+    private final float[] mPitch = new float[TILT_WINDOW];
+    private final float[] mRoll = new float[TILT_WINDOW];
+    private int mTiltCount = 0;
+    private int mTiltIndex = 0;
+
+    private boolean mSuspended = false;
+    private int mSuspendCount = 0;
+    private long mSuspendedMs = 0;
+    private long mSuspendedSinceMs = 0;
+
+    // Returns true when the gate opened or closed with this sample
+    synchronized boolean onGyro(
+        final float x,
+        final float y,
+        final float z,
+        final long nowMs
+    ) {
+        final float magnitude = (float) Math.sqrt(x * x + y * y + z * z);
+
+        if (magnitude > GYRO_MOTION_RAD) {
+            clear();
+            if (!mSuspended) return false;
+            mSuspended = false;
+            mSuspendedMs += nowMs - mSuspendedSinceMs;
+            return true;
+        }
+
+        mGyro[mGyroIndex] = magnitude;
+        mGyroIndex = (mGyroIndex + 1) % GYRO_WINDOW;
+        if (mGyroCount < GYRO_WINDOW) mGyroCount++;
+
+        if (
+            mSuspended ||
+            mGyroCount < GYRO_WINDOW ||
+            mTiltCount < TILT_WINDOW
+        ) return false;
+
+        double sum = 0, sumSq = 0;
+        for (int i = 0; i < GYRO_WINDOW; i++) {
+            sum += mGyro[i];
+            sumSq += mGyro[i] * mGyro[i];
+        }
+        final double mean = sum / GYRO_WINDOW;
+        if (mean > GYRO_STILL_RAD) return false;
+        if (sumSq / GYRO_WINDOW - mean * mean > GYRO_STILL_VARIANCE) return false;
+        if (
+            variance(mPitch) + variance(mRoll) > TILT_STILL_VARIANCE
+        ) return false;
+
+        mSuspended = true;
+        mSuspendCount++;
+        mSuspendedSinceMs = nowMs;
+        return true;
+    }
+
+    synchronized void onTilt(final float pitch, final float roll) {
+        mPitch[mTiltIndex] = pitch;
+        mRoll[mTiltIndex] = roll;
+        mTiltIndex = (mTiltIndex + 1) % TILT_WINDOW;
+        if (mTiltCount < TILT_WINDOW) mTiltCount++;
+    }
+
+    // Forgets the windows and opens the gate, e.g. when the compass stops
+    synchronized void reset(final long nowMs) {
+        clear();
+        if (mSuspended) {
+            mSuspended = false;
+            mSuspendedMs += nowMs - mSuspendedSinceMs;
+        }
+    }
+
+    synchronized boolean isSuspended() {
+        return mSuspended;
+    }
+
+    synchronized int getSuspendCount() {
+        return mSuspendCount;
+    }
+
+    synchronized long getSuspendedMs(final long nowMs) {
+        return mSuspended
+            ? mSuspendedMs + nowMs - mSuspendedSinceMs
+            : mSuspendedMs;
+    }
+
+    private void clear() {
+        mGyroCount = 0;
+        mGyroIndex = 0;
+        mTiltCount = 0;
+        mTiltIndex = 0;
+    }
+
+    private static double variance(final float[] values) {
+        double sum = 0, sumSq = 0;
+        for (float value : values) {
+            sum += value;
+            sumSq += value * value;
+        }
+        final double mean = sum / values.length;
+        return Math.max(0, sumSq / values.length - mean * mean);
+    }
+}
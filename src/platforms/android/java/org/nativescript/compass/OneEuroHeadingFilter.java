@@ -0,0 +1,65 @@
+package org.nativescript.compass;
+
+// One Euro filter (Casiez et al.) on the circle: the cutoff frequency grows
+// with the filtered rate of turn, so a still heading is smoothed hard while
+// a turning one follows with little lag.
+public class OneEuroHeadingFilter implements HeadingFilter {
+
+    private static final double NS2S = 1.0 / 1000000000.0;
+
+    private final double mMinCutoff;
+    private final double mBeta;
+    private final double mDerivativeCutoff;
+    private double mHeading = Double.NaN;
+    private double mRate = 0; // Filtered degrees per second
+    private long mTimestamp = 0;
+
+    // minCutoff in Hz sets the smoothing at rest, beta how quickly the
+    // cutoff opens up with the rate of turn, derivativeCutoff in Hz smooths
+    // that rate
+    public OneEuroHeadingFilter(
+        final double minCutoff,
+        final double beta,
+        final double derivativeCutoff
+    ) {
+        mMinCutoff = minCutoff;
+        mBeta = beta;
+        mDerivativeCutoff = derivativeCutoff;
+    }
+
+    @Override
+    public double filter(final double heading, final long timestampNanos) {
+        if (Double.isNaN(mHeading)) {
+            mHeading = heading;
+            mTimestamp = timestampNanos;
+            return heading;
+        }
+        final double dT = (timestampNanos - mTimestamp) * NS2S;
+        if (dT <= 0) return mHeading;
+        mTimestamp = timestampNanos;
+
+        double delta = heading - mHeading;
+        if (delta > 180) delta -= 360;
+        else if (delta < -180) delta += 360;
+
+        mRate += alpha(mDerivativeCutoff, dT) * (delta / dT - mRate);
+        final double cutoff = mMinCutoff + mBeta * Math.abs(mRate);
+
+        mHeading += alpha(cutoff, dT) * delta;
+        if (mHeading < 0) mHeading += 360;
+        else if (mHeading >= 360) mHeading -= 360;
+        return mHeading;
+    }
+
+    private static double alpha(final double cutoff, final double dT) {
+        final double tau = 1.0 / (2 * Math.PI * cutoff);
+        return 1.0 / (1.0 + tau / dT);
+    }
+
+    @Override
+    public void reset() {
+        mHeading = Double.NaN;
+        mRate = 0;
+        mTimestamp = 0;
+    }
+}
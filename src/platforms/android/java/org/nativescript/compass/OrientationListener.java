@@ -0,0 +1,20 @@
+package org.nativescript.compass;
+
+// Full attitude of every published orientation, called on the sensor
+// thread at the sensor rate. Angles are radians as from
+// SensorManager.getOrientation and rotationMatrix is the row-major 3x3
+// matrix they were read from, as from SensorManager.getRotationMatrix.
+// accuracy is in degrees and timestamp in elapsedRealtimeNanos. The matrix
+// belongs to the compass and is only valid during the call, so delivery
+// never allocates; OrientationMath.quaternionFromRotationMatrix fills a
+// caller-owned array when a quaternion is needed.
+public interface OrientationListener {
+    void onOrientation(
+        float azimuth,
+        float pitch,
+        float roll,
+        float[] rotationMatrix,
+        double accuracy,
+        long timestamp
+    );
+}
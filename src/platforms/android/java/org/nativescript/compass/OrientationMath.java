@@ -0,0 +1,281 @@
+package org.nativescript.compass;
+
+// Android-independent rotation helpers shared by the fusion engines.
+// Matrices are row-major 3x3, quaternions are [x, y, z, w] like rotation vectors,
+// and orientations are [azimuth, pitch, roll] in radians as in SensorManager.
+public final class OrientationMath {
+
+    private static final float EPSILON = 0.000000001f;
+    // 1% of standard gravity squared, as in SensorManager.getRotationMatrix
+    private static final float FREE_FALL_GRAVITY_SQUARED = 0.01f * 9.81f * 9.81f;
+
+    private OrientationMath() {}
+
+    // result may alias A or B, every element is read before anything is written
+    public static void multiply(
+        final float[] A,
+        final float[] B,
+        final float[] result
+    ) {
+        final float r0 = A[0] * B[0] + A[1] * B[3] + A[2] * B[6];
+        final float r1 = A[0] * B[1] + A[1] * B[4] + A[2] * B[7];
+        final float r2 = A[0] * B[2] + A[1] * B[5] + A[2] * B[8];
+        final float r3 = A[3] * B[0] + A[4] * B[3] + A[5] * B[6];
+        final float r4 = A[3] * B[1] + A[4] * B[4] + A[5] * B[7];
+        final float r5 = A[3] * B[2] + A[4] * B[5] + A[5] * B[8];
+        final float r6 = A[6] * B[0] + A[7] * B[3] + A[8] * B[6];
+        final float r7 = A[6] * B[1] + A[7] * B[4] + A[8] * B[7];
+        final float r8 = A[6] * B[2] + A[7] * B[5] + A[8] * B[8];
+        result[0] = r0;
+        result[1] = r1;
+        result[2] = r2;
+        result[3] = r3;
+        result[4] = r4;
+        result[5] = r5;
+        result[6] = r6;
+        result[7] = r7;
+        result[8] = r8;
+    }
+
+    public static void rotationMatrixFromOrientation(
+        final float[] o,
+        final float[] result
+    ) {
+        final float sinX = (float) Math.sin(o[1]);
+        final float cosX = (float) Math.cos(o[1]);
+        final float sinY = (float) Math.sin(o[2]);
+        final float cosY = (float) Math.cos(o[2]);
+        final float sinZ = (float) Math.sin(o[0]);
+        final float cosZ = (float) Math.cos(o[0]);
+
+        // zM * (xM * yM) with the elementary rotations expanded in place
+        result[0] = cosZ * cosY - sinZ * sinX * sinY;
+        result[1] = sinZ * cosX;
+        result[2] = cosZ * sinY + sinZ * sinX * cosY;
+        result[3] = -sinZ * cosY - cosZ * sinX * sinY;
+        result[4] = cosZ * cosX;
+        result[5] = -sinZ * sinY + cosZ * sinX * cosY;
+        result[6] = -cosX * sinY;
+        result[7] = -sinX;
+        result[8] = cosX * cosY;
+    }
+
+    // Quaternion of the rotation rotationMatrixFromOrientation builds, the
+    // azimuth, pitch and roll half-angle rotations multiplied out directly
+    public static void quaternionFromOrientation(
+        final float azimuth,
+        final float pitch,
+        final float roll,
+        final float[] q
+    ) {
+        final double sinZ = -Math.sin(azimuth / 2.0);
+        final double cosZ = Math.cos(azimuth / 2.0);
+        final double sinX = -Math.sin(pitch / 2.0);
+        final double cosX = Math.cos(pitch / 2.0);
+        final double sinY = Math.sin(roll / 2.0);
+        final double cosY = Math.cos(roll / 2.0);
+
+        // (z * x) * y
+        final double x = cosZ * sinX;
+        final double y = sinZ * sinX;
+        final double z = sinZ * cosX;
+        final double w = cosZ * cosX;
+        q[0] = (float) (x * cosY - z * sinY);
+        q[1] = (float) (w * sinY + y * cosY);
+        q[2] = (float) (x * sinY + z * cosY);
+        q[3] = (float) (w * cosY - y * sinY);
+    }
+
+    // Same result as SensorManager.getRotationMatrix for a 3x3 matrix without
+    // the inclination matrix. Returns false in free fall or when the field
+    // is parallel to gravity.
+    public static boolean rotationMatrixFromAccMag(
+        final float[] R,
+        final float[] gravity,
+        final float[] geomagnetic
+    ) {
+        float Ax = gravity[0];
+        float Ay = gravity[1];
+        float Az = gravity[2];
+        final float normsqA = Ax * Ax + Ay * Ay + Az * Az;
+        if (normsqA < FREE_FALL_GRAVITY_SQUARED) return false;
+
+        final float Ex = geomagnetic[0];
+        final float Ey = geomagnetic[1];
+        final float Ez = geomagnetic[2];
+        float Hx = Ey * Az - Ez * Ay;
+        float Hy = Ez * Ax - Ex * Az;
+        float Hz = Ex * Ay - Ey * Ax;
+        final float normH = (float) Math.sqrt(Hx * Hx + Hy * Hy + Hz * Hz);
+        if (normH < 0.1f) return false;
+
+        final float invH = 1.0f / normH;
+        Hx *= invH;
+        Hy *= invH;
+        Hz *= invH;
+        final float invA = 1.0f / (float) Math.sqrt(normsqA);
+        Ax *= invA;
+        Ay *= invA;
+        Az *= invA;
+        final float Mx = Ay * Hz - Az * Hy;
+        final float My = Az * Hx - Ax * Hz;
+        final float Mz = Ax * Hy - Ay * Hx;
+
+        R[0] = Hx;
+        R[1] = Hy;
+        R[2] = Hz;
+        R[3] = Mx;
+        R[4] = My;
+        R[5] = Mz;
+        R[6] = Ax;
+        R[7] = Ay;
+        R[8] = Az;
+        return true;
+    }
+
+    // Same result as SensorManager.getOrientation for a 3x3 matrix
+    public static void orientationFromRotationMatrix(
+        final float[] R,
+        final float[] result
+    ) {
+        result[0] = (float) Math.atan2(R[1], R[4]);
+        result[1] = (float) Math.asin(-R[7]);
+        result[2] = (float) Math.atan2(-R[6], R[8]);
+    }
+
+    // Half-angle rotation quaternion for a gyro sample, time is dT / 2
+    public static void rotationVectorFromGyro(
+        final float[] values,
+        final float[] deltaRotationVector,
+        final float time
+    ) {
+        final float omegaMagnitude = (float) Math.sqrt(
+            values[0] * values[0] +
+            values[1] * values[1] +
+            values[2] * values[2]
+        );
+
+        float normX = 0, normY = 0, normZ = 0;
+        if (omegaMagnitude > EPSILON) {
+            normX = values[0] / omegaMagnitude;
+            normY = values[1] / omegaMagnitude;
+            normZ = values[2] / omegaMagnitude;
+        }
+
+        final float thetaOverTwo = omegaMagnitude * time;
+        final float sinThetaOverTwo = (float) Math.sin(thetaOverTwo);
+        final float cosThetaOverTwo = (float) Math.cos(thetaOverTwo);
+        deltaRotationVector[0] = sinThetaOverTwo * normX;
+        deltaRotationVector[1] = sinThetaOverTwo * normY;
+        deltaRotationVector[2] = sinThetaOverTwo * normZ;
+        deltaRotationVector[3] = cosThetaOverTwo;
+    }
+
+    // Same result as SensorManager.getRotationMatrixFromVector for a 3x3 matrix
+    public static void rotationMatrixFromQuaternion(
+        final float[] q,
+        final float[] R
+    ) {
+        final float sqX = 2 * q[0] * q[0];
+        final float sqY = 2 * q[1] * q[1];
+        final float sqZ = 2 * q[2] * q[2];
+        final float xy = 2 * q[0] * q[1];
+        final float zw = 2 * q[2] * q[3];
+        final float xz = 2 * q[0] * q[2];
+        final float yw = 2 * q[1] * q[3];
+        final float yz = 2 * q[1] * q[2];
+        final float xw = 2 * q[0] * q[3];
+
+        R[0] = 1 - sqY - sqZ;
+        R[1] = xy - zw;
+        R[2] = xz + yw;
+        R[3] = xy + zw;
+        R[4] = 1 - sqX - sqZ;
+        R[5] = yz - xw;
+        R[6] = xz - yw;
+        R[7] = yz + xw;
+        R[8] = 1 - sqX - sqY;
+    }
+
+    public static void quaternionFromRotationMatrix(
+        final float[] R,
+        final float[] q
+    ) {
+        final float trace = R[0] + R[4] + R[8];
+        if (trace > 0) {
+            final float s = (float) Math.sqrt(trace + 1.0f) * 2;
+            q[3] = 0.25f * s;
+            q[0] = (R[7] - R[5]) / s;
+            q[1] = (R[2] - R[6]) / s;
+            q[2] = (R[3] - R[1]) / s;
+        } else if (R[0] > R[4] && R[0] > R[8]) {
+            final float s = (float) Math.sqrt(1.0f + R[0] - R[4] - R[8]) * 2;
+            q[3] = (R[7] - R[5]) / s;
+            q[0] = 0.25f * s;
+            q[1] = (R[1] + R[3]) / s;
+            q[2] = (R[2] + R[6]) / s;
+        } else if (R[4] > R[8]) {
+            final float s = (float) Math.sqrt(1.0f + R[4] - R[0] - R[8]) * 2;
+            q[3] = (R[2] - R[6]) / s;
+            q[0] = (R[1] + R[3]) / s;
+            q[1] = 0.25f * s;
+            q[2] = (R[5] + R[7]) / s;
+        } else {
+            final float s = (float) Math.sqrt(1.0f + R[8] - R[0] - R[4]) * 2;
+            q[3] = (R[3] - R[1]) / s;
+            q[0] = (R[2] + R[6]) / s;
+            q[1] = (R[5] + R[7]) / s;
+            q[2] = 0.25f * s;
+        }
+    }
+
+    // result = a * b (Hamilton product), result may alias a or b
+    public static void multiplyQuaternions(
+        final float[] a,
+        final float[] b,
+        final float[] result
+    ) {
+        final float x = a[3] * b[0] + a[0] * b[3] + a[1] * b[2] - a[2] * b[1];
+        final float y = a[3] * b[1] - a[0] * b[2] + a[1] * b[3] + a[2] * b[0];
+        final float z = a[3] * b[2] + a[0] * b[1] - a[1] * b[0] + a[2] * b[3];
+        final float w = a[3] * b[3] - a[0] * b[0] - a[1] * b[1] - a[2] * b[2];
+        result[0] = x;
+        result[1] = y;
+        result[2] = z;
+        result[3] = w;
+    }
+
+    public static void normalizeQuaternion(final float[] q) {
+        final float norm = (float) Math.sqrt(
+            q[0] * q[0] + q[1] * q[1] + q[2] * q[2] + q[3] * q[3]
+        );
+        if (norm < EPSILON) {
+            q[0] = 0;
+            q[1] = 0;
+            q[2] = 0;
+            q[3] = 1;
+            return;
+        }
+        q[0] /= norm;
+        q[1] /= norm;
+        q[2] /= norm;
+        q[3] /= norm;
+    }
+
+    // One step of the exponential heading filter, taking the short way
+    // around 360/0. filter = 0 follows raw, values towards 1 smooth harder.
+    public static double smoothHeading(
+        final double filtered,
+        final double raw,
+        final double filter
+    ) {
+        double delta = raw - filtered;
+        if (delta > 180) delta -= 360;
+        else if (delta < -180) delta += 360;
+
+        double heading = filtered + delta * (1 - filter);
+        if (heading < 0) heading += 360;
+        else if (heading >= 360) heading -= 360;
+        return heading;
+    }
+}
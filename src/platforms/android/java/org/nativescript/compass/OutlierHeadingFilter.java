@@ -0,0 +1,43 @@
+package org.nativescript.compass;
+
+// Drops readings that jump further than maxJump degrees from the last
+// accepted one, such as a magnetometer spike near a speaker. After
+// maxRejects drops in a row the new heading is accepted, so a real fast
+// turn is followed after a few samples.
+public class OutlierHeadingFilter implements HeadingFilter {
+
+    private final double mMaxJump;
+    private final int mMaxRejects;
+    private double mHeading = Double.NaN;
+    private int mRejects = 0;
+
+    public OutlierHeadingFilter(final double maxJump, final int maxRejects) {
+        mMaxJump = maxJump;
+        mMaxRejects = Math.max(0, maxRejects);
+    }
+
+    int getMaxRejects() {
+        return mMaxRejects;
+    }
+
+    @Override
+    public double filter(final double heading, final long timestampNanos) {
+        if (!Double.isNaN(mHeading)) {
+            double change = Math.abs(heading - mHeading);
+            if (change > 180) change = 360 - change;
+            if (change > mMaxJump && mRejects < mMaxRejects) {
+                mRejects++;
+                return Double.NaN;
+            }
+        }
+        mRejects = 0;
+        mHeading = heading;
+        return heading;
+    }
+
+    @Override
+    public void reset() {
+        mHeading = Double.NaN;
+        mRejects = 0;
+    }
+}
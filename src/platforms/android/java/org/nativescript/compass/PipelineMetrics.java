@@ -0,0 +1,81 @@
+package org.nativescript.compass;
+
+// Always-on counters and fixed-bucket latency histograms for the reading
+// pipeline. Every field has a single writer at a time and is a plain int,
+// so recording is a few stores and readers never see torn values, only
+// values that may lag by a sample. Compass and CompassHelper fill disjoint
+// fields, and a snapshot is their sum.
+public final class PipelineMetrics {
+
+    // Latency stages
+    public static final int STAGE_INGEST = 0; // SensorEvent.timestamp -> listener
+    public static final int STAGE_FUSION = 1; // Listener -> orientation published
+    public static final int STAGE_FILTER = 2; // Filter chain
+    public static final int STAGE_DELIVERY = 3; // SensorEvent.timestamp -> user callback
+    public static final int STAGES = 4;
+
+    // Bucket upper bounds in microseconds, the last bucket is open-ended
+    public static final long[] BUCKET_BOUNDS_US = {
+        50,
+        100,
+        250,
+        500,
+        1000,
+        2500,
+        5000,
+        10000,
+        25000,
+        50000,
+        100000,
+        250000,
+        500000,
+        1000000,
+    };
+    public static final int BUCKETS = BUCKET_BOUNDS_US.length + 1;
+
+    // Counters
+    public static final int RECEIVED_ACCELEROMETER = 0;
+    public static final int RECEIVED_MAGNETOMETER = 1;
+    public static final int RECEIVED_GYROSCOPE = 2;
+    public static final int RECEIVED_OTHER = 3; // Rotation vectors and the rest
+    public static final int FUSED = 4; // Orientations published by a compass
+    public static final int DROPPED_FILTER = 5;
+    public static final int DROPPED_STALE = 6;
+    public static final int DROPPED_THRESHOLD = 7;
+    public static final int DELIVERED = 8;
+    public static final int ACCURACY_CHANGES = 9;
+    public static final int COUNTERS = 10;
+
+    // Snapshot layout: counters, then STAGES x BUCKETS histogram counts
+    public static final int SNAPSHOT_HISTOGRAMS = COUNTERS;
+    public static final int SNAPSHOT_SIZE = COUNTERS + STAGES * BUCKETS;
+
+    private final int[] mCounters = new int[COUNTERS];
+    private final int[] mHistograms = new int[STAGES * BUCKETS];
+
+    void count(final int counter) {
+        mCounters[counter]++;
+    }
+
+    void count(final int counter, final int amount) {
+        mCounters[counter] += amount;
+    }
+
+    void record(final int stage, final long nanos) {
+        final long micros = nanos / 1000;
+        int bucket = 0;
+        while (
+            bucket < BUCKET_BOUNDS_US.length && micros > BUCKET_BOUNDS_US[bucket]
+        ) {
+            bucket++;
+        }
+        mHistograms[stage * BUCKETS + bucket]++;
+    }
+
+    void addTo(final long[] snapshot) {
+        for (int i = 0; i < COUNTERS; i++) snapshot[i] += mCounters[i];
+        for (int i = 0; i < mHistograms.length; i++) {
+            snapshot[SNAPSHOT_HISTOGRAMS + i] += mHistograms[i];
+        }
+    }
+}
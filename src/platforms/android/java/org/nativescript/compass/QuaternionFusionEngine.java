@@ -0,0 +1,72 @@
+package org.nativescript.compass;
+
+// Complementary filter kept entirely in quaternion space. Gyro deltas are
+// multiplied straight into the attitude and each fusion step nlerps towards
+// the accelerometer + magnetometer attitude, taken over from its rotation
+// matrix, so there is no Euler round-trip (and no gimbal lock) until the
+// final orientation is read out.
+public class QuaternionFusionEngine implements FusionEngine {
+
+    private final float mTimeConstant;
+    private final float[] mQuaternion = { 0, 0, 0, 1 };
+    private final float[] mReference = { 0, 0, 0, 1 };
+    private final float[] mDelta = new float[4];
+
+    // timeConstant is in seconds, larger values trust the gyro for longer
+    public QuaternionFusionEngine(final float timeConstant) {
+        mTimeConstant = timeConstant;
+    }
+
+    @Override
+    public void reset(final float[] rotationMatrix) {
+        setReference(rotationMatrix);
+        System.arraycopy(mReference, 0, mQuaternion, 0, 4);
+    }
+
+    @Override
+    public void setReference(final float[] rotationMatrix) {
+        OrientationMath.quaternionFromRotationMatrix(
+            rotationMatrix,
+            mReference
+        );
+        OrientationMath.normalizeQuaternion(mReference);
+    }
+
+    @Override
+    public void integrateGyro(final float[] rates, final float dT) {
+        OrientationMath.rotationVectorFromGyro(rates, mDelta, dT / 2.0f);
+        OrientationMath.multiplyQuaternions(mQuaternion, mDelta, mQuaternion);
+    }
+
+    @Override
+    public void fuse(
+        final float[] outRotationMatrix,
+        final float[] outOrientation,
+        final float dT
+    ) {
+        final float coefficient = mTimeConstant / (mTimeConstant + dT);
+        final float t = 1.0f - coefficient;
+
+        // q and -q are the same rotation, blend along the shorter arc
+        final float dot =
+            mQuaternion[0] * mReference[0] +
+            mQuaternion[1] * mReference[1] +
+            mQuaternion[2] * mReference[2] +
+            mQuaternion[3] * mReference[3];
+        final float sign = dot < 0 ? -t : t;
+
+        for (int i = 0; i < 4; i++) {
+            mQuaternion[i] = coefficient * mQuaternion[i] + sign * mReference[i];
+        }
+        OrientationMath.normalizeQuaternion(mQuaternion);
+
+        OrientationMath.rotationMatrixFromQuaternion(
+            mQuaternion,
+            outRotationMatrix
+        );
+        OrientationMath.orientationFromRotationMatrix(
+            outRotationMatrix,
+            outOrientation
+        );
+    }
+}
@@ -0,0 +1,131 @@
+package org.nativescript.compass;
+
+import android.os.Handler;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Packs readings into a reused array on the sensor thread and hands the
+// filled array to the main looper when the batch is full or its oldest row
+// has waited maxDelayMs. Filling continues in a second array meanwhile;
+// the delivered one becomes the spare again once the callback returns, so
+// two arrays cover the steady state. Only when the main looper falls a
+// whole batch behind is another one allocated.
+final class ReadingBatcher {
+
+    private final CompassBatchCallback mCallback;
+    private final Handler mHandler;
+    private final Handler mMainHandler;
+    private final PipelineMetrics mMetrics;
+    private final int mBatchSize;
+    private final long mMaxDelayMs;
+    private final AtomicReference<Batch> mSpare = new AtomicReference<>();
+    private Batch mFilling; // Sensor thread only
+    private boolean mSynchronous = false; // See setSynchronous
+
+    ReadingBatcher(
+        final CompassBatchCallback callback,
+        final Handler handler,
+        final Handler mainHandler,
+        final PipelineMetrics metrics,
+        final int batchSize,
+        final long maxDelayMs
+    ) {
+        mCallback = callback;
+        mHandler = handler;
+        mMainHandler = mainHandler;
+        mMetrics = metrics;
+        mBatchSize = Math.max(1, batchSize);
+        mMaxDelayMs = Math.max(0, maxDelayMs);
+        mFilling = new Batch();
+        mSpare.set(new Batch());
+    }
+
+    void add(
+        final double heading,
+        final double accuracy,
+        final double magneticHeading,
+        final long timestamp,
+        final double pitch,
+        final double roll
+    ) {
+        final Batch batch = mFilling;
+        int offset = batch.mCount * CompassBatchCallback.STRIDE;
+        batch.mRows[offset++] = heading;
+        batch.mRows[offset++] = accuracy;
+        batch.mRows[offset++] = magneticHeading;
+        batch.mRows[offset++] = timestamp;
+        batch.mRows[offset++] = pitch;
+        batch.mRows[offset] = roll;
+
+        if (++batch.mCount >= mBatchSize) {
+            flush();
+        } else if (batch.mCount == 1 && mMaxDelayMs > 0 && !mSynchronous) {
+            mHandler.postDelayed(mFlushTask, mMaxDelayMs);
+        }
+    }
+
+    void onError(final String error) {
+        mMainHandler.post(
+            new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onError(error);
+                }
+            }
+        );
+    }
+
+    // Delivers whatever is pending, e.g. when updates stop
+    void flushLater() {
+        mHandler.post(mFlushTask);
+    }
+
+    // Replays deliver full batches on the calling thread, and the partial
+    // one only on flush(), as no time passes for maxDelayMs
+    void setSynchronous(final boolean synchronous) {
+        mSynchronous = synchronous;
+    }
+
+    void flush() {
+        mHandler.removeCallbacks(mFlushTask);
+        final Batch batch = mFilling;
+        if (batch.mCount == 0) return;
+        if (mSynchronous) {
+            batch.deliver();
+            return;
+        }
+        final Batch spare = mSpare.getAndSet(null);
+        mFilling = spare != null ? spare : new Batch();
+        mMainHandler.post(batch);
+    }
+
+    private final Runnable mFlushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    // One array of rows, owned by the sensor thread while filling and by
+    // the main looper from the post until it is the spare again
+    private final class Batch implements Runnable {
+
+        final double[] mRows = new double[
+            mBatchSize * CompassBatchCallback.STRIDE
+        ];
+        int mCount = 0;
+
+        @Override
+        public void run() {
+            deliver();
+            // Dropped when a batch allocated under backlog already is the spare
+            mSpare.compareAndSet(null, this);
+        }
+
+        void deliver() {
+            final int count = mCount;
+            mCallback.onReadings(mRows, count);
+            mMetrics.count(PipelineMetrics.DELIVERED, count);
+            mCount = 0;
+        }
+    }
+}
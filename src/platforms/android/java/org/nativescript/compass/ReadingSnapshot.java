@@ -0,0 +1,48 @@
+package org.nativescript.compass;
+
+// Single-writer seqlock over the latest reading. The sensor thread publishes
+// without locking or allocating; readers on other threads retry until they
+// copy a tuple that was not written to meanwhile, so they never mix fields
+// of two samples. Every field is volatile, which keeps the field accesses
+// ordered against the sequence counter under the Java memory model.
+final class ReadingSnapshot {
+
+    private volatile int mSequence = 0; // Odd while a write is in progress
+    private volatile double mHeading = Double.NaN;
+    private volatile double mAccuracy = 0;
+    private volatile double mMagneticHeading = 0;
+    private volatile long mTimestamp = 0;
+
+    // Only ever called from one thread at a time
+    void write(
+        final double heading,
+        final double accuracy,
+        final double magneticHeading,
+        final long timestamp
+    ) {
+        final int sequence = mSequence;
+        mSequence = sequence + 1;
+        mHeading = heading;
+        mAccuracy = accuracy;
+        mMagneticHeading = magneticHeading;
+        mTimestamp = timestamp;
+        mSequence = sequence + 2;
+    }
+
+    // Copies heading, accuracy and magneticHeading into out and returns the
+    // timestamp of the same reading
+    long read(final double[] out) {
+        while (true) {
+            final int sequence = mSequence;
+            if ((sequence & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            out[0] = mHeading;
+            out[1] = mAccuracy;
+            out[2] = mMagneticHeading;
+            final long timestamp = mTimestamp;
+            if (mSequence == sequence) return timestamp;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.nativescript.compass;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+
+// Reads the heading from a rotation vector fused by the device's sensor hub,
+// so no per-sample fusion math runs in Java. TYPE_ROTATION_VECTOR uses gyro,
+// accelerometer and magnetometer; TYPE_GEOMAGNETIC_ROTATION_VECTOR skips the
+// gyro and is the low-power variant.
+public class RotationVectorCompass extends Compass {
+
+    private final Context mContext;
+    private final SensorListener mListener = new SensorListener();
+    private final SensorBatch mBatch = new SensorBatch(
+        mListener,
+        SensorThread.getHandler()
+    );
+    private final DirectSensorSource mDirect;
+    private final float[] mRotationMatrix = new float[9];
+    private final float[] mOrientation = new float[3];
+    private final float[] mVector = new float[4];
+    private final int mSensorType;
+    private final Sensor mSensor;
+    private final SensorManager mSensorManager;
+
+    public RotationVectorCompass(final Context context, final int sensorType) {
+        mContext = context;
+        mSensorManager = (SensorManager) mContext.getSystemService(
+            Context.SENSOR_SERVICE
+        );
+        mSensorType = sensorType;
+        mSensor = mSensorManager.getDefaultSensor(sensorType);
+        mDirect = new DirectSensorSource(this, mSensorManager, mListener);
+    }
+
+    private void onRotationVector(final long timestamp, final float[] values) {
+        if (!isOrientationNeeded(timestamp)) return;
+        // Only x, y, z, w, the fifth value is the heading accuracy estimate.
+        // Some devices leave out w, it follows from the unit length.
+        System.arraycopy(values, 0, mVector, 0, Math.min(values.length, 4));
+        if (values.length == 3) {
+            mVector[3] = (float) Math.sqrt(
+                Math.max(
+                    0,
+                    1 -
+                    values[0] * values[0] -
+                    values[1] * values[1] -
+                    values[2] * values[2]
+                )
+            );
+        }
+        OrientationMath.rotationMatrixFromQuaternion(mVector, mRotationMatrix);
+        OrientationMath.orientationFromRotationMatrix(
+            mRotationMatrix,
+            mOrientation
+        );
+
+        // Estimated heading accuracy in radians, -1 when unavailable
+        if (values.length > 4 && values[4] > 0) {
+            mLastSensorAccuracy = Math.toDegrees(values[4]);
+        }
+
+        publishOrientation(
+            mOrientation[0],
+            mOrientation[1],
+            mOrientation[2],
+            mRotationMatrix,
+            timestamp
+        );
+    }
+
+    @Override
+    protected void onReplaySample(
+        final int type,
+        final long timestamp,
+        final float[] values
+    ) {
+        if (type == mSensorType) onRotationVector(timestamp, values);
+    }
+
+    @Override
+    protected String getSource() {
+        return mSensorType == Sensor.TYPE_GEOMAGNETIC_ROTATION_VECTOR
+            ? "hardware_low_power"
+            : "hardware";
+    }
+
+    @Override
+    protected void onStart() {
+        if (mSensor != null && !startDirectChannel(mDirect, mSensor)) {
+            registerListener(mSensorManager, mListener, mSensor);
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        mDirect.stop();
+        mSensorManager.unregisterListener(mListener);
+        mBatch.clear();
+    }
+
+    private class SensorListener
+        implements SensorEventListener, SensorBatch.Consumer {
+
+        @Override
+        public void onAccuracyChanged(final Sensor sensor, final int accuracy) {
+            ingestAccuracy(sensor, accuracy);
+            onSensorAccuracyChanged(accuracy);
+        }
+
+        @Override
+        public void onSensorChanged(final SensorEvent event) {
+            ingestEvent(event);
+            if (isBatching()) {
+                mBatch.add(event);
+            } else {
+                onRotationVector(event.timestamp, event.values);
+            }
+        }
+
+        @Override
+        public void onBurstStart() {
+            beginBurst();
+        }
+
+        @Override
+        public void onSample(
+            final int type,
+            final long timestamp,
+            final float[] values
+        ) {
+            onRotationVector(timestamp, values);
+        }
+
+        @Override
+        public void onBurstEnd() {
+            endBurst();
+        }
+    }
+}
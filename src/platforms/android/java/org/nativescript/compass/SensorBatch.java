@@ -0,0 +1,103 @@
+package org.nativescript.compass;
+
+import android.hardware.SensorEvent;
+import android.os.Handler;
+
+// Collects one burst of batched (FIFO) sensor events in preallocated primitive
+// arrays and replays it in timestamp order once the looper has dispatched the
+// whole burst. Sensors of different types flush their FIFOs independently, so
+// without the reordering an accelerometer burst would be paired with the
+// magnetometer sample from the end of the previous one. Samples go to the
+// trace recorder in the same order, so a replay sees what the compass saw.
+final class SensorBatch implements Runnable {
+
+    interface Consumer {
+        void onBurstStart();
+
+        void onSample(int type, long timestamp, float[] values);
+
+        void onBurstEnd();
+    }
+
+    private static final int CAPACITY = 256;
+    private static final int STRIDE = 6; // Enough for uncalibrated sensors
+
+    private final Consumer mConsumer;
+    private final Handler mHandler;
+    private final int[] mTypes = new int[CAPACITY];
+    private final long[] mTimestamps = new long[CAPACITY];
+    private final float[] mValues = new float[CAPACITY * STRIDE];
+    private final int[] mLengths = new int[CAPACITY];
+    private final int[] mOrder = new int[CAPACITY];
+    // One array per value count, events keep their length
+    private final float[][] mSamples = new float[STRIDE + 1][];
+    private int mCount = 0;
+    private boolean mScheduled = false;
+
+    SensorBatch(final Consumer consumer, final Handler handler) {
+        mConsumer = consumer;
+        mHandler = handler;
+    }
+
+    // Called on the sensor thread for every event of the burst
+    void add(final SensorEvent event) {
+        if (mCount == CAPACITY) drain();
+
+        final int i = mCount++;
+        mTypes[i] = event.sensor.getType();
+        mTimestamps[i] = event.timestamp;
+        mLengths[i] = Math.min(event.values.length, STRIDE);
+        System.arraycopy(event.values, 0, mValues, i * STRIDE, mLengths[i]);
+
+        if (!mScheduled) {
+            mScheduled = true;
+            mHandler.post(this);
+        }
+    }
+
+    void clear() {
+        mHandler.removeCallbacks(this);
+        mScheduled = false;
+        mCount = 0;
+    }
+
+    @Override
+    public void run() {
+        mScheduled = false;
+        drain();
+    }
+
+    private void drain() {
+        final int count = mCount;
+        if (count == 0) return;
+
+        // Insertion sort, each sensor's events already arrive in order
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            final long timestamp = mTimestamps[index];
+            int j = i - 1;
+            while (j >= 0 && mTimestamps[mOrder[j]] > timestamp) {
+                mOrder[j + 1] = mOrder[j];
+                j--;
+            }
+            mOrder[j + 1] = index;
+        }
+
+        mConsumer.onBurstStart();
+        for (int i = 0; i < count; i++) {
+            final int index = mOrder[i];
+            final int length = mLengths[index];
+            if (mSamples[length] == null) mSamples[length] = new float[length];
+            final float[] sample = mSamples[length];
+            System.arraycopy(mValues, index * STRIDE, sample, 0, length);
+            SensorTraceRecorder.recordSample(
+                mTypes[index],
+                mTimestamps[index],
+                sample
+            );
+            mConsumer.onSample(mTypes[index], mTimestamps[index], sample);
+        }
+        mCount = 0;
+        mConsumer.onBurstEnd();
+    }
+}
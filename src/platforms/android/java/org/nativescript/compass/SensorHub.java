@@ -0,0 +1,347 @@
+package org.nativescript.compass;
+
+import android.content.Context;
+import android.hardware.SensorManager;
+import java.util.HashMap;
+
+// Process-wide owner of the running Compass instances. Subscribers asking for
+// the same compass key share one Compass, so every physical sensor is
+// registered once at the fastest rate any subscriber needs, readings fan out
+// to all of them, and the sensors stop when the last subscriber leaves.
+public final class SensorHub {
+
+    public static final String KEY_ACC_MAG = "accmag";
+    public static final String KEY_ACC_MAG_CALIBRATED = "accmag:calibrated";
+    // Appended to the key of compasses reading through a direct channel
+    public static final String KEY_DIRECT = ":direct";
+
+    public interface CompassFactory {
+        Compass create();
+    }
+
+    // What one subscriber needs from the shared compass
+    public static final class Request {
+
+        private int mSensorDelay = SensorManager.SENSOR_DELAY_UI;
+        private int mSamplingPeriodUs = -1;
+        private int mMaxReportLatencyUs = 0;
+        private long mOutputIntervalUs = 100000;
+        private boolean mDeliverLatestOnly = false;
+        private boolean mAdaptiveRate = false;
+
+        public Request setSensorDelay(int sensorDelay) {
+            mSensorDelay = sensorDelay;
+            return this;
+        }
+
+        // See Compass.setSamplingPeriodUs
+        public Request setSamplingPeriodUs(int samplingPeriodUs) {
+            mSamplingPeriodUs = samplingPeriodUs;
+            return this;
+        }
+
+        public Request setMaxReportLatency(int maxReportLatencyUs) {
+            mMaxReportLatencyUs = maxReportLatencyUs;
+            return this;
+        }
+
+        // See Compass.setOutputInterval
+        public Request setOutputInterval(long outputIntervalUs) {
+            mOutputIntervalUs = outputIntervalUs;
+            return this;
+        }
+
+        public Request setDeliverLatestOnly(boolean deliverLatestOnly) {
+            mDeliverLatestOnly = deliverLatestOnly;
+            return this;
+        }
+
+        public Request setAdaptiveRate(boolean adaptiveRate) {
+            mAdaptiveRate = adaptiveRate;
+            return this;
+        }
+    }
+
+    private static SensorHub sInstance = null;
+
+    private final Context mContext;
+    private final HashMap<String, Entry> mEntries = new HashMap<>();
+
+    private SensorHub(final Context context) {
+        mContext = context;
+    }
+
+    public static synchronized SensorHub getInstance(final Context context) {
+        if (sInstance == null) {
+            sInstance = new SensorHub(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    public Context getContext() {
+        return mContext;
+    }
+
+    public Subscription subscribe(
+        final String key,
+        final CompassFactory factory,
+        final Request request,
+        final CompassCallback callback
+    ) {
+        return subscribe(key, factory, request, callback, null);
+    }
+
+    // Either callback or listener may be null
+    public synchronized Subscription subscribe(
+        final String key,
+        final CompassFactory factory,
+        final Request request,
+        final CompassCallback callback,
+        final OrientationListener listener
+    ) {
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            entry = new Entry(key, factory.create());
+            mEntries.put(key, entry);
+        }
+
+        final Subscription subscription = new Subscription(
+            entry,
+            request,
+            callback,
+            listener
+        );
+        entry.add(subscription);
+        entry.apply();
+        return subscription;
+    }
+
+    synchronized void update(
+        final Subscription subscription,
+        final Request request
+    ) {
+        subscription.set(request);
+        if (mEntries.get(subscription.mEntry.mKey) == subscription.mEntry) {
+            subscription.mEntry.apply();
+        }
+    }
+
+    synchronized void unsubscribe(final Subscription subscription) {
+        final Entry entry = subscription.mEntry;
+        if (!entry.remove(subscription)) return;
+
+        if (entry.isEmpty()) {
+            mEntries.remove(entry.mKey);
+            entry.mCompass.stop();
+        } else {
+            entry.apply();
+        }
+    }
+
+    public final class Subscription {
+
+        private final Entry mEntry;
+        // Guarded by the hub, see update
+        private int mSensorDelay;
+        private int mSamplingPeriodUs;
+        private int mMaxReportLatencyUs;
+        private long mOutputIntervalUs;
+        private boolean mDeliverLatestOnly;
+        private boolean mAdaptiveRate;
+        private final CompassCallback mCallback;
+        private final OrientationListener mOrientationListener;
+
+        private Subscription(
+            final Entry entry,
+            final Request request,
+            final CompassCallback callback,
+            final OrientationListener listener
+        ) {
+            mEntry = entry;
+            mCallback = callback;
+            mOrientationListener = listener;
+            set(request);
+        }
+
+        private void set(final Request request) {
+            mSensorDelay = request.mSensorDelay;
+            mSamplingPeriodUs = request.mSamplingPeriodUs;
+            mMaxReportLatencyUs = request.mMaxReportLatencyUs;
+            mOutputIntervalUs = request.mOutputIntervalUs;
+            mDeliverLatestOnly = request.mDeliverLatestOnly;
+            mAdaptiveRate = request.mAdaptiveRate;
+        }
+
+        public Compass getCompass() {
+            return mEntry.mCompass;
+        }
+
+        // Changes what this subscriber needs without leaving the compass
+        public void update(final Request request) {
+            SensorHub.this.update(this, request);
+        }
+
+        public void close() {
+            unsubscribe(this);
+        }
+    }
+
+    // One shared Compass and the subscribers it fans out to
+    private static final class Entry
+        implements CompassCallback, OrientationListener {
+
+        private final String mKey;
+        private final Compass mCompass;
+        // Copy-on-write so the sensor thread iterates without locking or allocating
+        private volatile Subscription[] mSubscriptions = new Subscription[0];
+        private int mAppliedDelay = -1;
+        private int mAppliedPeriodUs = -1;
+        private int mAppliedLatencyUs = -1;
+        private long mAppliedOutputUs = -1;
+        private boolean mAppliedLatestOnly = false;
+        private boolean mAppliedAdaptiveRate = false;
+
+        Entry(final String key, final Compass compass) {
+            mKey = key;
+            mCompass = compass;
+        }
+
+        void add(final Subscription subscription) {
+            final Subscription[] current = mSubscriptions;
+            final Subscription[] next = new Subscription[current.length + 1];
+            System.arraycopy(current, 0, next, 0, current.length);
+            next[current.length] = subscription;
+            mSubscriptions = next;
+        }
+
+        boolean remove(final Subscription subscription) {
+            final Subscription[] current = mSubscriptions;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] != subscription) continue;
+
+                final Subscription[] next = new Subscription[current.length - 1];
+                System.arraycopy(current, 0, next, 0, i);
+                System.arraycopy(current, i + 1, next, i, next.length - i);
+                mSubscriptions = next;
+                return true;
+            }
+            return false;
+        }
+
+        boolean isEmpty() {
+            return mSubscriptions.length == 0;
+        }
+
+        // Runs the compass at the fastest rate, the shortest batching latency
+        // and the shortest output interval any subscriber asked for,
+        // coalescing bursts only when every subscriber is fine with the
+        // latest reading and slowing down while still only when every
+        // subscriber allows it. A running compass is reconfigured in place,
+        // so subscribers joining or leaving never interrupt the others.
+        void apply() {
+            int delay = -1;
+            int periodUs = -1;
+            long delayUs = Long.MAX_VALUE;
+            int latencyUs = Integer.MAX_VALUE;
+            long outputUs = Long.MAX_VALUE;
+            boolean latestOnly = true;
+            boolean adaptiveRate = true;
+            for (Subscription subscription : mSubscriptions) {
+                final long us = subscription.mSamplingPeriodUs >= 0
+                    ? subscription.mSamplingPeriodUs
+                    : Compass.sensorDelayToMicros(subscription.mSensorDelay);
+                if (us < delayUs) {
+                    delayUs = us;
+                    delay = subscription.mSensorDelay;
+                    periodUs = subscription.mSamplingPeriodUs;
+                }
+                latencyUs = Math.min(
+                    latencyUs,
+                    subscription.mMaxReportLatencyUs
+                );
+                outputUs = Math.min(outputUs, subscription.mOutputIntervalUs);
+                latestOnly &= subscription.mDeliverLatestOnly;
+                adaptiveRate &= subscription.mAdaptiveRate;
+            }
+            if (
+                delay == mAppliedDelay &&
+                periodUs == mAppliedPeriodUs &&
+                latencyUs == mAppliedLatencyUs &&
+                outputUs == mAppliedOutputUs &&
+                latestOnly == mAppliedLatestOnly &&
+                adaptiveRate == mAppliedAdaptiveRate
+            ) return;
+
+            mAppliedDelay = delay;
+            mAppliedPeriodUs = periodUs;
+            mAppliedLatencyUs = latencyUs;
+            mAppliedOutputUs = outputUs;
+            mAppliedLatestOnly = latestOnly;
+            mAppliedAdaptiveRate = adaptiveRate;
+            mCompass.setSensorDelay(delay);
+            mCompass.setSamplingPeriodUs(periodUs);
+            mCompass.setMaxReportLatency(latencyUs);
+            mCompass.setOutputInterval(outputUs);
+            mCompass.setDeliverLatestOnly(latestOnly);
+            mCompass.setAdaptiveRate(adaptiveRate);
+            mCompass.setOrientationListener(this);
+            mCompass.setCallback(this);
+        }
+
+        @Override
+        public void onOrientation(
+            float azimuth,
+            float pitch,
+            float roll,
+            float[] rotationMatrix,
+            double accuracy,
+            long timestamp
+        ) {
+            final Subscription[] subscriptions = mSubscriptions;
+            for (int i = 0; i < subscriptions.length; i++) {
+                final OrientationListener listener =
+                    subscriptions[i].mOrientationListener;
+                if (listener != null) {
+                    listener.onOrientation(
+                        azimuth,
+                        pitch,
+                        roll,
+                        rotationMatrix,
+                        accuracy,
+                        timestamp
+                    );
+                }
+            }
+        }
+
+        @Override
+        public void onReading(
+            double heading,
+            double accuracy,
+            double magneticHeading,
+            long timestamp
+        ) {
+            final Subscription[] subscriptions = mSubscriptions;
+            for (int i = 0; i < subscriptions.length; i++) {
+                final CompassCallback callback = subscriptions[i].mCallback;
+                if (callback != null) {
+                    callback.onReading(
+                        heading,
+                        accuracy,
+                        magneticHeading,
+                        timestamp
+                    );
+                }
+            }
+        }
+
+        @Override
+        public void onError(String error) {
+            final Subscription[] subscriptions = mSubscriptions;
+            for (int i = 0; i < subscriptions.length; i++) {
+                final CompassCallback callback = subscriptions[i].mCallback;
+                if (callback != null) callback.onError(error);
+            }
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package org.nativescript.compass;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+// Background looper shared by every SensorManager registration in the plugin,
+// so sensor events and the fusion math never run on the app's main looper
+final class SensorThread {
+
+    private static HandlerThread sThread = null;
+    private static Handler sHandler = null;
+
+    private SensorThread() {}
+
+    static synchronized Handler getHandler() {
+        if (sHandler == null) {
+            sThread = new HandlerThread("CompassSensorThread");
+            sThread.start();
+            sHandler = new Handler(sThread.getLooper());
+        }
+        return sHandler;
+    }
+}
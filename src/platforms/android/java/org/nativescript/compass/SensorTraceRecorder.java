@@ -0,0 +1,181 @@
+package org.nativescript.compass;
+
+import android.os.SystemClock;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Records the raw sensor events reaching the compasses into a compact binary
+// trace for SensorTraceReplay. The sensor thread only copies primitives into
+// a preallocated buffer; a writer thread swaps it out and writes it to disk,
+// so file I/O never runs on the sensor thread. Records that do not fit while
+// the writer is behind are dropped and counted.
+//
+// Format (big-endian): int MAGIC, short VERSION, then records of
+//   byte RECORD_SAMPLE, int sensorType, long timestampNs, byte count, float[count]
+//   byte RECORD_ACCURACY, int sensorType, long timestampNs, int accuracy
+public final class SensorTraceRecorder {
+
+    public static final int MAGIC = 0x4E534354; // "NSCT"
+    public static final short VERSION = 1;
+    public static final byte RECORD_SAMPLE = 0;
+    public static final byte RECORD_ACCURACY = 1;
+
+    private static final int BUFFER_BYTES = 64 * 1024;
+    private static final long FLUSH_INTERVAL_MS = 500;
+
+    private static SensorTraceRecorder sActive = null;
+    private static volatile SensorTraceRecorder sRecording = null;
+
+    private final FileOutputStream mStream;
+    private final FileChannel mChannel;
+    private final Object mLock = new Object();
+    private ByteBuffer mFront = ByteBuffer.allocate(BUFFER_BYTES);
+    private ByteBuffer mBack = ByteBuffer.allocate(BUFFER_BYTES);
+    private boolean mRunning = true;
+    private long mRecords = 0;
+    private long mDropped = 0;
+    private final Thread mWriter;
+
+    private SensorTraceRecorder(final File file) throws IOException {
+        mStream = new FileOutputStream(file);
+        mChannel = mStream.getChannel();
+        mFront.putInt(MAGIC).putShort(VERSION);
+        mWriter = new Thread(
+            new Runnable() {
+                @Override
+                public void run() {
+                    writeLoop();
+                }
+            },
+            "CompassTraceWriter"
+        );
+        mWriter.setDaemon(true);
+        mWriter.start();
+    }
+
+    // Starts recording every compass sensor event to file, replacing any
+    // running recording
+    public static synchronized void start(final File file) throws IOException {
+        stop();
+        sActive = new SensorTraceRecorder(file);
+        sRecording = sActive;
+    }
+
+    // Stops and flushes the running recording. Returns [records written,
+    // records dropped], or null when nothing was recording.
+    public static synchronized long[] stop() {
+        final SensorTraceRecorder recorder = sActive;
+        if (recorder == null) return null;
+        sActive = null;
+        sRecording = null;
+        return recorder.close();
+    }
+
+    static void recordSample(
+        final int sensorType,
+        final long timestamp,
+        final float[] values
+    ) {
+        final SensorTraceRecorder recorder = sRecording;
+        if (recorder != null) recorder.putSample(sensorType, timestamp, values);
+    }
+
+    static void recordAccuracy(final int sensorType, final int accuracy) {
+        final SensorTraceRecorder recorder = sRecording;
+        if (recorder != null) recorder.putAccuracy(sensorType, accuracy);
+    }
+
+    private void putSample(
+        final int sensorType,
+        final long timestamp,
+        final float[] values
+    ) {
+        final int count = Math.min(values.length, Byte.MAX_VALUE);
+        synchronized (mLock) {
+            if (!mRunning) return;
+            if (mFront.remaining() < 14 + count * 4) {
+                mDropped++;
+                return;
+            }
+            mFront.put(RECORD_SAMPLE).putInt(sensorType).putLong(timestamp);
+            mFront.put((byte) count);
+            for (int i = 0; i < count; i++) mFront.putFloat(values[i]);
+            onRecord();
+        }
+    }
+
+    private void putAccuracy(final int sensorType, final int accuracy) {
+        synchronized (mLock) {
+            if (!mRunning) return;
+            if (mFront.remaining() < 17) {
+                mDropped++;
+                return;
+            }
+            mFront.put(RECORD_ACCURACY).putInt(sensorType);
+            mFront.putLong(SystemClock.elapsedRealtimeNanos()).putInt(accuracy);
+            onRecord();
+        }
+    }
+
+    // Called with mLock held
+    private void onRecord() {
+        mRecords++;
+        if (mFront.position() > BUFFER_BYTES / 2) mLock.notify();
+    }
+
+    private void writeLoop() {
+        while (true) {
+            final ByteBuffer pending;
+            final boolean running;
+            synchronized (mLock) {
+                if (mRunning && mFront.position() <= BUFFER_BYTES / 2) {
+                    try {
+                        mLock.wait(FLUSH_INTERVAL_MS);
+                    } catch (InterruptedException e) {
+                        mRunning = false;
+                    }
+                }
+                running = mRunning;
+                pending = mFront;
+                mFront = mBack;
+                mBack = pending;
+            }
+
+            pending.flip();
+            try {
+                while (pending.hasRemaining()) mChannel.write(pending);
+            } catch (IOException e) {
+                synchronized (mLock) {
+                    mRunning = false;
+                }
+                return;
+            } finally {
+                pending.clear();
+            }
+            if (!running) return;
+        }
+    }
+
+    private long[] close() {
+        synchronized (mLock) {
+            mRunning = false;
+            mLock.notify();
+        }
+        try {
+            mWriter.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            mStream.close();
+        } catch (IOException e) {
+            // The trace is as complete as the last successful write
+        }
+        synchronized (mLock) {
+            return new long[] { mRecords, mDropped };
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package org.nativescript.compass;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+// Feeds a SensorTraceRecorder trace through a Compass on the calling thread,
+// as fast as it can be decoded. The compass sensors are never registered;
+// recorded events enter at the same point live events do after batching, and
+// every clock the compass keeps runs on the recorded sample times, so the
+// output only depends on the trace and the compass settings. See
+// CompassHelper.replay for the full pipeline including the filter chain,
+// minChangeThreshold and updateThrottle.
+//
+// GyroCompass must be built with its own AccMagCompass,
+// new GyroCompass(context, new AccMagCompass(context)).
+public final class SensorTraceReplay {
+
+    // Receives the decoded records in trace order
+    interface Sink {
+        void onSample(int sensorType, long timestamp, float[] values);
+
+        void onAccuracy(int sensorType, long timestamp, int accuracy);
+    }
+
+    private static final int MAX_VALUES = Byte.MAX_VALUE;
+
+    private SensorTraceReplay() {}
+
+    // Returns the number of records replayed
+    public static long replay(
+        final File trace,
+        final Compass compass,
+        final CompassCallback callback
+    ) throws IOException {
+        return replay(trace, compass, callback, null);
+    }
+
+    // Also reports the full orientation of every replayed reading to listener
+    public static long replay(
+        final File trace,
+        final Compass compass,
+        final CompassCallback callback,
+        final OrientationListener listener
+    ) throws IOException {
+        compass.startReplay(callback, listener);
+        try {
+            return read(
+                trace,
+                new Sink() {
+                    @Override
+                    public void onSample(
+                        final int sensorType,
+                        final long timestamp,
+                        final float[] values
+                    ) {
+                        compass.replaySample(sensorType, timestamp, values);
+                    }
+
+                    @Override
+                    public void onAccuracy(
+                        final int sensorType,
+                        final long timestamp,
+                        final int accuracy
+                    ) {
+                        compass.replayAccuracy(sensorType, accuracy);
+                    }
+                }
+            );
+        } finally {
+            compass.stopReplay();
+        }
+    }
+
+    // Decodes trace into sink, returns the number of records
+    static long read(final File trace, final Sink sink) throws IOException {
+        final DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(trace), 64 * 1024)
+        );
+        try {
+            if (
+                in.readInt() != SensorTraceRecorder.MAGIC ||
+                in.readShort() != SensorTraceRecorder.VERSION
+            ) {
+                throw new IOException("Not a compass sensor trace: " + trace);
+            }
+
+            // One reusable array per value count, events keep their length
+            final float[][] values = new float[MAX_VALUES + 1][];
+            long records = 0;
+            while (true) {
+                // A recording cut short ends in a partial record, which is skipped
+                try {
+                    final int kind = in.readByte();
+                    final int sensorType = in.readInt();
+                    final long timestamp = in.readLong();
+
+                    if (kind == SensorTraceRecorder.RECORD_SAMPLE) {
+                        final int count = in.readByte();
+                        if (values[count] == null) {
+                            values[count] = new float[count];
+                        }
+                        final float[] sample = values[count];
+                        for (int i = 0; i < count; i++) {
+                            sample[i] = in.readFloat();
+                        }
+                        sink.onSample(sensorType, timestamp, sample);
+                    } else if (kind == SensorTraceRecorder.RECORD_ACCURACY) {
+                        sink.onAccuracy(sensorType, timestamp, in.readInt());
+                    } else {
+                        throw new IOException("Corrupt trace record " + records);
+                    }
+                } catch (EOFException e) {
+                    break;
+                }
+                records++;
+            }
+            return records;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package org.nativescript.compass;
+
+import android.hardware.GeomagneticField;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// DeclinationCache lookups against evaluating GeomagneticField on every
+// location update. A hit must not allocate; a miss costs about one model
+// evaluation, allocation included, plus the slot scan.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DeclinationCacheBenchmark {
+
+    private static final int CAPACITY = 32; // As in CompassHelper
+    private static final long TIME_MS = 1700000000000L;
+
+    private DeclinationCache mCache;
+    private int mStep = 0;
+
+    @Setup
+    public void setUp() {
+        mCache = new DeclinationCache(CAPACITY);
+    }
+
+    // A walk of GPS fixes a few metres apart, all in one cell
+    @Benchmark
+    public float hit() {
+        mStep = (mStep + 1) & 1023;
+        return mCache.getDeclination(
+            52.52 + mStep * 1e-6,
+            13.40 + mStep * 1e-6,
+            35,
+            TIME_MS
+        );
+    }
+
+    // Every lookup in a cell evicted since its last use
+    @Benchmark
+    public float miss() {
+        mStep = (mStep + 1) % (CAPACITY * 2);
+        return mCache.getDeclination(
+            52.52,
+            13.40 + mStep * DeclinationCache.CELL_DEGREES,
+            35,
+            TIME_MS
+        );
+    }
+
+    // The model evaluated for every location update
+    @Benchmark
+    public float geomagneticField() {
+        mStep = (mStep + 1) & 1023;
+        return new GeomagneticField(
+            (float) (52.52 + mStep * 1e-6),
+            (float) (13.40 + mStep * 1e-6),
+            35,
+            TIME_MS
+        ).getDeclination();
+    }
+}
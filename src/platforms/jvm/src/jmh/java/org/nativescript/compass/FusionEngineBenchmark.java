@@ -0,0 +1,69 @@
+package org.nativescript.compass;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Per-sample cost of the fusion engines. Run with -prof gc, every
+// gc.alloc.rate.norm should be 0 B/op.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FusionEngineBenchmark {
+
+    // As GyroCompass.FILTER_TIME_CONSTANT
+    private static final float TIME_CONSTANT = 1.47f;
+
+    @Param({ "quaternion", "euler" })
+    public String engine;
+
+    private FusionEngine mEngine;
+    private final float[] mRates = { 0.02f, -0.01f, 0.3f };
+    private final float[] mReference = new float[9];
+    private final float[] mMatrix = new float[9];
+    private final float[] mOrientation = new float[3];
+
+    @Setup
+    public void setUp() {
+        mEngine = "quaternion".equals(engine)
+            ? new QuaternionFusionEngine(TIME_CONSTANT)
+            : new EulerFusionEngine(TIME_CONSTANT);
+        OrientationMath.rotationMatrixFromOrientation(
+            new float[] { 1.2f, 0.1f, -0.05f },
+            mReference
+        );
+        mEngine.reset(mReference);
+    }
+
+    @Benchmark
+    public float[] integrateGyro() {
+        mEngine.integrateGyro(mRates, 0.005f);
+        return mOrientation;
+    }
+
+    @Benchmark
+    public float[] fuse() {
+        mEngine.fuse(mMatrix, mOrientation, 0.005f);
+        return mOrientation;
+    }
+
+    @Benchmark
+    public float[] setReference() {
+        mEngine.setReference(mReference);
+        return mReference;
+    }
+
+    // One gyro sample as GyroCompass handles it
+    @Benchmark
+    public float[] integrateAndFuse() {
+        mEngine.integrateGyro(mRates, 0.005f);
+        mEngine.fuse(mMatrix, mOrientation, 0.005f);
+        return mOrientation;
+    }
+}
@@ -0,0 +1,65 @@
+package org.nativescript.compass;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// One HeadingFilter stage per run, fed a noisy heading that wraps around
+// 360/0 with the occasional spike. Run with -prof gc, every
+// gc.alloc.rate.norm should be 0 B/op.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class HeadingFilterBenchmark {
+
+    private static final int SAMPLES = 1024; // Power of two
+    private static final long PERIOD_NS = 20000000L;
+
+    @Param({ "ema", "oneEuro", "median", "outlier" })
+    public String stage;
+
+    private HeadingFilter mFilter;
+    private final double[] mHeadings = new double[SAMPLES];
+    private int mIndex = 0;
+    private long mTimestamp = 0;
+
+    @Setup
+    public void setUp() {
+        switch (stage) {
+            case "ema":
+                mFilter = new EmaHeadingFilter(0.8);
+                break;
+            case "oneEuro":
+                mFilter = new OneEuroHeadingFilter(1.0, 0.05, 1.0);
+                break;
+            case "median":
+                mFilter = new MedianHeadingFilter(5);
+                break;
+            default:
+                mFilter = new OutlierHeadingFilter(45, 3);
+                break;
+        }
+        final Random random = new Random(42);
+        for (int i = 0; i < SAMPLES; i++) {
+            double heading = 358 + i * 0.01 + random.nextGaussian() * 2;
+            if (random.nextInt(50) == 0) heading += 120;
+            heading %= 360;
+            if (heading < 0) heading += 360;
+            mHeadings[i] = heading;
+        }
+    }
+
+    @Benchmark
+    public double filter() {
+        mTimestamp += PERIOD_NS;
+        mIndex = (mIndex + 1) & (SAMPLES - 1);
+        return mFilter.filter(mHeadings[mIndex], mTimestamp);
+    }
+}
@@ -0,0 +1,122 @@
+package org.nativescript.compass;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+// Every OrientationMath helper on fixed inputs. Run with -prof gc, every
+// gc.alloc.rate.norm should be 0 B/op.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class OrientationMathBenchmark {
+
+    private final float[] mGravity = { 0.3f, 0.5f, 9.7f };
+    private final float[] mGeomagnetic = { 22.0f, -5.0f, -40.0f };
+    private final float[] mRates = { 0.02f, -0.01f, 0.3f };
+    private final float[] mOrientation = { 1.2f, 0.1f, -0.05f };
+    private final float[] mMatrixA = new float[9];
+    private final float[] mMatrixB = new float[9];
+    private final float[] mMatrixOut = new float[9];
+    private final float[] mQuaternionA = new float[4];
+    private final float[] mQuaternionB = new float[4];
+    private final float[] mQuaternionOut = new float[4];
+    private final float[] mResult = new float[3];
+    private double mHeading = 0;
+
+    @Setup
+    public void setUp() {
+        OrientationMath.rotationMatrixFromOrientation(mOrientation, mMatrixA);
+        OrientationMath.rotationMatrixFromAccMag(
+            mMatrixB,
+            mGravity,
+            mGeomagnetic
+        );
+        OrientationMath.quaternionFromRotationMatrix(mMatrixA, mQuaternionA);
+        OrientationMath.rotationVectorFromGyro(mRates, mQuaternionB, 0.0025f);
+    }
+
+    @Benchmark
+    public float[] multiply() {
+        OrientationMath.multiply(mMatrixA, mMatrixB, mMatrixOut);
+        return mMatrixOut;
+    }
+
+    @Benchmark
+    public float[] rotationMatrixFromOrientation() {
+        OrientationMath.rotationMatrixFromOrientation(mOrientation, mMatrixOut);
+        return mMatrixOut;
+    }
+
+    @Benchmark
+    public float[] quaternionFromOrientation() {
+        OrientationMath.quaternionFromOrientation(
+            mOrientation[0],
+            mOrientation[1],
+            mOrientation[2],
+            mQuaternionOut
+        );
+        return mQuaternionOut;
+    }
+
+    @Benchmark
+    public boolean rotationMatrixFromAccMag() {
+        return OrientationMath.rotationMatrixFromAccMag(
+            mMatrixOut,
+            mGravity,
+            mGeomagnetic
+        );
+    }
+
+    @Benchmark
+    public float[] orientationFromRotationMatrix() {
+        OrientationMath.orientationFromRotationMatrix(mMatrixA, mResult);
+        return mResult;
+    }
+
+    @Benchmark
+    public float[] rotationVectorFromGyro() {
+        OrientationMath.rotationVectorFromGyro(mRates, mQuaternionOut, 0.0025f);
+        return mQuaternionOut;
+    }
+
+    @Benchmark
+    public float[] rotationMatrixFromQuaternion() {
+        OrientationMath.rotationMatrixFromQuaternion(mQuaternionA, mMatrixOut);
+        return mMatrixOut;
+    }
+
+    @Benchmark
+    public float[] quaternionFromRotationMatrix() {
+        OrientationMath.quaternionFromRotationMatrix(mMatrixA, mQuaternionOut);
+        return mQuaternionOut;
+    }
+
+    @Benchmark
+    public float[] multiplyQuaternions() {
+        OrientationMath.multiplyQuaternions(
+            mQuaternionA,
+            mQuaternionB,
+            mQuaternionOut
+        );
+        return mQuaternionOut;
+    }
+
+    @Benchmark
+    public float[] normalizeQuaternion() {
+        System.arraycopy(mQuaternionA, 0, mQuaternionOut, 0, 4);
+        OrientationMath.normalizeQuaternion(mQuaternionOut);
+        return mQuaternionOut;
+    }
+
+    @Benchmark
+    public double smoothHeading() {
+        mHeading = OrientationMath.smoothHeading(mHeading, 359.5, 0.8);
+        return mHeading;
+    }
+}
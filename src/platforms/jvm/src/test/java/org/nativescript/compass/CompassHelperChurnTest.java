@@ -0,0 +1,124 @@
+package org.nativescript.compass;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.hardware.Sensor;
+import android.os.Looper;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+// A hundred start/stop and one-shot cycles share one sensor thread and
+// one scheduler thread, and leave no threads or registrations behind.
+public class CompassHelperChurnTest {
+
+    private static final int WARMUP_CYCLES = 20;
+    private static final int CYCLES = 100;
+    // The JVM may start a helper thread of its own meanwhile
+    private static final int THREAD_SLACK = 2;
+
+    private final FakeSensorManager mSensors = new FakeSensorManager(
+        Sensor.TYPE_ACCELEROMETER,
+        Sensor.TYPE_MAGNETIC_FIELD
+    );
+
+    @Test
+    public void churnReusesThreads() throws InterruptedException {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        // Started once, before anything is counted
+        Looper.getMainLooper();
+        churn(WARMUP_CYCLES);
+
+        final int before = threads.getThreadCount();
+        threads.resetPeakThreadCount();
+        churn(CYCLES);
+
+        assertEquals(1, countThreads("CompassSensorThread"));
+        assertEquals(1, countThreads("CompassScheduler"));
+        assertTrue(
+            "Peak of " + threads.getPeakThreadCount() + " threads, " +
+            before + " before",
+            threads.getPeakThreadCount() <= before + THREAD_SLACK
+        );
+        assertTrue(threads.getThreadCount() <= before + THREAD_SLACK);
+        assertEquals(0, mSensors.getListenerCount());
+    }
+
+    private void churn(final int cycles) throws InterruptedException {
+        final AtomicInteger readings = new AtomicInteger();
+        final CompassCallback counter = new CompassCallback() {
+            @Override
+            public void onReading(
+                double heading,
+                double accuracy,
+                double magneticHeading,
+                long timestamp
+            ) {
+                readings.incrementAndGet();
+            }
+
+            @Override
+            public void onError(String error) {}
+        };
+
+        for (int i = 0; i < cycles; i++) {
+            final CompassHelper helper = new CompassHelper(
+                mSensors.asContext(),
+                0,
+                20,
+                0,
+                false,
+                "ui",
+                counter
+            );
+            assertTrue(helper.startUpdating());
+            assertTrue(helper.stopUpdating());
+
+            getCurrentReading();
+        }
+    }
+
+    private void getCurrentReading() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<String> result = new AtomicReference<>();
+        CompassHelper.getCurrentReading(
+            mSensors.asContext(),
+            false,
+            "ui",
+            new CompassCallback() {
+                @Override
+                public void onReading(
+                    double heading,
+                    double accuracy,
+                    double magneticHeading,
+                    long timestamp
+                ) {
+                    result.set(Thread.currentThread().getName());
+                    done.countDown();
+                }
+
+                @Override
+                public void onError(String error) {
+                    result.set(error);
+                    done.countDown();
+                }
+            }
+        );
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        // Delivered on the main looper, not a sensor or scheduler thread
+        assertEquals("main", result.get());
+    }
+
+    private static int countThreads(final String name) {
+        int count = 0;
+        for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (name.equals(thread.getName())) count++;
+        }
+        return count;
+    }
+}
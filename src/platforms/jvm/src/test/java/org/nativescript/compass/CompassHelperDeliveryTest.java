@@ -0,0 +1,67 @@
+package org.nativescript.compass;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.hardware.Sensor;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+// Readings reach the user on the main looper whether the throttle timer or
+// the inline batching check let them through.
+public class CompassHelperDeliveryTest {
+
+    private final FakeSensorManager mSensors = new FakeSensorManager(
+        Sensor.TYPE_ACCELEROMETER,
+        Sensor.TYPE_MAGNETIC_FIELD
+    );
+
+    @Test
+    public void throttleTimerDeliversOnMainLooper() throws Exception {
+        assertEquals("main", deliveryThread(0));
+    }
+
+    @Test
+    public void inlineBatchingCheckDeliversOnMainLooper() throws Exception {
+        assertEquals("main", deliveryThread(100));
+    }
+
+    private String deliveryThread(final long maxReportLatencyMs)
+        throws InterruptedException {
+        final CountDownLatch delivered = new CountDownLatch(3);
+        final AtomicReference<String> thread = new AtomicReference<>();
+        final CompassHelper helper = new CompassHelper(
+            mSensors.asContext(),
+            0,
+            20,
+            0,
+            false,
+            "game",
+            new CompassCallback() {
+                @Override
+                public void onReading(
+                    double heading,
+                    double accuracy,
+                    double magneticHeading,
+                    long timestamp
+                ) {
+                    thread.set(Thread.currentThread().getName());
+                    delivered.countDown();
+                }
+
+                @Override
+                public void onError(String error) {}
+            }
+        );
+        helper.setBatching(maxReportLatencyMs, false);
+        assertTrue(helper.startUpdating());
+        try {
+            assertTrue(delivered.await(5, TimeUnit.SECONDS));
+        } finally {
+            helper.stopUpdating();
+        }
+        return thread.get();
+    }
+}
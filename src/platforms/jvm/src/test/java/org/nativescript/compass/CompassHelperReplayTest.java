@@ -0,0 +1,209 @@
+package org.nativescript.compass;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.os.Handler;
+import android.os.Looper;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+// A replay runs the whole CompassHelper pipeline on the trace's sensor time,
+// so it is repeatable and applies the filter chain, minChangeThreshold and
+// updateThrottle the way a live session does.
+public class CompassHelperReplayTest {
+
+    private final FakeSensorManager mSensors = new FakeSensorManager(
+        Sensor.TYPE_ACCELEROMETER,
+        Sensor.TYPE_MAGNETIC_FIELD,
+        Sensor.TYPE_GYROSCOPE
+    );
+
+    @Test
+    public void replayIsRepeatable() throws Exception {
+        final File trace = SyntheticTrace.write(10, 30, 0);
+        for (final boolean fusion : new boolean[] { false, true }) {
+            final Readings first = new Readings();
+            final Readings second = new Readings();
+            helper(fusion, 0, 100, first).replay(trace);
+            helper(fusion, 0, 100, second).replay(trace);
+            assertFalse(first.mValues.isEmpty());
+            assertEquals(first.mValues, second.mValues);
+            assertTracksHeading(first, 30, 2);
+        }
+    }
+
+    @Test
+    public void throttleSpacesReadings() throws Exception {
+        final Readings readings = new Readings();
+        helper(false, 0, 100, readings).replay(
+            SyntheticTrace.write(10, 30, 0)
+        );
+        // One reading per 100 ms tick over 10 s of sensor time
+        final int count = readings.mValues.size() / 2;
+        assertTrue("Delivered " + count, count >= 99 && count <= 101);
+        assertTracksHeading(readings, 30, 1);
+    }
+
+    @Test
+    public void minChangeThresholdDropsSmallChanges() throws Exception {
+        // 5 degrees over 10 s, checked every 50 ms
+        final Readings readings = new Readings();
+        helper(false, 1, 50, readings).replay(
+            SyntheticTrace.write(10, 0.5, 0)
+        );
+        assertEquals(4, readings.mValues.size() / 2);
+    }
+
+    @Test
+    public void filterChainApplies() throws Exception {
+        final Readings readings = new Readings();
+        final CompassHelper helper = helper(false, 0, 100, readings);
+        helper.addFilter(
+            new HeadingFilter() {
+                @Override
+                public double filter(double heading, long timestampNanos) {
+                    return (heading + 90) % 360;
+                }
+
+                @Override
+                public void reset() {}
+            }
+        );
+        helper.replay(SyntheticTrace.write(2, 0, 0));
+        assertFalse(readings.mValues.isEmpty());
+        for (int i = 0; i < readings.mValues.size(); i += 2) {
+            assertEquals(90, readings.mValues.get(i), 0.5);
+        }
+    }
+
+    @Test
+    public void batchedEventsAreRecordedInTimestampOrder() throws Exception {
+        Looper.prepare(); // Never looped, the test drains the batch itself
+        final List<Long> consumed = new ArrayList<>();
+        final SensorBatch batch = new SensorBatch(
+            new SensorBatch.Consumer() {
+                @Override
+                public void onBurstStart() {}
+
+                @Override
+                public void onSample(int type, long timestamp, float[] values) {
+                    // Each event keeps its own length
+                    assertEquals(
+                        type == Sensor.TYPE_GYROSCOPE ? 3 : 6,
+                        values.length
+                    );
+                    consumed.add(timestamp);
+                }
+
+                @Override
+                public void onBurstEnd() {}
+            },
+            new Handler(Looper.myLooper())
+        );
+
+        // Two FIFOs flushed one after the other
+        final File file = File.createTempFile("compass", ".trace");
+        file.deleteOnExit();
+        SensorTraceRecorder.start(file);
+        for (int i = 0; i < 4; i++) {
+            batch.add(event(Sensor.TYPE_GYROSCOPE, 3, 10 + 2 * i));
+        }
+        for (int i = 0; i < 4; i++) {
+            batch.add(
+                event(Sensor.TYPE_MAGNETIC_FIELD_UNCALIBRATED, 6, 11 + 2 * i)
+            );
+        }
+        batch.run();
+        SensorTraceRecorder.stop();
+
+        final List<Long> recorded = new ArrayList<>();
+        SensorTraceReplay.read(
+            file,
+            new SensorTraceReplay.Sink() {
+                @Override
+                public void onSample(int type, long timestamp, float[] values) {
+                    recorded.add(timestamp);
+                }
+
+                @Override
+                public void onAccuracy(int type, long timestamp, int accuracy) {}
+            }
+        );
+        assertEquals(8, recorded.size());
+        for (int i = 0; i < recorded.size(); i++) {
+            assertEquals(10L + i, (long) recorded.get(i));
+        }
+        assertEquals(recorded, consumed);
+    }
+
+    // Every reading within maxError degrees of the true heading at its time
+    private static void assertTracksHeading(
+        final Readings readings,
+        final double degPerSec,
+        final double maxError
+    ) {
+        for (int i = 0; i < readings.mValues.size(); i += 2) {
+            final long timestamp = readings.mValues.get(i + 1).longValue();
+            double error =
+                readings.mValues.get(i) -
+                SyntheticTrace.headingAt(degPerSec, timestamp * 1000000L);
+            if (error > 180) error -= 360;
+            else if (error < -180) error += 360;
+            assertEquals("At " + timestamp + " ms", 0, error, maxError);
+        }
+    }
+
+    private CompassHelper helper(
+        final boolean fusion,
+        final double minChangeThreshold,
+        final long updateThrottle,
+        final Readings readings
+    ) {
+        return new CompassHelper(
+            mSensors.asContext(),
+            minChangeThreshold,
+            updateThrottle,
+            0,
+            fusion,
+            "game",
+            readings
+        );
+    }
+
+    private static SensorEvent event(
+        final int type,
+        final int size,
+        final long timestamp
+    ) {
+        final SensorEvent event = new SensorEvent(size);
+        event.sensor = new Sensor(type);
+        event.timestamp = timestamp;
+        return event;
+    }
+
+    // Heading, timestamp pairs in delivery order
+    private static final class Readings implements CompassCallback {
+
+        final List<Double> mValues = new ArrayList<>();
+
+        @Override
+        public void onReading(
+            double heading,
+            double accuracy,
+            double magneticHeading,
+            long timestamp
+        ) {
+            mValues.add(heading);
+            mValues.add((double) timestamp);
+        }
+
+        @Override
+        public void onError(String error) {}
+    }
+}
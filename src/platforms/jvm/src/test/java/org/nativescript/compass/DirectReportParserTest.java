@@ -0,0 +1,160 @@
+package org.nativescript.compass;
+
+import static org.junit.Assert.assertEquals;
+
+import android.hardware.Sensor;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+// Synthetic direct report rings. Every record carries its counter as the
+// timestamp and in every value, so a consumer can tell which write it saw.
+public class DirectReportParserTest {
+
+    private static final int SIZE = DirectReportParser.RECORD_SIZE;
+
+    private final List<Long> mReports = new ArrayList<>();
+    private final DirectReportParser.Consumer mConsumer =
+        new DirectReportParser.Consumer() {
+            @Override
+            public void onReport(
+                int token,
+                int type,
+                long timestamp,
+                float[] values
+            ) {
+                assertEquals(7, token);
+                assertEquals(Sensor.TYPE_GYROSCOPE, type);
+                assertEquals(DirectReportParser.VALUES, values.length);
+                for (final float value : values) {
+                    assertEquals((float) timestamp, value, 0);
+                }
+                mReports.add(timestamp);
+            }
+        };
+
+    @Test
+    public void consumesRecordsInOrder() {
+        final DirectReportParser parser = new DirectReportParser(4);
+        final ByteBuffer ring = ring(4, 1, 2, 3);
+        assertEquals(3, parser.parse(ring, ring, 4, mConsumer));
+        assertReports(1, 2, 3);
+        assertEquals(3, parser.getNextSlot());
+    }
+
+    @Test
+    public void stopsAtAnOlderLap() {
+        final DirectReportParser parser = new DirectReportParser(2);
+        // Never written
+        ByteBuffer ring = ring(2, 0, 0);
+        assertEquals(0, parser.parse(ring, ring, 2, mConsumer));
+
+        ring = ring(2, 1, 2);
+        assertEquals(2, parser.parse(ring, ring, 2, mConsumer));
+        assertEquals(0, parser.getNextSlot());
+        // Slot 0 still holds counter 1 from the previous lap
+        assertEquals(0, parser.parse(ring, ring, 2, mConsumer));
+        assertReports(1, 2);
+
+        ring = ring(2, 3, 2);
+        assertEquals(1, parser.parse(ring, ring, 2, mConsumer));
+        assertReports(1, 2, 3);
+    }
+
+    @Test
+    public void skipsAheadWhenLapped() {
+        final DirectReportParser parser = new DirectReportParser(4);
+        ByteBuffer ring = ring(4, 1, 2);
+        assertEquals(2, parser.parse(ring, ring, 2, mConsumer));
+        // Four reports were lost before the reader came back to slot 2
+        ring = ring(2, 7, 8);
+        assertEquals(2, parser.parse(ring, ring, 2, mConsumer));
+        assertReports(1, 2, 7, 8);
+        assertEquals(0, parser.getNextSlot());
+    }
+
+    @Test
+    public void counterWrapsAt32Bits() {
+        final DirectReportParser parser = new DirectReportParser(8);
+        // Lapped far enough to be near the end of the counter range
+        ByteBuffer ring = ring(1, 0x7FFFFFFF);
+        assertEquals(1, parser.parse(ring, ring, 1, mConsumer));
+        ring = ring(4, 0xFFFFFFFEL, 0xFFFFFFFFL, 1, 2);
+        assertEquals(4, parser.parse(ring, ring, 4, mConsumer));
+        // 0 is skipped, and 0xFFFFFFFF is older than 2
+        ring = ring(2, 0xFFFFFFFFL, 3);
+        assertEquals(0, parser.parse(ring, ring, 2, mConsumer));
+        assertReports(0x7FFFFFFF, 0xFFFFFFFEL, 0xFFFFFFFFL, 1, 2);
+    }
+
+    @Test
+    public void stopsAtASizeMismatch() {
+        final DirectReportParser parser = new DirectReportParser(4);
+        final ByteBuffer ring = ring(3, 1, 2, 3);
+        ring.putInt(SIZE + DirectReportParser.OFFSET_SIZE, SIZE - 8);
+        assertEquals(1, parser.parse(ring, ring, 3, mConsumer));
+        assertReports(1);
+    }
+
+    @Test
+    public void skipsARecordRewrittenWhileRead() {
+        final DirectReportParser parser = new DirectReportParser(4);
+        final ByteBuffer first = ring(2, 1, 2);
+        // The writer zeroed slot 1 to rewrite it while the first copy was
+        // taken, so the first copy may hold half of each write
+        final ByteBuffer second = ring(2, 1, 0);
+        assertEquals(1, parser.parse(first, second, 2, mConsumer));
+        assertReports(1);
+        assertEquals(1, parser.getNextSlot());
+    }
+
+    private void assertReports(final long... timestamps) {
+        assertEquals(timestamps.length, mReports.size());
+        for (int i = 0; i < timestamps.length; i++) {
+            assertEquals(timestamps[i], (long) mReports.get(i));
+        }
+    }
+
+    // Consecutive slots holding the given counters, 0 = never written
+    private static ByteBuffer ring(final int slots, final long... counters) {
+        final ByteBuffer ring = ByteBuffer.allocate(slots * SIZE).order(
+            ByteOrder.nativeOrder()
+        );
+        for (int i = 0; i < counters.length; i++) {
+            if (counters[i] == 0) continue;
+            final ByteBuffer record = record(counters[i]);
+            ring.position(i * SIZE);
+            ring.put(record.array());
+        }
+        ring.clear();
+        return ring;
+    }
+
+    private static ByteBuffer record(final long counter) {
+        final ByteBuffer record = ByteBuffer.allocate(SIZE).order(
+            ByteOrder.nativeOrder()
+        );
+        if (counter != 0) fill(record, counter);
+        return record;
+    }
+
+    // Counter as an unsigned 32-bit value, also the timestamp and values
+    private static void fill(final ByteBuffer record, final long counter) {
+        record.putInt(DirectReportParser.OFFSET_SIZE, SIZE);
+        record.putInt(DirectReportParser.OFFSET_TOKEN, 7);
+        record.putInt(DirectReportParser.OFFSET_TYPE, Sensor.TYPE_GYROSCOPE);
+        record.putInt(
+            DirectReportParser.OFFSET_COUNTER,
+            (int) counter
+        );
+        record.putLong(DirectReportParser.OFFSET_TIMESTAMP, counter);
+        for (int i = 0; i < DirectReportParser.VALUES; i++) {
+            record.putFloat(
+                DirectReportParser.OFFSET_VALUES + i * 4,
+                (float) counter
+            );
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package org.nativescript.compass;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.os.Handler;
+import android.os.SystemClock;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// A device with the given sensors, lying flat and facing magnetic north.
+// Every registered sensor streams events on the requested handler every
+// 5 ms until its listener is unregistered.
+final class FakeSensorManager extends SensorManager {
+
+    private static final long PERIOD_MS = 5;
+
+    private final int[] mTypes;
+    private final Map<SensorEventListener, List<Registration>> mRegistrations =
+        new HashMap<>();
+    private int mRegisterCount = 0;
+
+    FakeSensorManager(final int... types) {
+        mTypes = types;
+    }
+
+    Context asContext() {
+        return new Context() {
+            @Override
+            public Object getSystemService(final String name) {
+                return SENSOR_SERVICE.equals(name)
+                    ? FakeSensorManager.this
+                    : null;
+            }
+        };
+    }
+
+    // Listeners with at least one sensor registered
+    synchronized int getListenerCount() {
+        return mRegistrations.size();
+    }
+
+    // Sensors registered so far, counting every registration again
+    synchronized int getRegisterCount() {
+        return mRegisterCount;
+    }
+
+    @Override
+    public Sensor getDefaultSensor(final int type) {
+        for (final int available : mTypes) {
+            if (available == type) return new Sensor(type);
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized boolean registerListener(
+        final SensorEventListener listener,
+        final Sensor sensor,
+        final int samplingPeriodUs,
+        final int maxReportLatencyUs,
+        final Handler handler
+    ) {
+        List<Registration> registrations = mRegistrations.get(listener);
+        if (registrations == null) {
+            registrations = new ArrayList<>();
+            mRegistrations.put(listener, registrations);
+        }
+        final Registration registration = new Registration(
+            listener,
+            sensor,
+            handler
+        );
+        registrations.add(registration);
+        mRegisterCount++;
+        handler.post(registration);
+        return true;
+    }
+
+    @Override
+    public synchronized void unregisterListener(
+        final SensorEventListener listener
+    ) {
+        final List<Registration> registrations = mRegistrations.remove(
+            listener
+        );
+        if (registrations == null) return;
+        for (final Registration registration : registrations) {
+            registration.cancel();
+        }
+    }
+
+    private static final class Registration implements Runnable {
+
+        private final SensorEventListener mListener;
+        private final Handler mHandler;
+        private final SensorEvent mEvent = new SensorEvent(3);
+        private volatile boolean mCancelled = false;
+
+        Registration(
+            final SensorEventListener listener,
+            final Sensor sensor,
+            final Handler handler
+        ) {
+            mListener = listener;
+            mHandler = handler;
+            mEvent.sensor = sensor;
+            mEvent.accuracy = SENSOR_STATUS_ACCURACY_HIGH;
+            switch (sensor.getType()) {
+                case Sensor.TYPE_ACCELEROMETER:
+                    mEvent.values[2] = 9.81f;
+                    break;
+                case Sensor.TYPE_MAGNETIC_FIELD:
+                    mEvent.values[1] = 20f;
+                    mEvent.values[2] = -40f;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        void cancel() {
+            mCancelled = true;
+            mHandler.removeCallbacks(this);
+        }
+
+        @Override
+        public void run() {
+            if (mCancelled) return;
+            mEvent.timestamp = SystemClock.elapsedRealtimeNanos();
+            mListener.onSensorChanged(mEvent);
+            mHandler.postDelayed(this, PERIOD_MS);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package org.nativescript.compass;
+
+import static org.junit.Assert.assertEquals;
+
+import android.hardware.Sensor;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+// The quaternion engine and the legacy Euler engine, fed the same trace
+// through GyroCompass, publish the same headings and both follow the turn.
+public class FusionEngineTest {
+
+    private static final double TURN_DEG_PER_SEC = 30;
+    private static final float GYRO_BIAS = 0.005f; // rad/s
+
+    private final FakeSensorManager mSensors = new FakeSensorManager(
+        Sensor.TYPE_ACCELEROMETER,
+        Sensor.TYPE_MAGNETIC_FIELD,
+        Sensor.TYPE_GYROSCOPE
+    );
+
+    @Test
+    public void enginesAgreeLyingFlat() throws Exception {
+        assertEnginesAgree(0, 2);
+    }
+
+    @Test
+    public void enginesAgreePitched() throws Exception {
+        // Both engines lag the turn a little more off the horizontal
+        assertEnginesAgree(60, 3);
+    }
+
+    private void assertEnginesAgree(
+        final double pitchDeg,
+        final double maxError
+    ) throws Exception {
+        final File trace = SyntheticTrace.write(
+            20,
+            TURN_DEG_PER_SEC,
+            GYRO_BIAS,
+            pitchDeg
+        );
+        final List<double[]> quaternion = replay(
+            trace,
+            new QuaternionFusionEngine(1.47f)
+        );
+        final List<double[]> euler = replay(
+            trace,
+            new EulerFusionEngine(1.47f)
+        );
+
+        assertEquals(quaternion.size(), euler.size());
+        for (int i = 0; i < quaternion.size(); i++) {
+            final long timestamp = (long) quaternion.get(i)[1];
+            assertEquals(timestamp, (long) euler.get(i)[1]);
+            final String at = "At " + timestamp / 1000000L + " ms";
+            assertEquals(
+                at,
+                0,
+                difference(quaternion.get(i)[0], euler.get(i)[0]),
+                0.5
+            );
+            final double truth = SyntheticTrace.headingAt(
+                TURN_DEG_PER_SEC,
+                timestamp
+            );
+            assertEquals(
+                at,
+                0,
+                difference(quaternion.get(i)[0], truth),
+                maxError
+            );
+            assertEquals(
+                at,
+                0,
+                difference(euler.get(i)[0], truth),
+                maxError
+            );
+        }
+    }
+
+    // [heading, timestamp] of every published reading
+    private List<double[]> replay(final File trace, final FusionEngine engine)
+        throws Exception {
+        final GyroCompass compass = new GyroCompass(
+            mSensors.asContext(),
+            new AccMagCompass(mSensors.asContext())
+        );
+        compass.setFusionEngine(engine);
+        final List<double[]> readings = new ArrayList<>();
+        SensorTraceReplay.replay(
+            trace,
+            compass,
+            new CompassCallback() {
+                @Override
+                public void onReading(
+                    double heading,
+                    double accuracy,
+                    double magneticHeading,
+                    long timestamp
+                ) {
+                    readings.add(new double[] { heading, timestamp });
+                }
+
+                @Override
+                public void onError(String error) {}
+            }
+        );
+        return readings;
+    }
+
+    private static double difference(final double a, final double b) {
+        double difference = a - b;
+        if (difference > 180) difference -= 360;
+        else if (difference < -180) difference += 360;
+        return difference;
+    }
+}
@@ -0,0 +1,133 @@
+package org.nativescript.compass;
+
+import static org.junit.Assert.assertTrue;
+
+import android.hardware.Sensor;
+import java.lang.management.ManagementFactory;
+import org.junit.Test;
+
+// The gyro integration and fusion path, driven sample by sample the way the
+// sensor thread drives it, must not allocate once warmed up.
+public class GyroCompassAllocationTest {
+
+    private static final long GYRO_PERIOD_NS = 5000000L; // 200 Hz
+    private static final int WARMUP_SAMPLES = 200000;
+    private static final int MEASURED_SAMPLES = 100000;
+    // Slack for the measurement itself
+    private static final long MAX_BYTES = 1024;
+
+    private final float[] mGyro = { 0.01f, -0.02f, 0.3f };
+    private final float[] mAcc = { 0.2f, 0.4f, 9.7f };
+    private final float[] mMag = { 3f, 20f, -40f };
+    private double mHeadingSum = 0;
+    private long mOrientations = 0;
+
+    @Test
+    public void quaternionFusionDoesNotAllocate() {
+        assertNoAllocation(new QuaternionFusionEngine(1.47f), 0);
+    }
+
+    @Test
+    public void eulerFusionDoesNotAllocate() {
+        assertNoAllocation(new EulerFusionEngine(1.47f), 0);
+    }
+
+    @Test
+    public void decimatedFusionDoesNotAllocate() {
+        assertNoAllocation(new QuaternionFusionEngine(1.47f), 4);
+    }
+
+    private void assertNoAllocation(
+        final FusionEngine engine,
+        final int decimation
+    ) {
+        final FakeSensorManager sensors = new FakeSensorManager(
+            Sensor.TYPE_ACCELEROMETER,
+            Sensor.TYPE_MAGNETIC_FIELD,
+            Sensor.TYPE_GYROSCOPE
+        );
+        final GyroCompass compass = new GyroCompass(
+            sensors.asContext(),
+            new AccMagCompass(sensors.asContext())
+        );
+        compass.setFusionEngine(engine);
+        compass.setFusionDecimation(decimation);
+        compass.startReplay(
+            new CompassCallback() {
+                @Override
+                public void onReading(
+                    double heading,
+                    double accuracy,
+                    double magneticHeading,
+                    long timestamp
+                ) {
+                    mHeadingSum += heading;
+                }
+
+                @Override
+                public void onError(String error) {}
+            },
+            new OrientationListener() {
+                @Override
+                public void onOrientation(
+                    float azimuth,
+                    float pitch,
+                    float roll,
+                    float[] rotationMatrix,
+                    double accuracy,
+                    long timestamp
+                ) {
+                    mOrientations++;
+                }
+            }
+        );
+
+        long timestamp = feed(compass, 1, WARMUP_SAMPLES);
+        final long published = mOrientations;
+
+        final long before = allocatedBytes();
+        feed(compass, timestamp, MEASURED_SAMPLES);
+        final long allocated = allocatedBytes() - before;
+        compass.stopReplay();
+
+        assertTrue("No orientation was published", mOrientations > published);
+        assertTrue(
+            "Allocated " + allocated + " bytes over " + MEASURED_SAMPLES +
+            " gyro samples",
+            allocated < MAX_BYTES
+        );
+    }
+
+    // Gyro at 200 Hz with accelerometer and magnetometer at 50 Hz in between,
+    // returns the timestamp after the last sample
+    private long feed(
+        final Compass compass,
+        long timestamp,
+        final int gyroSamples
+    ) {
+        for (int i = 0; i < gyroSamples; i++) {
+            timestamp += GYRO_PERIOD_NS;
+            mGyro[2] = (i & 1023) < 512 ? 0.3f : -0.3f;
+            compass.replaySample(Sensor.TYPE_GYROSCOPE, timestamp, mGyro);
+            if ((i & 3) == 0) {
+                compass.replaySample(
+                    Sensor.TYPE_ACCELEROMETER,
+                    timestamp,
+                    mAcc
+                );
+                compass.replaySample(
+                    Sensor.TYPE_MAGNETIC_FIELD,
+                    timestamp,
+                    mMag
+                );
+            }
+        }
+        return timestamp;
+    }
+
+    private static long allocatedBytes() {
+        return (
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()
+        ).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
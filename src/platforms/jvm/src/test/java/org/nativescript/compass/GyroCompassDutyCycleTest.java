@@ -0,0 +1,139 @@
+package org.nativescript.compass;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.hardware.Sensor;
+import java.io.File;
+import org.junit.Test;
+
+// Heading error against the magnetometer duty cycle, replaying a device that
+// turns with a biased gyroscope. Continuous fusion lags by about the bias
+// times the filter time constant; duty cycling drifts by the bias over each
+// dead-reckoning interval, and the drift is gone right after a correction.
+public class GyroCompassDutyCycleTest {
+
+    private static final double TURN_DEG_PER_SEC = 10;
+    private static final float GYRO_BIAS = 0.01f; // rad/s, ~0.57 deg/s
+    private static final long BURST_MS = 500;
+    private static final long[] INTERVALS_MS = { 0, 1000, 3000, 6000 };
+    // Right after a correction, before the gyro drifts again
+    private static final long SETTLE_MS = 100;
+
+    private final FakeSensorManager mSensors = new FakeSensorManager(
+        Sensor.TYPE_ACCELEROMETER,
+        Sensor.TYPE_MAGNETIC_FIELD,
+        Sensor.TYPE_GYROSCOPE
+    );
+
+    @Test
+    public void headingErrorFollowsDutyCycle() throws Exception {
+        final File trace = SyntheticTrace.write(
+            60,
+            TURN_DEG_PER_SEC,
+            GYRO_BIAS
+        );
+        final double drift = Math.toDegrees(GYRO_BIAS); // deg/s
+
+        double previousMean = 0;
+        for (final long intervalMs : INTERVALS_MS) {
+            final ErrorStats stats = replay(trace, intervalMs);
+            System.out.println(
+                String.format(
+                    "duty %5d/%d ms: mean %.2f, max %.2f, after correction " +
+                    "%.2f degrees, %d corrections",
+                    intervalMs,
+                    BURST_MS,
+                    stats.getMean(),
+                    stats.mMax,
+                    stats.mMaxSettled,
+                    stats.mCorrections
+                )
+            );
+
+            assertTrue(stats.mCount > 0);
+            if (intervalMs == 0) {
+                assertEquals(0, stats.mCorrections);
+                assertTrue(stats.mMax < 1 + drift * 1.47);
+                continue;
+            }
+            // Never more than the drift of one dead-reckoning interval
+            assertTrue(
+                "Max error " + stats.mMax + " at " + intervalMs + " ms",
+                stats.mMax < 0.5 + drift * (intervalMs + BURST_MS) / 1000.0
+            );
+            assertTrue(stats.getMean() > previousMean);
+            previousMean = stats.getMean();
+            assertTrue(
+                stats.mCorrections >= 60000 / (intervalMs + BURST_MS) - 1
+            );
+            assertEquals(0, stats.mMaxSettled, 0.2);
+        }
+    }
+
+    private ErrorStats replay(final File trace, final long intervalMs)
+        throws Exception {
+        final GyroCompass compass = new GyroCompass(
+            mSensors.asContext(),
+            new AccMagCompass(mSensors.asContext())
+        );
+        compass.setMagDutyCycle(intervalMs, BURST_MS);
+        final ErrorStats stats = new ErrorStats(compass);
+        SensorTraceReplay.replay(trace, compass, stats);
+        return stats;
+    }
+
+    // Absolute heading error of every published reading, in degrees
+    private static final class ErrorStats implements CompassCallback {
+
+        private final GyroCompass mCompass;
+        double mSum = 0;
+        double mMax = 0;
+        double mMaxSettled = 0;
+        int mCount = 0;
+        int mCorrections = 0;
+        long mCorrectedAtNs = 0;
+
+        ErrorStats(final GyroCompass compass) {
+            mCompass = compass;
+        }
+
+        double getMean() {
+            return mSum / mCount;
+        }
+
+        @Override
+        public void onReading(
+            double heading,
+            double accuracy,
+            double magneticHeading,
+            long timestamp
+        ) {
+            double error =
+                heading -
+                SyntheticTrace.headingAt(TURN_DEG_PER_SEC, timestamp);
+            if (error > 180) error -= 360;
+            else if (error < -180) error += 360;
+            error = Math.abs(error);
+
+            mSum += error;
+            mMax = Math.max(mMax, error);
+            mCount++;
+
+            final int corrections = (int) mCompass.getDutyCycleStats()[7];
+            if (corrections != mCorrections) {
+                mCorrections = corrections;
+                mCorrectedAtNs = timestamp;
+            }
+            if (
+                mCorrections > 0 &&
+                timestamp - mCorrectedAtNs < SETTLE_MS * 1000000L
+            ) {
+                mMaxSettled = Math.max(mMaxSettled, error);
+            }
+        }
+
+        @Override
+        public void onError(String error) {}
+    }
+}
@@ -0,0 +1,84 @@
+package org.nativescript.compass;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.hardware.Sensor;
+import android.os.SystemClock;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+// A cached reading only answers one-shot requests for the source that
+// published it, and is delivered on the main looper like a fresh one.
+public class LastReadingCacheTest {
+
+    private final FakeSensorManager mSensors = new FakeSensorManager(
+        Sensor.TYPE_ACCELEROMETER,
+        Sensor.TYPE_MAGNETIC_FIELD,
+        Sensor.TYPE_GYROSCOPE
+    );
+
+    @Test
+    public void cachedReadingIsKeyedBySource() throws InterruptedException {
+        LastReadingCache.update(
+            "raw",
+            42,
+            3,
+            42,
+            SystemClock.elapsedRealtimeNanos()
+        );
+
+        final Reading cached = getCurrentReading("raw");
+        assertEquals(42, cached.mHeading, 0);
+        assertEquals("main", cached.mThread);
+
+        // Read from the sensors, the fake device faces magnetic north
+        final Reading fresh = getCurrentReading("software");
+        assertTrue(
+            "Heading " + fresh.mHeading,
+            fresh.mHeading < 1 || fresh.mHeading > 359
+        );
+        assertEquals("main", fresh.mThread);
+    }
+
+    private Reading getCurrentReading(final String source)
+        throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final Reading reading = new Reading();
+        CompassHelper.getCurrentReading(
+            mSensors.asContext(),
+            false,
+            "ui",
+            source,
+            500,
+            new CompassCallback() {
+                @Override
+                public void onReading(
+                    double heading,
+                    double accuracy,
+                    double magneticHeading,
+                    long timestamp
+                ) {
+                    reading.mHeading = heading;
+                    reading.mThread = Thread.currentThread().getName();
+                    done.countDown();
+                }
+
+                @Override
+                public void onError(String error) {
+                    reading.mThread = error;
+                    done.countDown();
+                }
+            }
+        );
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        return reading;
+    }
+
+    private static final class Reading {
+
+        volatile double mHeading = Double.NaN;
+        volatile String mThread = null;
+    }
+}
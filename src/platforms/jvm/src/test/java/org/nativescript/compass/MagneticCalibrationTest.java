@@ -0,0 +1,92 @@
+package org.nativescript.compass;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import org.junit.Test;
+
+// Samples of a 50 uT field swept over every direction, distorted by a known
+// hard-iron offset and per-axis soft-iron scale. The fit recovers both, and
+// the corrected field has a constant magnitude.
+public class MagneticCalibrationTest {
+
+    private static final double FIELD_UT = 50;
+    private static final float[] OFFSET = { 15, -8, 30 };
+    private static final float[] SCALE = { 1.2f, 0.9f, 1.0f };
+
+    @Test
+    public void fitsEllipsoid() {
+        final MagneticCalibration calibration = new MagneticCalibration();
+        final Random random = new Random(1);
+        final float[] raw = new float[3];
+        final float[] corrected = new float[3];
+        boolean fitted = false;
+        for (int i = 0; i < 3000; i++) {
+            sample(random, raw);
+            fitted |= calibration.add(raw);
+            calibration.correct(raw, corrected);
+        }
+        assertTrue(fitted);
+
+        final float[] fit = calibration.getFit();
+        assertNotNull(fit);
+        for (int i = 0; i < 3; i++) {
+            assertEquals("Offset " + i, OFFSET[i], fit[i], 0.1);
+        }
+        // Semi-axes FIELD_UT * SCALE, mapped onto a sphere of their mean
+        final double radius =
+            FIELD_UT * Math.cbrt(SCALE[0] * SCALE[1] * SCALE[2]);
+        assertEquals(radius, fit[6], 0.1);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(
+                "Scale " + i,
+                radius / (FIELD_UT * SCALE[i]),
+                fit[3 + i],
+                0.005
+            );
+        }
+
+        // An exact ellipsoid leaves no residual
+        assertEquals(0, calibration.getResidual(), 0.05);
+        assertEquals(1, calibration.getAccuracy(), 0);
+        for (int i = 0; i < 100; i++) {
+            sample(random, raw);
+            assertTrue(calibration.correct(raw, corrected));
+            final double magnitude = Math.sqrt(
+                corrected[0] * corrected[0] +
+                corrected[1] * corrected[1] +
+                corrected[2] * corrected[2]
+            );
+            assertEquals(radius, magnitude, 0.1);
+        }
+    }
+
+    @Test
+    public void noFitUntilEveryAxisIsSwept() {
+        // Turning flat only sweeps x and y
+        final MagneticCalibration calibration = new MagneticCalibration();
+        final float[] raw = new float[3];
+        for (int i = 0; i < 3000; i++) {
+            final double angle = i * 0.01;
+            raw[0] = (float) (OFFSET[0] + 20 * SCALE[0] * Math.cos(angle));
+            raw[1] = (float) (OFFSET[1] + 20 * SCALE[1] * Math.sin(angle));
+            raw[2] = (float) (OFFSET[2] - 46 * SCALE[2]);
+            assertFalse(calibration.add(raw));
+        }
+        assertEquals(null, calibration.getFit());
+    }
+
+    // A uniformly random field direction through the distortion
+    private static void sample(final Random random, final float[] out) {
+        final double x = random.nextGaussian();
+        final double y = random.nextGaussian();
+        final double z = random.nextGaussian();
+        final double norm = Math.sqrt(x * x + y * y + z * z);
+        out[0] = (float) (OFFSET[0] + FIELD_UT * SCALE[0] * x / norm);
+        out[1] = (float) (OFFSET[1] + FIELD_UT * SCALE[1] * y / norm);
+        out[2] = (float) (OFFSET[2] + FIELD_UT * SCALE[2] * z / norm);
+    }
+}
@@ -0,0 +1,143 @@
+package org.nativescript.compass;
+
+import static org.junit.Assert.assertEquals;
+
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import org.junit.Test;
+
+// Compasses sample as fast as they need and call back once per output
+// interval, which follows updateThrottle and the filter chain, while an
+// OrientationListener gets every orientation.
+public class OutputIntervalTest {
+
+    private final FakeSensorManager mSensors = new FakeSensorManager(
+        Sensor.TYPE_ACCELEROMETER,
+        Sensor.TYPE_MAGNETIC_FIELD,
+        Sensor.TYPE_GYROSCOPE
+    );
+    private int mOutputs = 0;
+    private final CompassCallback mCounter = new CompassCallback() {
+        @Override
+        public void onReading(
+            double heading,
+            double accuracy,
+            double magneticHeading,
+            long timestamp
+        ) {
+            mOutputs++;
+        }
+
+        @Override
+        public void onError(String error) {}
+    };
+
+    @Test
+    public void accMagPublishesOncePerInterval() throws Exception {
+        // Magnetometer at 50 Hz, 10 s at a 100 ms interval
+        final AccMagCompass compass = new AccMagCompass(mSensors.asContext());
+        compass.setOutputInterval(100000);
+        SensorTraceReplay.replay(
+            SyntheticTrace.write(10, 30, 0),
+            compass,
+            mCounter
+        );
+        // The first sample, then one per interval
+        assertEquals(101, mOutputs);
+    }
+
+    @Test
+    public void listenerGetsEveryOrientation() throws Exception {
+        final AccMagCompass compass = new AccMagCompass(mSensors.asContext());
+        compass.setOutputInterval(100000);
+        final int[] orientations = { 0 };
+        SensorTraceReplay.replay(
+            SyntheticTrace.write(10, 30, 0),
+            compass,
+            mCounter,
+            new OrientationListener() {
+                @Override
+                public void onOrientation(
+                    float azimuth,
+                    float pitch,
+                    float roll,
+                    float[] rotationMatrix,
+                    double accuracy,
+                    long timestamp
+                ) {
+                    orientations[0]++;
+                }
+            }
+        );
+        // Every magnetometer sample, only the callback is decimated
+        assertEquals(500, orientations[0]);
+        assertEquals(101, mOutputs);
+    }
+
+    @Test
+    public void rotationVectorPublishesOncePerInterval() {
+        // 200 Hz for one second at a 100 ms interval
+        final RotationVectorCompass compass = new RotationVectorCompass(
+            mSensors.asContext(),
+            Sensor.TYPE_ROTATION_VECTOR
+        );
+        compass.setOutputInterval(100000);
+        compass.startReplay(mCounter, null);
+        for (int i = 0; i < 200; i++) {
+            compass.replaySample(
+                Sensor.TYPE_ROTATION_VECTOR,
+                SyntheticTrace.START_NS + i * SyntheticTrace.GYRO_PERIOD_NS,
+                new float[] { 0, 0, 0, 1 }
+            );
+        }
+        compass.stopReplay();
+        // The first sample, then one per interval
+        assertEquals(11, mOutputs);
+    }
+
+    @Test
+    public void gyroSamplesAtLeastAtGameRate() {
+        final GyroCompass compass = new GyroCompass(mSensors.asContext());
+        compass.setSensorDelay(SensorManager.SENSOR_DELAY_NORMAL);
+        assertEquals(20000, compass.getSensorRateStats()[0]);
+        compass.setSamplingPeriodUs(50000);
+        assertEquals(20000, compass.getSensorRateStats()[0]);
+        compass.setSamplingPeriodUs(5000);
+        assertEquals(5000, compass.getSensorRateStats()[0]);
+    }
+
+    @Test
+    public void samplingPeriodIsKeptApartFromTheSensorDelay() {
+        final AccMagCompass compass = new AccMagCompass(mSensors.asContext());
+        compass.setSensorDelay(SensorManager.SENSOR_DELAY_GAME);
+        compass.setSamplingPeriodUs(3);
+        // Would be SENSOR_DELAY_NORMAL if it shared the constant's int
+        assertEquals(0, compass.getSensorRateStats()[0]);
+        compass.setSamplingPeriodUs(-1);
+        assertEquals(20000, compass.getSensorRateStats()[0]);
+    }
+
+    @Test
+    public void samplesPerUpdateFollowsTheFilterStage() {
+        assertEquals(
+            4,
+            CompassHelper.samplesPerUpdate(new EmaHeadingFilter(0.8))
+        );
+        assertEquals(
+            1,
+            CompassHelper.samplesPerUpdate(new EmaHeadingFilter(0))
+        );
+        assertEquals(
+            1,
+            CompassHelper.samplesPerUpdate(new EmaHeadingFilter(1))
+        );
+        assertEquals(
+            3,
+            CompassHelper.samplesPerUpdate(new MedianHeadingFilter(5))
+        );
+        assertEquals(
+            4,
+            CompassHelper.samplesPerUpdate(new OutlierHeadingFilter(45, 3))
+        );
+    }
+}
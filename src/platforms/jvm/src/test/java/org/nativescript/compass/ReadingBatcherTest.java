@@ -0,0 +1,106 @@
+package org.nativescript.compass;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.os.Handler;
+import android.os.Looper;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+// Batches are filled on the sensor thread and delivered on the main looper.
+// A slow callback must see its own rows only, never the next batch being
+// written into the same array.
+public class ReadingBatcherTest {
+
+    private static final int BATCH_SIZE = 8;
+    private static final int READINGS = 4000;
+
+    @Test
+    public void slowMainLooperSeesIntactBatches() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<String> failure = new AtomicReference<>();
+        final long[] next = new long[1];
+        final ReadingBatcher batcher = new ReadingBatcher(
+            new CompassBatchCallback() {
+                @Override
+                public void onReadings(double[] readings, int count) {
+                    if (!"main".equals(Thread.currentThread().getName())) {
+                        failure.compareAndSet(null, "Delivered off main");
+                    }
+                    // Give the sensor thread time to refill
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    for (int i = 0; i < count; i++) {
+                        final int offset = i * CompassBatchCallback.STRIDE;
+                        final long expected = next[0]++;
+                        for (int j = 0; j < CompassBatchCallback.STRIDE; j++) {
+                            if (readings[offset + j] != expected) {
+                                failure.compareAndSet(
+                                    null,
+                                    "Row " + expected + " read " +
+                                    readings[offset + j]
+                                );
+                            }
+                        }
+                    }
+                    if (next[0] == READINGS) done.countDown();
+                }
+
+                @Override
+                public void onError(String error) {}
+            },
+            SensorThread.getHandler(),
+            new Handler(Looper.getMainLooper()),
+            new PipelineMetrics(),
+            BATCH_SIZE,
+            0
+        );
+
+        SensorThread.getHandler().post(
+            new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < READINGS; i++) {
+                        batcher.add(i, i, i, i, i, i);
+                    }
+                }
+            }
+        );
+
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertEquals(null, failure.get());
+        assertEquals(READINGS, next[0]);
+    }
+
+    @Test
+    public void errorsAreDeliveredOnMainLooper() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<String> thread = new AtomicReference<>();
+        final ReadingBatcher batcher = new ReadingBatcher(
+            new CompassBatchCallback() {
+                @Override
+                public void onReadings(double[] readings, int count) {}
+
+                @Override
+                public void onError(String error) {
+                    thread.set(Thread.currentThread().getName());
+                    done.countDown();
+                }
+            },
+            SensorThread.getHandler(),
+            new Handler(Looper.getMainLooper()),
+            new PipelineMetrics(),
+            BATCH_SIZE,
+            0
+        );
+        batcher.onError("error");
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals("main", thread.get());
+    }
+}
@@ -0,0 +1,92 @@
+package org.nativescript.compass;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Test;
+
+// One writer publishes tuples whose fields are all derived from a counter
+// while several readers check every copy they get. A torn read shows up as
+// fields of two different writes.
+public class ReadingSnapshotTest {
+
+    private static final int READERS = 3;
+    private static final long WRITES = 20000000L;
+
+    @Test
+    public void readersNeverSeeTornTuples() throws Exception {
+        final ReadingSnapshot snapshot = new ReadingSnapshot();
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicReference<String> failure = new AtomicReference<>();
+        final AtomicLong reads = new AtomicLong();
+        final CountDownLatch started = new CountDownLatch(READERS);
+
+        final Thread[] readers = new Thread[READERS];
+        for (int r = 0; r < READERS; r++) {
+            readers[r] = new Thread("SnapshotReader" + r) {
+                @Override
+                public void run() {
+                    final double[] out = new double[3];
+                    long last = 0;
+                    long count = 0;
+                    started.countDown();
+                    while (writing.get() && failure.get() == null) {
+                        final long timestamp = snapshot.read(out);
+                        count++;
+                        if (Double.isNaN(out[0])) continue; // Nothing yet
+                        if (
+                            out[0] != heading(timestamp) ||
+                            out[1] != accuracy(timestamp) ||
+                            out[2] != magneticHeading(timestamp)
+                        ) {
+                            failure.compareAndSet(
+                                null,
+                                "Torn read at " + timestamp + ": " +
+                                out[0] + ", " + out[1] + ", " + out[2]
+                            );
+                        } else if (timestamp < last) {
+                            failure.compareAndSet(
+                                null,
+                                "Went back from " + last + " to " + timestamp
+                            );
+                        }
+                        last = timestamp;
+                    }
+                    reads.addAndGet(count);
+                }
+            };
+            readers[r].start();
+        }
+
+        started.await();
+        for (long i = 1; i <= WRITES && failure.get() == null; i++) {
+            snapshot.write(heading(i), accuracy(i), magneticHeading(i), i);
+        }
+        writing.set(false);
+        for (final Thread reader : readers) reader.join();
+
+        assertEquals(null, failure.get());
+        assertTrue("Readers never ran", reads.get() > 0);
+
+        final double[] out = new double[3];
+        assertEquals(WRITES, snapshot.read(out));
+        assertEquals(heading(WRITES), out[0], 0);
+    }
+
+    // accuracy and magneticHeading are unique per write, heading wraps
+    private static double heading(final long i) {
+        return i % 3600 / 10.0;
+    }
+
+    private static double accuracy(final long i) {
+        return i * 0.5;
+    }
+
+    private static double magneticHeading(final long i) {
+        return -i;
+    }
+}
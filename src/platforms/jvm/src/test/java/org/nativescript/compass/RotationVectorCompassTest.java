@@ -0,0 +1,103 @@
+package org.nativescript.compass;
+
+import static org.junit.Assert.assertEquals;
+
+import android.hardware.Sensor;
+import org.junit.Test;
+
+public class RotationVectorCompassTest {
+
+    // About 100 degrees around the vertical axis, slightly tilted
+    private static final float[] QUATERNION = unitQuaternion(0.05f, 0.02f, 0.76f);
+
+    @Test
+    public void threeValueVectorMatchesFullVector() {
+        final double full = heading(
+            new float[] {
+                QUATERNION[0],
+                QUATERNION[1],
+                QUATERNION[2],
+                QUATERNION[3],
+                -1,
+            }
+        );
+        final double short3 = heading(
+            new float[] { QUATERNION[0], QUATERNION[1], QUATERNION[2] }
+        );
+        final double short4 = heading(QUATERNION.clone());
+
+        assertEquals(full, short3, 1e-3);
+        assertEquals(full, short4, 1e-3);
+    }
+
+    @Test
+    public void accuracyOnlyFromFifthValue() {
+        final double[] accuracy = new double[1];
+        final RotationVectorCompass compass = newCompass();
+        compass.startReplay(
+            new CompassCallback() {
+                @Override
+                public void onReading(
+                    double heading,
+                    double readingAccuracy,
+                    double magneticHeading,
+                    long timestamp
+                ) {
+                    accuracy[0] = readingAccuracy;
+                }
+
+                @Override
+                public void onError(String error) {}
+            },
+            null
+        );
+        compass.onReplaySample(
+            Sensor.TYPE_ROTATION_VECTOR,
+            1,
+            new float[] { 0, 0, 0, 1, (float) Math.toRadians(7) }
+        );
+        assertEquals(7, accuracy[0], 1e-4);
+        // Three and four values carry no estimate, the last one stays
+        compass.onReplaySample(Sensor.TYPE_ROTATION_VECTOR, 2, new float[3]);
+        assertEquals(7, accuracy[0], 1e-4);
+        compass.stopReplay();
+    }
+
+    private static double heading(final float[] values) {
+        final double[] heading = new double[1];
+        final RotationVectorCompass compass = newCompass();
+        compass.startReplay(
+            new CompassCallback() {
+                @Override
+                public void onReading(
+                    double readingHeading,
+                    double accuracy,
+                    double magneticHeading,
+                    long timestamp
+                ) {
+                    heading[0] = readingHeading;
+                }
+
+                @Override
+                public void onError(String error) {}
+            },
+            null
+        );
+        compass.onReplaySample(Sensor.TYPE_ROTATION_VECTOR, 1, values);
+        compass.stopReplay();
+        return heading[0];
+    }
+
+    private static RotationVectorCompass newCompass() {
+        return new RotationVectorCompass(
+            new FakeSensorManager(Sensor.TYPE_ROTATION_VECTOR).asContext(),
+            Sensor.TYPE_ROTATION_VECTOR
+        );
+    }
+
+    // Completes x, y, z to a unit quaternion with positive w
+    private static float[] unitQuaternion(float x, float y, float z) {
+        final float w = (float) Math.sqrt(1 - x * x - y * y - z * z);
+        return new float[] { x, y, z, w };
+    }
+}
@@ -0,0 +1,125 @@
+package org.nativescript.compass;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.hardware.Sensor;
+import android.hardware.SensorManager;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+
+// Subscribers joining and leaving a shared compass reconfigure it in place:
+// the others keep their stream, and the sensors are registered again only
+// when the combined sampling delay or batching latency changes.
+public class SensorHubTest {
+
+    private static final String KEY = "test:accmag";
+    // Readings are due every 20 ms, the fake sensors deliver every 5 ms
+    private static final long MAX_GAP_MS = 100;
+
+    private final FakeSensorManager mSensors = new FakeSensorManager(
+        Sensor.TYPE_ACCELEROMETER,
+        Sensor.TYPE_MAGNETIC_FIELD
+    );
+
+    @Test
+    public void subscribersJoinAndLeaveWithoutInterruptingOthers()
+        throws InterruptedException {
+        final SensorHub hub = SensorHub.getInstance(mSensors.asContext());
+        final Timestamps first = new Timestamps();
+        final SensorHub.Subscription subscription = hub.subscribe(
+            KEY,
+            mFactory,
+            request(SensorManager.SENSOR_DELAY_UI, 20000),
+            first
+        );
+        Thread.sleep(200);
+        // Accelerometer and magnetometer
+        assertEquals(2, mSensors.getRegisterCount());
+
+        // Same rate, shorter output interval: nothing is registered again
+        final SensorHub.Subscription second = hub.subscribe(
+            KEY,
+            mFactory,
+            request(SensorManager.SENSOR_DELAY_UI, 10000),
+            new Timestamps()
+        );
+        Thread.sleep(200);
+        second.close();
+        Thread.sleep(200);
+        assertEquals(2, mSensors.getRegisterCount());
+
+        // A faster rate while the third subscriber is there
+        final Timestamps third = new Timestamps();
+        final SensorHub.Subscription fast = hub.subscribe(
+            KEY,
+            mFactory,
+            request(SensorManager.SENSOR_DELAY_GAME, 20000),
+            third
+        );
+        Thread.sleep(200);
+        assertEquals(4, mSensors.getRegisterCount());
+        fast.close();
+        Thread.sleep(200);
+        assertEquals(6, mSensors.getRegisterCount());
+        assertTrue(third.size() > 0);
+
+        // Changing a subscriber's own request works the same way
+        subscription.update(request(SensorManager.SENSOR_DELAY_UI, 40000));
+        Thread.sleep(200);
+        assertEquals(6, mSensors.getRegisterCount());
+        subscription.close();
+        assertEquals(0, mSensors.getListenerCount());
+
+        first.assertContinuous();
+    }
+
+    private final SensorHub.CompassFactory mFactory =
+        new SensorHub.CompassFactory() {
+            @Override
+            public Compass create() {
+                return new AccMagCompass(mSensors.asContext());
+            }
+        };
+
+    private static SensorHub.Request request(
+        final int sensorDelay,
+        final long outputIntervalUs
+    ) {
+        return new SensorHub.Request()
+            .setSensorDelay(sensorDelay)
+            .setOutputInterval(outputIntervalUs);
+    }
+
+    // Wall-clock arrival of every reading
+    private static final class Timestamps implements CompassCallback {
+
+        private final List<Long> mArrivals = new ArrayList<>();
+
+        synchronized int size() {
+            return mArrivals.size();
+        }
+
+        synchronized void assertContinuous() {
+            assertTrue(mArrivals.size() > 10);
+            for (int i = 1; i < mArrivals.size(); i++) {
+                final long gap = mArrivals.get(i) - mArrivals.get(i - 1);
+                assertTrue("Gap of " + gap + " ms", gap < MAX_GAP_MS);
+            }
+        }
+
+        @Override
+        public synchronized void onReading(
+            double heading,
+            double accuracy,
+            double magneticHeading,
+            long timestamp
+        ) {
+            mArrivals.add(System.currentTimeMillis());
+        }
+
+        @Override
+        public void onError(String error) {}
+    }
+}
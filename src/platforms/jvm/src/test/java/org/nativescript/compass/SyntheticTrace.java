@@ -0,0 +1,134 @@
+package org.nativescript.compass;
+
+import android.hardware.Sensor;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+// Writes a SensorTraceRecorder trace of a device turning clockwise about the
+// vertical at a constant rate from magnetic north, lying flat or held at a
+// constant pitch: gyroscope at 200 Hz, accelerometer and magnetometer at
+// 50 Hz. gyroBias is added to the gyro z axis in rad/s.
+final class SyntheticTrace {
+
+    static final long GYRO_PERIOD_NS = 5000000L;
+    static final long START_NS = 1000000000L;
+
+    private SyntheticTrace() {}
+
+    static File write(
+        final double seconds,
+        final double degPerSec,
+        final float gyroBias
+    ) throws IOException {
+        return write(seconds, degPerSec, gyroBias, 0);
+    }
+
+    static File write(
+        final double seconds,
+        final double degPerSec,
+        final float gyroBias,
+        final double pitchDeg
+    ) throws IOException {
+        final File file = File.createTempFile("compass", ".trace");
+        file.deleteOnExit();
+        final DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(file))
+        );
+        try {
+            out.writeInt(SensorTraceRecorder.MAGIC);
+            out.writeShort(SensorTraceRecorder.VERSION);
+            final long samples = (long) (seconds * 1e9 / GYRO_PERIOD_NS);
+            final float rate = (float) Math.toRadians(degPerSec);
+            final float[] orientation = {
+                0,
+                (float) Math.toRadians(pitchDeg),
+                0,
+            };
+            final float[] deviceToWorld = new float[9];
+            for (long i = 0; i < samples; i++) {
+                final long timestamp = START_NS + i * GYRO_PERIOD_NS;
+                orientation[0] = (float) Math.toRadians(
+                    degPerSec * (timestamp - START_NS) / 1e9
+                );
+                OrientationMath.rotationMatrixFromOrientation(
+                    orientation,
+                    deviceToWorld
+                );
+                // Turning clockwise seen from above is about world -z
+                final float[] gyro = toDevice(deviceToWorld, 0, 0, -rate);
+                sample(
+                    out,
+                    Sensor.TYPE_GYROSCOPE,
+                    timestamp,
+                    gyro[0],
+                    gyro[1],
+                    gyro[2] + gyroBias
+                );
+                if (i % 4 != 0) continue;
+                final float[] acc = toDevice(deviceToWorld, 0, 0, 9.81f);
+                sample(
+                    out,
+                    Sensor.TYPE_ACCELEROMETER,
+                    timestamp,
+                    acc[0],
+                    acc[1],
+                    acc[2]
+                );
+                // 20 uT north, 40 uT down
+                final float[] mag = toDevice(deviceToWorld, 0, 20, -40);
+                sample(
+                    out,
+                    Sensor.TYPE_MAGNETIC_FIELD,
+                    timestamp,
+                    mag[0],
+                    mag[1],
+                    mag[2]
+                );
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    // The true heading at sensor time timestampNs, degrees in [0, 360)
+    static double headingAt(final double degPerSec, final long timestampNs) {
+        final double heading =
+            (degPerSec * (timestampNs - START_NS) / 1e9) % 360;
+        return heading < 0 ? heading + 360 : heading;
+    }
+
+    // A world vector in device coordinates, R transposed times it
+    private static float[] toDevice(
+        final float[] R,
+        final float x,
+        final float y,
+        final float z
+    ) {
+        return new float[] {
+            R[0] * x + R[3] * y + R[6] * z,
+            R[1] * x + R[4] * y + R[7] * z,
+            R[2] * x + R[5] * y + R[8] * z,
+        };
+    }
+
+    private static void sample(
+        final DataOutputStream out,
+        final int type,
+        final long timestamp,
+        final float x,
+        final float y,
+        final float z
+    ) throws IOException {
+        out.writeByte(SensorTraceRecorder.RECORD_SAMPLE);
+        out.writeInt(type);
+        out.writeLong(timestamp);
+        out.writeByte(3);
+        out.writeFloat(x);
+        out.writeFloat(y);
+        out.writeFloat(z);
+    }
+}
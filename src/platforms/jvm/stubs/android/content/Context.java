@@ -0,0 +1,18 @@
+package android.content;
+
+// JVM stand-in, tests subclass it to hand out their own SensorManager
+public abstract class Context {
+
+    public static final String SENSOR_SERVICE = "sensor";
+    public static final int MODE_PRIVATE = 0;
+
+    public abstract Object getSystemService(String name);
+
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    public SharedPreferences getSharedPreferences(String name, int mode) {
+        return SharedPreferences.InMemory.get(name);
+    }
+}
@@ -0,0 +1,73 @@
+package android.content;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// JVM stand-in with the string subset the plugin uses
+public interface SharedPreferences {
+    String getString(String key, String defaultValue);
+
+    Editor edit();
+
+    interface Editor {
+        Editor putString(String key, String value);
+
+        Editor remove(String key);
+
+        void apply();
+    }
+
+    // Process-wide preferences kept in memory, one map per name
+    final class InMemory implements SharedPreferences {
+
+        private static final Map<String, InMemory> sFiles = new HashMap<>();
+
+        private final Map<String, String> mValues = new HashMap<>();
+
+        static synchronized InMemory get(String name) {
+            InMemory preferences = sFiles.get(name);
+            if (preferences == null) {
+                preferences = new InMemory();
+                sFiles.put(name, preferences);
+            }
+            return preferences;
+        }
+
+        @Override
+        public synchronized String getString(String key, String defaultValue) {
+            final String value = mValues.get(key);
+            return value != null ? value : defaultValue;
+        }
+
+        @Override
+        public Editor edit() {
+            final Map<String, String> puts = new HashMap<>();
+            return new Editor() {
+                @Override
+                public Editor putString(String key, String value) {
+                    puts.put(key, value);
+                    return this;
+                }
+
+                @Override
+                public Editor remove(String key) {
+                    puts.put(key, null);
+                    return this;
+                }
+
+                @Override
+                public void apply() {
+                    synchronized (InMemory.this) {
+                        for (Map.Entry<String, String> put : puts.entrySet()) {
+                            if (put.getValue() == null) {
+                                mValues.remove(put.getKey());
+                            } else {
+                                mValues.put(put.getKey(), put.getValue());
+                            }
+                        }
+                    }
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package android.hardware;
+
+// JVM stand-in doing the same work as the framework class: geodetic to
+// geocentric conversion, a fresh Legendre table per instance and the
+// spherical harmonic sum up to degree 12. Only the degree 1 and 2 WMM2020
+// coefficients are filled in and secular variation is ignored, so the cost
+// is representative while declinations are only approximate.
+public class GeomagneticField {
+
+    private static final float EARTH_SEMI_MAJOR_AXIS_KM = 6378.137f;
+    private static final float EARTH_SEMI_MINOR_AXIS_KM = 6356.7524f;
+    private static final float EARTH_REFERENCE_RADIUS_KM = 6371.2f;
+    private static final int MAX_N = 13;
+
+    private static final float[][] G_COEFF = new float[MAX_N][MAX_N];
+    private static final float[][] H_COEFF = new float[MAX_N][MAX_N];
+    private static final float[][] SCHMIDT_QUASI_NORM_FACTORS =
+        computeSchmidtQuasiNormFactors(MAX_N);
+
+    static {
+        G_COEFF[1][0] = -29404.5f;
+        G_COEFF[1][1] = -1450.7f;
+        H_COEFF[1][1] = 4652.9f;
+        G_COEFF[2][0] = -2500.0f;
+        G_COEFF[2][1] = 2982.0f;
+        H_COEFF[2][1] = -2991.6f;
+        G_COEFF[2][2] = 1676.8f;
+        H_COEFF[2][2] = -734.8f;
+    }
+
+    private float mX;
+    private float mY;
+    private float mZ;
+    private float mGcLatitudeRad;
+    private float mGcLongitudeRad;
+    private float mGcRadiusKm;
+
+    public GeomagneticField(
+        float gdLatitudeDeg,
+        float gdLongitudeDeg,
+        float altitudeMeters,
+        long timeMillis
+    ) {
+        gdLatitudeDeg = Math.min(
+            89.99999f,
+            Math.max(-89.99999f, gdLatitudeDeg)
+        );
+        computeGeocentricCoordinates(
+            gdLatitudeDeg,
+            gdLongitudeDeg,
+            altitudeMeters
+        );
+
+        final LegendreTable legendre = new LegendreTable(
+            MAX_N - 1,
+            (float) (Math.PI / 2.0 - mGcLatitudeRad)
+        );
+
+        final float[] relativeRadiusPower = new float[MAX_N + 2];
+        relativeRadiusPower[0] = 1.0f;
+        relativeRadiusPower[1] = EARTH_REFERENCE_RADIUS_KM / mGcRadiusKm;
+        for (int i = 2; i < relativeRadiusPower.length; ++i) {
+            relativeRadiusPower[i] =
+                relativeRadiusPower[i - 1] * relativeRadiusPower[1];
+        }
+
+        final float[] sinMLon = new float[MAX_N];
+        final float[] cosMLon = new float[MAX_N];
+        sinMLon[0] = 0.0f;
+        cosMLon[0] = 1.0f;
+        sinMLon[1] = (float) Math.sin(mGcLongitudeRad);
+        cosMLon[1] = (float) Math.cos(mGcLongitudeRad);
+        for (int m = 2; m < MAX_N; ++m) {
+            final int x = m >> 1;
+            sinMLon[m] =
+                sinMLon[m - x] * cosMLon[x] + cosMLon[m - x] * sinMLon[x];
+            cosMLon[m] =
+                cosMLon[m - x] * cosMLon[x] - sinMLon[m - x] * sinMLon[x];
+        }
+
+        final float inverseCosLatitude =
+            1.0f / (float) Math.cos(mGcLatitudeRad);
+
+        float gcX = 0.0f;
+        float gcY = 0.0f;
+        float gcZ = 0.0f;
+        for (int n = 1; n < MAX_N; n++) {
+            for (int m = 0; m <= n; m++) {
+                final float g = G_COEFF[n][m];
+                final float h = H_COEFF[n][m];
+                gcX +=
+                    relativeRadiusPower[n + 2] *
+                    (g * cosMLon[m] + h * sinMLon[m]) *
+                    legendre.mPDeriv[n][m] *
+                    SCHMIDT_QUASI_NORM_FACTORS[n][m];
+                gcY +=
+                    relativeRadiusPower[n + 2] *
+                    m *
+                    (g * sinMLon[m] - h * cosMLon[m]) *
+                    legendre.mP[n][m] *
+                    SCHMIDT_QUASI_NORM_FACTORS[n][m] *
+                    inverseCosLatitude;
+                gcZ -=
+                    (n + 1) *
+                    relativeRadiusPower[n + 2] *
+                    (g * cosMLon[m] + h * sinMLon[m]) *
+                    legendre.mP[n][m] *
+                    SCHMIDT_QUASI_NORM_FACTORS[n][m];
+            }
+        }
+
+        final double latDiffRad =
+            Math.toRadians(gdLatitudeDeg) - mGcLatitudeRad;
+        mX = (float) (gcX * Math.cos(latDiffRad) + gcZ * Math.sin(latDiffRad));
+        mY = gcY;
+        mZ = (float) (-gcX * Math.sin(latDiffRad) + gcZ * Math.cos(latDiffRad));
+    }
+
+    public float getX() {
+        return mX;
+    }
+
+    public float getY() {
+        return mY;
+    }
+
+    public float getZ() {
+        return mZ;
+    }
+
+    public float getDeclination() {
+        return (float) Math.toDegrees(Math.atan2(mY, mX));
+    }
+
+    public float getInclination() {
+        return (float) Math.toDegrees(
+            Math.atan2(mZ, Math.sqrt(mX * mX + mY * mY))
+        );
+    }
+
+    private void computeGeocentricCoordinates(
+        float gdLatitudeDeg,
+        float gdLongitudeDeg,
+        float altitudeMeters
+    ) {
+        final float altitudeKm = altitudeMeters / 1000.0f;
+        final float a2 = EARTH_SEMI_MAJOR_AXIS_KM * EARTH_SEMI_MAJOR_AXIS_KM;
+        final float b2 = EARTH_SEMI_MINOR_AXIS_KM * EARTH_SEMI_MINOR_AXIS_KM;
+        final double gdLatRad = Math.toRadians(gdLatitudeDeg);
+        final float clat = (float) Math.cos(gdLatRad);
+        final float slat = (float) Math.sin(gdLatRad);
+        final float tlat = slat / clat;
+        final float latRad = (float) Math.sqrt(
+            a2 * clat * clat + b2 * slat * slat
+        );
+
+        mGcLatitudeRad = (float) Math.atan(
+            tlat * (latRad * altitudeKm + b2) / (latRad * altitudeKm + a2)
+        );
+        mGcLongitudeRad = (float) Math.toRadians(gdLongitudeDeg);
+        final float radSq =
+            altitudeKm * altitudeKm +
+            2 * altitudeKm * latRad +
+            (a2 * a2 * clat * clat + b2 * b2 * slat * slat) /
+            (a2 * clat * clat + b2 * slat * slat);
+        mGcRadiusKm = (float) Math.sqrt(radSq);
+    }
+
+    private static float[][] computeSchmidtQuasiNormFactors(int maxN) {
+        final float[][] schmidtQuasiNorm = new float[maxN + 1][];
+        schmidtQuasiNorm[0] = new float[] { 1.0f };
+        for (int n = 1; n <= maxN; n++) {
+            schmidtQuasiNorm[n] = new float[n + 1];
+            schmidtQuasiNorm[n][0] =
+                schmidtQuasiNorm[n - 1][0] * (2 * n - 1) / (float) n;
+            for (int m = 1; m <= n; m++) {
+                schmidtQuasiNorm[n][m] =
+                    schmidtQuasiNorm[n][m - 1] *
+                    (float) Math.sqrt(
+                        (n - m + 1) * (m == 1 ? 2 : 1) / (float) (n + m)
+                    );
+            }
+        }
+        return schmidtQuasiNorm;
+    }
+
+    private static class LegendreTable {
+
+        final float[][] mP;
+        final float[][] mPDeriv;
+
+        LegendreTable(int maxN, float thetaRad) {
+            final float cos = (float) Math.cos(thetaRad);
+            final float sin = (float) Math.sin(thetaRad);
+
+            mP = new float[maxN + 1][];
+            mPDeriv = new float[maxN + 1][];
+            mP[0] = new float[] { 1.0f };
+            mPDeriv[0] = new float[] { 0.0f };
+            for (int n = 1; n <= maxN; n++) {
+                mP[n] = new float[n + 1];
+                mPDeriv[n] = new float[n + 1];
+                for (int m = 0; m <= n; m++) {
+                    if (n == m) {
+                        mP[n][m] = sin * mP[n - 1][m - 1];
+                        mPDeriv[n][m] =
+                            cos * mP[n - 1][m - 1] +
+                            sin * mPDeriv[n - 1][m - 1];
+                    } else if (n == 1 || m == n - 1) {
+                        mP[n][m] = cos * mP[n - 1][m];
+                        mPDeriv[n][m] =
+                            -sin * mP[n - 1][m] + cos * mPDeriv[n - 1][m];
+                    } else {
+                        final float k =
+                            ((n - 1) * (n - 1) - m * m) /
+                            (float) ((2 * n - 1) * (2 * n - 3));
+                        mP[n][m] = cos * mP[n - 1][m] - k * mP[n - 2][m];
+                        mPDeriv[n][m] =
+                            -sin * mP[n - 1][m] +
+                            cos * mPDeriv[n - 1][m] -
+                            k * mPDeriv[n - 2][m];
+                    }
+                }
+            }
+        }
+    }
+}
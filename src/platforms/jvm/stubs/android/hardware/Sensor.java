@@ -0,0 +1,33 @@
+package android.hardware;
+
+// JVM stand-in. Unlike the framework class it can be constructed, so tests
+// can hand out sensors of any type.
+public class Sensor {
+
+    public static final int TYPE_ACCELEROMETER = 1;
+    public static final int TYPE_MAGNETIC_FIELD = 2;
+    public static final int TYPE_GYROSCOPE = 4;
+    public static final int TYPE_ROTATION_VECTOR = 11;
+    public static final int TYPE_MAGNETIC_FIELD_UNCALIBRATED = 14;
+    public static final int TYPE_GAME_ROTATION_VECTOR = 15;
+    public static final int TYPE_GYROSCOPE_UNCALIBRATED = 16;
+    public static final int TYPE_GEOMAGNETIC_ROTATION_VECTOR = 20;
+
+    private final int mType;
+
+    public Sensor(int type) {
+        mType = type;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public boolean isDirectChannelTypeSupported(int sharedMemType) {
+        return false;
+    }
+
+    public int getHighestDirectReportRateLevel() {
+        return SensorDirectChannel.RATE_STOP;
+    }
+}
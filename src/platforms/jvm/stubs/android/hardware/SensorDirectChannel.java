@@ -0,0 +1,28 @@
+package android.hardware;
+
+import java.nio.channels.Channel;
+
+// JVM stand-in, SensorManager.createDirectChannel never returns one
+public final class SensorDirectChannel implements Channel {
+
+    public static final int TYPE_MEMORY_FILE = 1;
+    public static final int TYPE_HARDWARE_BUFFER = 2;
+    public static final int RATE_STOP = 0;
+    public static final int RATE_NORMAL = 1;
+    public static final int RATE_FAST = 2;
+    public static final int RATE_VERY_FAST = 3;
+
+    private SensorDirectChannel() {}
+
+    public int configure(Sensor sensor, int rateLevel) {
+        return 0;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return false;
+    }
+
+    @Override
+    public void close() {}
+}
@@ -0,0 +1,14 @@
+package android.hardware;
+
+// JVM stand-in with a public constructor
+public class SensorEvent {
+
+    public final float[] values;
+    public Sensor sensor;
+    public int accuracy;
+    public long timestamp;
+
+    public SensorEvent(int valueSize) {
+        values = new float[valueSize];
+    }
+}
@@ -0,0 +1,38 @@
+package android.hardware;
+
+import android.os.Handler;
+import android.os.MemoryFile;
+
+// JVM stand-in. Registration succeeds without delivering anything, tests
+// override it to feed events.
+public abstract class SensorManager {
+
+    public static final int SENSOR_DELAY_FASTEST = 0;
+    public static final int SENSOR_DELAY_GAME = 1;
+    public static final int SENSOR_DELAY_UI = 2;
+    public static final int SENSOR_DELAY_NORMAL = 3;
+
+    public static final int SENSOR_STATUS_NO_CONTACT = -1;
+    public static final int SENSOR_STATUS_UNRELIABLE = 0;
+    public static final int SENSOR_STATUS_ACCURACY_LOW = 1;
+    public static final int SENSOR_STATUS_ACCURACY_MEDIUM = 2;
+    public static final int SENSOR_STATUS_ACCURACY_HIGH = 3;
+
+    public abstract Sensor getDefaultSensor(int type);
+
+    public boolean registerListener(
+        SensorEventListener listener,
+        Sensor sensor,
+        int samplingPeriodUs,
+        int maxReportLatencyUs,
+        Handler handler
+    ) {
+        return true;
+    }
+
+    public void unregisterListener(SensorEventListener listener) {}
+
+    public SensorDirectChannel createDirectChannel(MemoryFile memoryFile) {
+        return null;
+    }
+}
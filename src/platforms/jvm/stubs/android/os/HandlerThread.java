@@ -0,0 +1,43 @@
+package android.os;
+
+public class HandlerThread extends Thread {
+
+    private Looper mLooper = null;
+
+    public HandlerThread(String name) {
+        super(name);
+        setDaemon(true);
+    }
+
+    @Override
+    public void run() {
+        Looper.prepare();
+        synchronized (this) {
+            mLooper = Looper.myLooper();
+            notifyAll();
+        }
+        Looper.loop();
+    }
+
+    public Looper getLooper() {
+        if (!isAlive()) return null;
+        synchronized (this) {
+            while (isAlive() && mLooper == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+        }
+        return mLooper;
+    }
+
+    public boolean quitSafely() {
+        final Looper looper = getLooper();
+        if (looper == null) return false;
+        looper.quitSafely();
+        return true;
+    }
+}
@@ -0,0 +1,159 @@
+package android.os;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+// JVM stand-in: a message queue ordered by uptimeMillis, run by the thread
+// that called prepare. The main looper is a daemon thread started on first
+// use.
+public final class Looper {
+
+    private static final ThreadLocal<Looper> sThreadLocal = new ThreadLocal<>();
+    private static Looper sMainLooper = null;
+
+    private final PriorityQueue<Message> mQueue = new PriorityQueue<>();
+    private final Thread mThread;
+    private long mSequence = 0;
+    private boolean mQuitting = false;
+
+    private Looper() {
+        mThread = Thread.currentThread();
+    }
+
+    public static void prepare() {
+        if (sThreadLocal.get() != null) {
+            throw new RuntimeException("Only one Looper per thread");
+        }
+        sThreadLocal.set(new Looper());
+    }
+
+    public static Looper myLooper() {
+        return sThreadLocal.get();
+    }
+
+    public static synchronized Looper getMainLooper() {
+        if (sMainLooper == null) {
+            final Looper[] looper = new Looper[1];
+            final Thread thread = new Thread("main") {
+                @Override
+                public void run() {
+                    prepare();
+                    synchronized (looper) {
+                        looper[0] = myLooper();
+                        looper.notifyAll();
+                    }
+                    loop();
+                }
+            };
+            thread.setDaemon(true);
+            thread.start();
+            synchronized (looper) {
+                while (looper[0] == null) {
+                    try {
+                        looper.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RuntimeException(e);
+                    }
+                }
+            }
+            sMainLooper = looper[0];
+        }
+        return sMainLooper;
+    }
+
+    public static void loop() {
+        final Looper looper = myLooper();
+        if (looper == null) throw new RuntimeException("No Looper");
+        while (true) {
+            final Runnable callback = looper.next();
+            if (callback == null) return;
+            callback.run();
+        }
+    }
+
+    public Thread getThread() {
+        return mThread;
+    }
+
+    public void quit() {
+        synchronized (mQueue) {
+            mQuitting = true;
+            mQueue.clear();
+            mQueue.notifyAll();
+        }
+    }
+
+    public boolean quitSafely() {
+        quit();
+        return true;
+    }
+
+    boolean enqueue(final Handler handler, final Runnable r, final long when) {
+        synchronized (mQueue) {
+            if (mQuitting) return false;
+            mQueue.add(new Message(handler, r, when, mSequence++));
+            mQueue.notifyAll();
+            return true;
+        }
+    }
+
+    void remove(final Handler handler, final Runnable r) {
+        synchronized (mQueue) {
+            final Iterator<Message> it = mQueue.iterator();
+            while (it.hasNext()) {
+                final Message m = it.next();
+                if (m.mHandler == handler && m.mCallback == r) it.remove();
+            }
+        }
+    }
+
+    private Runnable next() {
+        synchronized (mQueue) {
+            while (true) {
+                if (mQuitting) return null;
+                final Message head = mQueue.peek();
+                if (head == null) {
+                    waitQuietly(0);
+                    continue;
+                }
+                final long delay = head.mWhen - SystemClock.uptimeMillis();
+                if (delay > 0) {
+                    waitQuietly(delay);
+                    continue;
+                }
+                mQueue.poll();
+                return head.mCallback;
+            }
+        }
+    }
+
+    private void waitQuietly(final long millis) {
+        try {
+            mQueue.wait(millis);
+        } catch (InterruptedException e) {
+            mQuitting = true;
+        }
+    }
+
+    private static final class Message implements Comparable<Message> {
+
+        final Handler mHandler;
+        final Runnable mCallback;
+        final long mWhen;
+        final long mSequence;
+
+        Message(Handler handler, Runnable callback, long when, long sequence) {
+            mHandler = handler;
+            mCallback = callback;
+            mWhen = when;
+            mSequence = sequence;
+        }
+
+        @Override
+        public int compareTo(final Message other) {
+            if (mWhen != other.mWhen) return mWhen < other.mWhen ? -1 : 1;
+            return Long.compare(mSequence, other.mSequence);
+        }
+    }
+}
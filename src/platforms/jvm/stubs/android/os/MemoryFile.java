@@ -0,0 +1,44 @@
+package android.os;
+
+import java.io.IOException;
+
+// JVM stand-in backed by a heap array
+public class MemoryFile {
+
+    private byte[] mData;
+
+    public MemoryFile(String name, int length) throws IOException {
+        mData = new byte[length];
+    }
+
+    public int length() {
+        return mData == null ? 0 : mData.length;
+    }
+
+    public int readBytes(
+        byte[] buffer,
+        int srcOffset,
+        int destOffset,
+        int count
+    ) throws IOException {
+        final byte[] data = mData;
+        if (data == null) throw new IOException("closed");
+        System.arraycopy(data, srcOffset, buffer, destOffset, count);
+        return count;
+    }
+
+    public void writeBytes(
+        byte[] buffer,
+        int srcOffset,
+        int destOffset,
+        int count
+    ) throws IOException {
+        final byte[] data = mData;
+        if (data == null) throw new IOException("closed");
+        System.arraycopy(buffer, srcOffset, data, destOffset, count);
+    }
+
+    public void close() {
+        mData = null;
+    }
+}
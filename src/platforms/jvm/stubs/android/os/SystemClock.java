@@ -0,0 +1,19 @@
+package android.os;
+
+// JVM stand-in on the monotonic clock, like elapsedRealtime without deep sleep
+public final class SystemClock {
+
+    private SystemClock() {}
+
+    public static long elapsedRealtimeNanos() {
+        return System.nanoTime();
+    }
+
+    public static long elapsedRealtime() {
+        return System.nanoTime() / 1000000L;
+    }
+
+    public static long uptimeMillis() {
+        return System.nanoTime() / 1000000L;
+    }
+}